@@ -0,0 +1,45 @@
+package com.prog3.client.library;
+
+import com.prog3.client.model.Email;
+import com.prog3.server.model.SyntheticMailbox;
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Cost for the client of parsing the emails of a text response, one reconstructSingleEmail per line, for a response of
+ * the given number of messages. The lines are written by the server Email: the full email, or with listed the
+ * preview of GET_MESSAGES_PAGE and SYNC. Run from the benchmarks directory with
+ * {@code java -jar target/benchmarks.jar EmailParsingBenchmark -prof gc}.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(value = 1, jvmArgsAppend = "-Xmx4g")
+@State(Scope.Benchmark)
+public class EmailParsingBenchmark {
+    @Param({"100", "10000", "1000000"})
+    public int messages;
+
+    @Param({"false", "true"})
+    public boolean listed;
+
+    private String[] lines;
+
+    @Setup(Level.Trial)
+    public void setUp() {
+        lines = SyntheticMailbox.emails(messages).stream()
+                .map(email -> listed ? email.getListedEmailForResponse() : email.getEmailForResponse())
+                .toArray(String[]::new);
+    }
+
+    @Benchmark
+    public void reconstructSingleEmail(Blackhole blackhole) {
+        for (String line : lines) {
+            Email email = ServerConnection.reconstructSingleEmail(line, listed);
+            blackhole.consume(email);
+        }
+    }
+}
@@ -0,0 +1,76 @@
+package com.prog3.server.core;
+
+import com.prog3.server.model.Email;
+import com.prog3.server.model.ServerStorage;
+import com.prog3.server.model.SyntheticMailbox;
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.nio.file.Path;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Cost of a text request line in RequestHandler, from the split of the line to the last response line, for a mailbox
+ * of the given number of messages. The requests do not change the mailbox: SYNC is sent with the current sequence, so
+ * it is answered NOT_MODIFIED, GET_NEW_MESSAGES asks for the newest 1% of the mailbox and INVALID measures the error
+ * path of an unknown request type. Run from the benchmarks directory with
+ * {@code java -jar target/benchmarks.jar RequestHandlerBenchmark -prof gc}.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(value = 1, jvmArgsAppend = "-Xmx4g")
+@State(Scope.Benchmark)
+public class RequestHandlerBenchmark {
+    private static final SocketAddress CLIENT = new InetSocketAddress("localhost", 0);
+
+    @Param({"100", "10000", "1000000"})
+    public int messages;
+
+    @Param({"LOGIN", "GET_NEW_MESSAGES", "GET_MESSAGES_PAGE", "SYNC", "FETCH_BODY", "INVALID"})
+    public String request;
+
+    private Path data;
+    private RequestHandler requestHandler;
+    private Subscriptions.Session<String> session;
+    private String requestLine;
+
+    @Setup(Level.Trial)
+    public void setUp() throws Exception {
+        List<Email> emails = SyntheticMailbox.emails(messages);
+        data = SyntheticMailbox.writeDataDirectory(emails);
+        ServerStorage storage = new ServerStorage(data.toString(), message -> {
+        });
+        requestHandler = new RequestHandler(storage, message -> {
+        });
+        session = new Subscriptions.Session<>(line -> {
+        });
+        String user = SyntheticMailbox.OWNER;
+        requestLine = switch (request) {
+            case "LOGIN" -> "LOGIN|" + user;
+            case "GET_NEW_MESSAGES" -> "GET_NEW_MESSAGES|" + user + "|"
+                    + emails.get(messages - Math.max(1, messages / 100) - 1).getTimestamp();
+            case "GET_MESSAGES_PAGE" -> "GET_MESSAGES_PAGE|" + user + "|50||PREVIEWS";
+            case "SYNC" -> "SYNC|" + user + "|" + storage.getUserSequence(user) + "|PREVIEWS";
+            case "FETCH_BODY" -> "FETCH_BODY|" + user + "|" + emails.get(messages / 2).getId();
+            default -> "UNKNOWN|" + user;
+        };
+        emails.clear();
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws Exception {
+        session.close();
+        requestHandler.close();
+        SyntheticMailbox.delete(data);
+    }
+
+    @Benchmark
+    public void handleRequest(Blackhole blackhole) {
+        requestHandler.handleRequest(requestLine, CLIENT, session, Runnable::run, blackhole::consume).join();
+    }
+}
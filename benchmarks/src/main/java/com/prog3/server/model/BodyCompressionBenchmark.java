@@ -0,0 +1,126 @@
+package com.prog3.server.model;
+
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.LocalDateTime;
+import java.util.*;
+import java.util.concurrent.TimeUnit;
+import java.util.regex.Pattern;
+import java.util.stream.Stream;
+
+/**
+ * Memory and CPU cost of deflating body segments (-Dmailfx.storage.compressAbove) on the bodies of a data directory.
+ * Every body of the corpus is also used as the first message of a synthetic thread of replies, quoted the way the
+ * client quotes them; the text of each reply is made of replyLength characters of words taken from the corpus.
+ * Quotes are stored once by the message store, so what gets compressed is mostly the new text of each message.
+ * <p>
+ * store measures the compression done when a message is sent, serialize the inflation done when every body is
+ * serialized for a response; the heap taken by the segments is printed once per trial. Run from the benchmarks
+ * directory with {@code java -jar target/benchmarks.jar BodyCompression -prof gc}.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class BodyCompressionBenchmark {
+    private static final Pattern QUOTE_SPLITTER = Pattern.compile(Pattern.quote(MessageStore.QUOTE_MARKER));
+
+    @Param({"../server/src/main/java/com/prog3/server/model/data"})
+    public String corpus;
+
+    @Param({"20"})
+    public int threadLength;
+
+    @Param({"200", "4000"})
+    public int replyLength;
+
+    @Param({"0", "256", "1024", "4096"})
+    public int compressAbove;
+
+    private List<String> segmentTexts;      // distinct texts, as the message store keeps them
+    private List<Email> emails;
+
+    @Setup(Level.Trial)
+    public void setUp() throws IOException {
+        List<String> corpusBodies = readBodies(Path.of(corpus));
+        String[] words = String.join(" ", corpusBodies).replace("\\n", " ").split("\\s+");
+        Random random = new Random(42);
+
+        List<String> bodies = new ArrayList<>();
+        for (String body : corpusBodies) {
+            String thread = body;
+            bodies.add(thread);
+            for (int reply = 1; reply < threadLength; reply++) {
+                StringBuilder text = new StringBuilder();
+                while (text.length() < replyLength) {
+                    text.append(words[random.nextInt(words.length)]).append(random.nextInt(8) == 0 ? "\\n" : " ");
+                }
+                thread = text + "\\n" + MessageStore.QUOTE_MARKER
+                        + "\\nDa: user1@mail.com\\nOggetto: Re: prova\\nTesto: " + thread;
+                bodies.add(thread);
+            }
+        }
+
+        Map<String, BodySegment> segments = new LinkedHashMap<>();
+        emails = new ArrayList<>();
+        for (String body : bodies) {
+            String[] texts = QUOTE_SPLITTER.split(body, -1);
+            BodySegment[] bodySegments = new BodySegment[texts.length];
+            for (int i = 0; i < texts.length; i++) {
+                bodySegments[i] = segments.computeIfAbsent(texts[i], text -> BodySegment.of(text, compressAbove));
+            }
+            emails.add(new Email(UUID.randomUUID().toString(), "user1@mail.com", List.of("user2@mail.com"), "prova",
+                    bodySegments, LocalDateTime.now()));
+        }
+        segmentTexts = new ArrayList<>(segments.keySet());
+
+        long rawBytes = segmentTexts.stream().mapToLong(text -> BodySegment.of(text, 0).storedSize()).sum();
+        long storedBytes = segments.values().stream().mapToLong(BodySegment::storedSize).sum();
+        System.out.printf("%n%d bodies, %d distinct segments: %d KB as text, %d KB stored with compressAbove=%d (%.1f%%)%n",
+                bodies.size(), segmentTexts.size(), rawBytes / 1024, storedBytes / 1024, compressAbove,
+                rawBytes == 0 ? 100.0 : storedBytes * 100.0 / rawBytes);
+    }
+
+    @Benchmark
+    public void store(Blackhole blackhole) {
+        for (String text : segmentTexts) {
+            blackhole.consume(BodySegment.of(text, compressAbove));
+        }
+    }
+
+    @Benchmark
+    public void serialize(Blackhole blackhole) {
+        for (Email email : emails) {
+            blackhole.consume(email.getEmailForResponse());
+        }
+    }
+
+    /**
+     * @return the bodies of the email records of every log in the directory
+     */
+    private static List<String> readBodies(Path directory) throws IOException {
+        List<String> bodies = new ArrayList<>();
+        try (Stream<Path> files = Files.walk(directory)) {
+            for (Path file : files.filter(path -> path.toString().endsWith(".csv")).toList()) {
+                List<String> lines = Files.readAllLines(file, StandardCharsets.UTF_8);
+                for (String line : lines.subList(Math.min(1, lines.size()), lines.size())) {
+                    String[] parts = line.split("\\|");
+                    if (parts.length == 7 && !parts[2].startsWith("#")) {
+                        bodies.add(parts[5]);
+                    }
+                }
+            }
+        }
+        if (bodies.isEmpty()) {
+            throw new IOException("No email bodies found in: " + directory);
+        }
+        return bodies;
+    }
+}
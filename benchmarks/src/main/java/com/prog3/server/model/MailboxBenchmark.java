@@ -0,0 +1,42 @@
+package com.prog3.server.model;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Serialization of a mailbox for the GET_ALL_MESSAGES and GET_NEW_MESSAGES line responses. The new messages are the
+ * newest 1% of the mailbox, at least one. Run from the benchmarks directory with
+ * {@code java -jar target/benchmarks.jar MailboxBenchmark -prof gc}.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(value = 1, jvmArgsAppend = "-Xmx4g")
+@State(Scope.Benchmark)
+public class MailboxBenchmark {
+    @Param({"100", "10000", "1000000"})
+    public int messages;
+
+    private Mailbox mailbox;
+    private String fromDate;
+
+    @Setup(Level.Trial)
+    public void setUp() {
+        List<Email> emails = SyntheticMailbox.emails(messages);
+        mailbox = new Mailbox(emails);
+        fromDate = emails.get(messages - Math.max(1, messages / 100) - 1).getTimestamp().toString();
+    }
+
+    @Benchmark
+    public String getMailboxForResponse() {
+        return mailbox.getMailboxForResponse();
+    }
+
+    @Benchmark
+    public String getNewMailboxForResponse() {
+        return mailbox.getNewMailboxForResponse(fromDate);
+    }
+}
@@ -0,0 +1,88 @@
+package com.prog3.server.model;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.nio.file.Path;
+import java.time.LocalDateTime;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Cost of ServerStorage on a data directory whose largest mailbox holds the given number of messages: loadFromFile
+ * (run through reloadFromFile, so the writer and the message store are not rebuilt) and the updates of a mailbox,
+ * search index included.
+ * <p>
+ * addEmailToMailbox makes the mailbox grow while it runs, the emails it added are removed after every iteration;
+ * addAndRemoveEmail keeps its size, and the cost of removeEmailFromMailbox is the difference between the two. With the
+ * default fsync policy "none" the updates measure the work of the storage, not the disk; "batch" is what the server
+ * uses. Run from the benchmarks directory with {@code java -jar target/benchmarks.jar StorageBenchmark -prof gc};
+ * the largest size needs a few GB of heap and of disk.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(value = 1, jvmArgsAppend = "-Xmx4g")
+@State(Scope.Benchmark)
+public class StorageBenchmark {
+    @Param({"100", "10000", "1000000"})
+    public int messages;
+
+    @Param({"none"})
+    public String fsync;
+
+    private Path data;
+    private ServerStorage storage;
+    private final List<String> added = new ArrayList<>();
+
+    @Setup(Level.Trial)
+    public void setUp() throws Exception {
+        System.setProperty("mailfx.storage.fsync", fsync);
+        data = SyntheticMailbox.writeDataDirectory(SyntheticMailbox.emails(messages));
+        storage = new ServerStorage(data.toString(), message -> {
+        });
+    }
+
+    @TearDown(Level.Iteration)
+    public void removeAdded() throws Exception {
+        for (String emailId : added) {
+            storage.removeEmailFromMailbox(SyntheticMailbox.OWNER, emailId);
+        }
+        added.clear();
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws Exception {
+        storage.close();
+        SyntheticMailbox.delete(data);
+    }
+
+    @Benchmark
+    @BenchmarkMode(Mode.SingleShotTime)
+    @OutputTimeUnit(TimeUnit.MILLISECONDS)
+    @Warmup(iterations = 2)
+    @Measurement(iterations = 5)
+    public void loadFromFile() throws Exception {
+        storage.reloadFromFile();
+    }
+
+    @Benchmark
+    public void addEmailToMailbox() throws Exception {
+        Email email = newEmail();
+        storage.addEmailToMailbox(SyntheticMailbox.OWNER, email);
+        added.add(email.getId());
+    }
+
+    @Benchmark
+    public void addAndRemoveEmail() throws Exception {
+        Email email = newEmail();
+        storage.addEmailToMailbox(SyntheticMailbox.OWNER, email);
+        storage.removeEmailFromMailbox(SyntheticMailbox.OWNER, email.getId());
+    }
+
+    private static Email newEmail() {
+        return new Email("user2@mail.com", List.of(SyntheticMailbox.OWNER), "benchmark",
+                "a new email\\nwith two lines", LocalDateTime.now());
+    }
+}
@@ -0,0 +1,105 @@
+package com.prog3.server.model;
+
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.LocalDateTime;
+import java.util.*;
+import java.util.stream.Stream;
+
+/**
+ * Synthetic mailbox shared by the benchmarks: emails from user2 and user3 to OWNER, one minute apart, with subjects
+ * and bodies made of words of a fixed vocabulary. One body in four quotes a previous message the way the client does.
+ * The same size always gives the same emails.
+ */
+public final class SyntheticMailbox {
+    public static final String OWNER = "user1@mail.com";
+    private static final String[] USERS = {OWNER, "user2@mail.com", "user3@mail.com"};
+    private static final String HEADER = "userEmail|id|sender|receivers(#)|subject|body|timestamp";
+    private static final LocalDateTime START = LocalDateTime.of(2020, 1, 1, 0, 0);
+
+    private SyntheticMailbox() {
+    }
+
+    /**
+     * @return the emails of OWNER's mailbox, oldest first, with bodies in the escaped form of the storage
+     */
+    public static List<Email> emails(int count) {
+        Random random = new Random(42);
+        String[] words = vocabulary(random);
+        List<Email> emails = new ArrayList<>(count);
+        for (int i = 0; i < count; i++) {
+            String body = text(random, words, 10 + random.nextInt(60));
+            if (random.nextInt(4) == 0) {
+                body += "\\n" + MessageStore.QUOTE_MARKER + "\\nDa: " + OWNER + "\\nOggetto: prova\\nTesto: "
+                        + text(random, words, 40);
+            }
+            emails.add(new Email(new UUID(random.nextLong(), random.nextLong()).toString(),
+                    USERS[1 + random.nextInt(2)], List.of(OWNER), text(random, words, 1 + random.nextInt(6)), body,
+                    START.plusMinutes(i)));
+        }
+        return emails;
+    }
+
+    /**
+     * Writes a data directory where OWNER's mailbox log holds the given emails and the other users have empty
+     * mailboxes
+     *
+     * @return the new directory, to be removed with delete
+     */
+    public static Path writeDataDirectory(List<Email> emails) throws IOException {
+        Path directory = Files.createTempDirectory("mailfx-bench");
+        Path mailboxes = Files.createDirectories(directory.resolve("mailboxes"));
+        for (String user : USERS) {
+            try (BufferedWriter writer = Files.newBufferedWriter(mailboxes.resolve(user + ".csv"), StandardCharsets.UTF_8)) {
+                writer.write(HEADER);
+                writer.newLine();
+                if (user.equals(OWNER)) {
+                    for (Email email : emails) {
+                        writer.write(String.join("|", OWNER, email.getId(), email.getSender(),
+                                String.join("#", email.getRecipients()), email.getSubject(), email.getBody(),
+                                email.getTimestamp().toString()));
+                        writer.newLine();
+                    }
+                }
+            }
+        }
+        return directory;
+    }
+
+    /**
+     * Removes a directory written by writeDataDirectory, with the files the storage added to it
+     */
+    public static void delete(Path directory) throws IOException {
+        try (Stream<Path> paths = Files.walk(directory)) {
+            for (Path path : paths.sorted(Comparator.reverseOrder()).toList()) {
+                Files.delete(path);
+            }
+        }
+    }
+
+    private static String[] vocabulary(Random random) {
+        String[] words = new String[2000];
+        for (int i = 0; i < words.length; i++) {
+            StringBuilder word = new StringBuilder();
+            for (int length = 2 + random.nextInt(9); word.length() < length; ) {
+                word.append((char) ('a' + random.nextInt(26)));
+            }
+            words[i] = word.toString();
+        }
+        return words;
+    }
+
+    private static String text(Random random, String[] words, int count) {
+        StringBuilder text = new StringBuilder();
+        for (int i = 0; i < count; i++) {
+            if (i > 0) {
+                text.append(random.nextInt(12) == 0 ? "\\n" : " ");
+            }
+            text.append(words[random.nextInt(words.length)]);
+        }
+        return text.toString();
+    }
+}
@@ -1,6 +1,8 @@
 package com.prog3.client.controller;
 
 import com.prog3.client.library.AlertNotification;
+import com.prog3.client.library.ConnectionManager;
+import com.prog3.client.library.ServerConnection;
 import com.prog3.client.model.*;
 
 import javafx.application.Platform;
@@ -15,15 +17,16 @@ import javafx.scene.control.*;
 import javafx.scene.layout.VBox;
 import javafx.stage.Stage;
 
-import java.io.BufferedReader;
 import java.io.IOException;
-import java.io.InputStreamReader;
-import java.io.PrintWriter;
-import java.net.Socket;
 import java.time.LocalDateTime;
-import java.util.Arrays;
+import java.util.ArrayList;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.Queue;
 import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.function.Consumer;
 
 public class InboxController {
     @FXML
@@ -42,12 +45,38 @@ public class InboxController {
     private TextField recipientsField;
     @FXML
     private TextArea bodyArea;
+    @FXML
+    private TextField searchField;
 
     private ClientStorage clientStorage;
-    private final ObservableList<Socket> openSockets = FXCollections.synchronizedObservableList(FXCollections.observableArrayList());
+    // connessione della sessione per le richieste brevi; long poll e subscribe usano connessioni proprie
+    private ConnectionManager connections;
+    private final ObservableList<ServerConnection> openConnections = FXCollections.synchronizedObservableList(FXCollections.observableArrayList());
     private final ScheduledExecutorService emailChecker = new ScheduledThreadPoolExecutor(1);
-    private static final String SERVER_ADDRESS = "127.0.0.1";
-    private static final int SERVER_PORT = 8082;
+    // la casella viene letta a pagine, la successiva quando la lista arriva all'ultima mail caricata
+    private static final int PAGE_SIZE = 50;
+    private volatile String nextPageCursor;
+    private final AtomicBoolean loadingPage = new AtomicBoolean();
+    // la ricerca avviene sul server, che restituisce le mail più pertinenti anche se non sono ancora state scaricate
+    private static final int SEARCH_LIMIT = 50;
+    // mail ricevute e non ancora aggiunte alla inbox, vedi showReceivedEmails
+    private final Queue<Email> receivedEmails = new ConcurrentLinkedQueue<>();
+    private final AtomicBoolean receivedEmailsScheduled = new AtomicBoolean();
+    // le nuove mail arrivano sulla connessione di subscribe; il polling resta solo finché questa manca
+    private static final long RESUBSCRIBE_DELAY_MILLIS = 5000;
+    private volatile boolean subscribed;
+    private volatile Thread subscriber;
+    // senza sottoscrizione si fanno long poll uno dopo l'altro, o una richiesta ogni 5 secondi se il server non li conosce
+    private static final int LONG_POLL_MILLIS = 25_000;
+    private volatile boolean longPollSupported = true;
+    // senza long poll l'intervallo tra due richieste raddoppia finché la casella non cambia, fino a MAX_POLL_SECONDS
+    private static final long MIN_POLL_SECONDS = 5;
+    private static final long MAX_POLL_SECONDS = 60;
+    private volatile long pollSeconds = MIN_POLL_SECONDS;
+    // con SYNC il server indica anche le mail eliminate e quelle arrivate con una data più vecchia dell'ultima ricevuta;
+    // syncSequence è il numero di sequenza da cui chiedere le modifiche, 0 finché non è noto
+    private volatile long syncSequence;
+    private volatile boolean syncSupported = true;
 
     /**
      * Imposta il modello locale del client.
@@ -58,6 +87,13 @@ public class InboxController {
         this.clientStorage = clientStorage;
     }
 
+    /**
+     * Imposta la connessione aperta al login.
+     */
+    public void setConnections(ConnectionManager connections) {
+        this.connections = connections;
+    }
+
     /**
      * Inizializza il controller e configura l'esecutore per i thread.
      */
@@ -93,11 +129,17 @@ public class InboxController {
                     Label subjectLabel = new Label(email.getSubject());
                     subjectLabel.setStyle("-fx-font-weight: normal;");
 
-                    Label bodyLabel = new Label(email.getBody().split("\n")[0]);
+                    Label bodyLabel = new Label(email.getPreview());
                     bodyLabel.setStyle("-fx-text-fill: grey;");
 
                     VBox emailBox = new VBox(senderLabel, subjectLabel, bodyLabel);
                     setGraphic(emailBox);
+
+                    // mentre sono mostrati i risultati di una ricerca non si leggono altre pagine
+                    if (getListView().getItems() == clientStorage.getInbox()
+                            && getIndex() == getListView().getItems().size() - 1) {
+                        loadNextPage();
+                    }
                 }
             }
         });
@@ -110,106 +152,396 @@ public class InboxController {
         });
     }
 
+    /**
+     * Mostra la mail con l'anteprima del testo, sostituita dal testo completo appena questo è disponibile.
+     */
     private void showEmailDetails(Email email) {
         senderField.setText(email.getSender());
         recipientsField.setText(email.getRecipientsAsString());
         subjectField.setText(email.getSubject());
-        bodyArea.setText(email.getBody());
+        bodyArea.setText(email.getPreview());
         detailEmail.setVisible(true); // Mostra la VBox
+        withBody(email, body -> {
+            if (inboxListView.getSelectionModel().getSelectedItem() == email) {
+                bodyArea.setText(body);
+            }
+        });
+    }
+
+    /**
+     * Passa a onBody, sul thread JavaFX, il testo completo della mail: dalla cache dei testi o, se manca, chiesto al
+     * server. Se il server non lo restituisce viene mostrato un errore e onBody non viene chiamato.
+     */
+    private void withBody(Email email, Consumer<String> onBody) {
+        String body = clientStorage.getBody(email.getId());
+        if (body != null) {
+            onBody.accept(body);
+            return;
+        }
+        connections.fetchBody(clientStorage.getUserEmail(), email.getId()).whenComplete((response, error) ->
+                Platform.runLater(() -> {
+                    if (error != null) {
+                        AlertNotification.errorConnection("Errore di comunicazione con il server.");
+                    } else if (response.success()) {
+                        clientStorage.putBody(email.getId(), response.message());
+                        onBody.accept(response.message());
+                    } else if (response.message().equals("Unknown request type")) {
+                        // un server senza FETCH_BODY invia i testi completi, che mancano solo se stanno nell'anteprima
+                        onBody.accept(email.getPreview());
+                    } else {
+                        AlertNotification.errorConnection("Errore nella lettura della mail: " + response.message());
+                    }
+                }));
     }
 
+    /**
+     * Mostra la inbox salvata in cache e chiede al server solo le modifiche successive all'ultima sync, o le mail
+     * arrivate dopo la più recente; senza cache, o se in cache non c'è ancora una pagina letta dal server, chiede la
+     * prima pagina.
+     */
     private void requestInboxToServer() {
-        new Thread(() -> {
-            try {
-                Socket requestInboxSocket = new Socket(SERVER_ADDRESS, SERVER_PORT);
-                openSockets.add(requestInboxSocket);
+        CompletableFuture.supplyAsync(this::openCache).thenCompose(cached -> {
+            if (cached == null || cached.pageCursor() == null || cached.emails().isEmpty()) {
+                // il numero di sequenza prima della pagina: quanto cambia nel frattempo arriva con la sync successiva
+                return startSync().thenCompose(ignored -> requestPage(null));
+            }
+            nextPageCursor = cached.pageCursor().isEmpty() ? null : cached.pageCursor();
+            Platform.runLater(() -> clientStorage.showCachedEmails(cached.emails()));
+            syncSequence = cached.sequence();
+            return requestChanges(cached.emails().getFirst().getTimestamp());
+        }).whenComplete((response, error) -> {
+            if (error != null) {
+                Platform.runLater(() -> AlertNotification.errorConnection("Errore nella richiesta della Inbox al Server"));
+            }
+            getNewEmails();
+            subscribeToNewEmails();
+        });
+    }
 
-                BufferedReader in = new BufferedReader(new InputStreamReader(requestInboxSocket.getInputStream()));
-                PrintWriter out = new PrintWriter(requestInboxSocket.getOutputStream(), true);
+    /**
+     * @return il contenuto della cache, null se non può essere aperta: la inbox viene allora letta tutta dal server
+     */
+    private InboxCache.Contents openCache() {
+        try {
+            return clientStorage.openCache();
+        } catch (IOException e) {
+            return null;
+        }
+    }
 
-                String request = String.join("|", "GET_ALL_MESSAGES", clientStorage.getUserEmail());
-                out.println(request);
+    /**
+     * Chiede al server la pagina successiva della casella, se ce n'è una e non la si sta già leggendo.
+     */
+    private void loadNextPage() {
+        String cursor = nextPageCursor;
+        if (cursor == null || !loadingPage.compareAndSet(false, true)) {
+            return;
+        }
+        requestPage(cursor).whenComplete((response, error) -> {
+            if (error != null) {
+                Platform.runLater(() -> AlertNotification.errorConnection("Errore nella richiesta della Inbox al Server"));
+            }
+            loadingPage.set(false);
+        });
+    }
 
-                String responseString = in.readLine();
-                handleGetAllMessagesResponse(responseString);
+    /**
+     * Legge una pagina della casella: ogni mail viene mostrata appena arriva, senza aspettare il resto della pagina.
+     *
+     * @param cursor il cursore della pagina, null per le mail più recenti
+     */
+    private CompletableFuture<ServerConnection.Response> requestPage(String cursor) {
+        return connections.getMessagesPage(clientStorage.getUserEmail(), PAGE_SIZE, cursor, this::showReceivedEmail)
+                .thenApply(response -> {
+                    if (response.success()) {
+                        nextPageCursor = response.nextCursor();
+                        // salvato dopo le mail della pagina, che vengono aggiunte sul thread JavaFX
+                        Platform.runLater(() -> clientStorage.setPageCursor(response.nextCursor()));
+                    } else {
+                        Platform.runLater(() -> AlertNotification.errorConnection("Errore nella risposta dal server: " + response.message()));
+                    }
+                    return response;
+                });
+    }
 
-                try {
-                    openSockets.remove(requestInboxSocket);
-                    requestInboxSocket.close();
-                } catch (IOException e) {
-                    Platform.runLater(() -> AlertNotification.errorConnection("Errore nella richiesta della Inbox al Server"));
+    /**
+     * Chiede al server il numero di sequenza attuale, da cui partono le sync successive. Un server che non conosce
+     * SYNC risponde con un errore: le nuove mail vengono allora chieste per data.
+     */
+    private CompletableFuture<Void> startSync() {
+        return connections.sync(clientStorage.getUserEmail(), -1).handle((response, error) -> {
+            if (error == null) {
+                if (response.success()) {
+                    acceptSequence(response.changes().sequence());
+                } else if (response.message().equals("Unknown request type")) {
+                    syncSupported = false;
                 }
-            } catch (IOException e) {
-                Platform.runLater(() -> AlertNotification.errorConnection("Errore nella richiesta della Inbox al Server"));
-            } finally {
-                getNewEmails();
             }
-        }).start();
+            return null;
+        });
     }
 
-    private void handleGetAllMessagesResponse(String responseString) {
-        String[] responseParts = responseString.split("\\|", 2);
-        String status = responseParts[0];
-        if ("SUCCESS".equalsIgnoreCase(status)) {
-            if (responseParts[1].equalsIgnoreCase("No messages found"))
-                return;
-            // Validate and extract mailbox
-            String[] emails = responseParts[1].split("±");
-            for (String email : emails) {
-                Email newEmail = reconstructSingleEmail(email);
-                Platform.runLater(() -> {
-                    clientStorage.addEmail(newEmail);
-                    FXCollections.sort(clientStorage.getInbox(), (e1, e2) -> e2.getTimestamp().compareTo(e1.getTimestamp()));// Ordina per data decrescente
-                });
+    /**
+     * Chiede le modifiche della casella dall'ultima sync e le applica alla inbox. Senza un numero di sequenza, o con
+     * un server che non conosce SYNC, chiede le mail successive a since.
+     *
+     * @param since la data della mail più recente della inbox
+     */
+    private CompletableFuture<ServerConnection.Response> requestChanges(LocalDateTime since) {
+        long sequence = syncSequence;
+        if (!syncSupported) {
+            return requestNewMessages(since);
+        }
+        if (sequence == 0) {
+            return startSync().thenCompose(ignored -> requestNewMessages(since));
+        }
+        return connections.sync(clientStorage.getUserEmail(), sequence).thenCompose(response -> {
+            if (!response.success() && response.message().equals("Unknown request type")) {
+                syncSupported = false;
+                return requestNewMessages(since);
+            }
+            applyChanges(response);
+            return CompletableFuture.completedFuture(response);
+        });
+    }
+
+    private CompletableFuture<ServerConnection.Response> requestNewMessages(LocalDateTime since) {
+        return connections.getNewMessages(clientStorage.getUserEmail(), since).thenApply(response -> {
+            handleGetAllMessagesResponse(response);
+            return response;
+        });
+    }
+
+    /**
+     * Applica alla inbox la risposta di una sync: aggiunge le mail arrivate e toglie quelle eliminate, o sostituisce
+     * tutta la inbox se il server non ha potuto calcolare le modifiche.
+     */
+    private void applyChanges(ServerConnection.Response response) {
+        if (!response.success()) {
+            Platform.runLater(() -> AlertNotification.errorConnection("Errore nella risposta dal server: " + response.message()));
+            return;
+        }
+        ServerConnection.Changes changes = response.changes();
+        if (changes.reset()) {
+            nextPageCursor = null;
+            Platform.runLater(() -> {
+                clientStorage.replaceEmails(response.emails());
+                clientStorage.setPageCursor(null);
+            });
+        } else {
+            showReceivedEmails(response.emails());
+            if (!changes.removed().isEmpty()) {
+                Platform.runLater(() -> clientStorage.removeEmails(changes.removed()));
             }
+        }
+        acceptSequence(changes.sequence());
+    }
+
+    /**
+     * Ricorda il numero di sequenza per la prossima sync e lo salva in cache dopo le modifiche già in coda per il
+     * thread JavaFX.
+     */
+    private void acceptSequence(long sequence) {
+        if (sequence != syncSequence) {
+            syncSequence = sequence;
+            Platform.runLater(() -> clientStorage.setSequence(sequence));
+        }
+    }
+
+    /**
+     * Attende la risposta di una richiesta fatta sulla connessione della sessione.
+     */
+    private static ServerConnection.Response await(CompletableFuture<ServerConnection.Response> request) throws IOException {
+        try {
+            return request.join();
+        } catch (CompletionException e) {
+            if (e.getCause() instanceof IOException cause) {
+                throw cause;
+            }
+            throw e;
+        }
+    }
+
+    private void handleGetAllMessagesResponse(ServerConnection.Response response) {
+        if (response.success()) {
+            showReceivedEmails(response.emails());
         } else {
-            Platform.runLater(() -> AlertNotification.errorConnection("Errore nella risposta dal server: " + responseParts[1]));
+            Platform.runLater(() -> AlertNotification.errorConnection("Errore nella risposta dal server: " + response.message()));
+        }
+    }
+
+    private void showReceivedEmail(Email newEmail) {
+        showReceivedEmails(List.of(newEmail));
+    }
+
+    /**
+     * Mette in coda le mail ricevute: quelle arrivate prima che il thread JavaFX le aggiunga vengono aggiunte insieme,
+     * con un solo passaggio sul thread JavaFX e una sola modifica della inbox.
+     */
+    private void showReceivedEmails(List<Email> newEmails) {
+        receivedEmails.addAll(newEmails);
+        if (receivedEmailsScheduled.compareAndSet(false, true)) {
+            Platform.runLater(this::addReceivedEmails);
+        }
+    }
+
+    private void addReceivedEmails() {
+        receivedEmailsScheduled.set(false);
+        List<Email> batch = new ArrayList<>();
+        Email email;
+        while ((email = receivedEmails.poll()) != null) {
+            batch.add(email);
         }
+        clientStorage.addEmails(batch);
     }
 
     private void getNewEmails() {
-        Runnable ckeckNewEmailTask = () -> {
+        emailChecker.schedule(this::checkNewEmails, 5, TimeUnit.SECONDS);
+    }
+
+    /**
+     * Chiede le nuove mail se non arrivano già dalla sottoscrizione e si ripianifica: subito dopo un long poll,
+     * altrimenti dopo pollSeconds, che cresce finché la casella resta ferma; dopo 5 secondi in caso di errore.
+     */
+    private void checkNewEmails() {
+        long delay = MIN_POLL_SECONDS;
+        if (!subscribed) {
             try {
-                requestNewEmails();
+                if (requestNewEmails(true)) {
+                    delay = longPollSupported ? 0 : pollSeconds;
+                }
             } catch (Exception e) {
-                Platform.runLater(() -> AlertNotification.errorConnection("Errore nel richiedere Nuove emails: " + e.getMessage()));
+                if (!emailChecker.isShutdown()) {
+                    Platform.runLater(() -> AlertNotification.errorConnection("Errore nel richiedere Nuove emails: " + e.getMessage()));
+                }
             }
-        };
-        emailChecker.scheduleAtFixedRate(ckeckNewEmailTask, 5, 5, TimeUnit.SECONDS);
+        }
+        if (!emailChecker.isShutdown()) {
+            emailChecker.schedule(this::checkNewEmails, delay, TimeUnit.SECONDS);
+        }
+    }
 
+    /**
+     * Tiene aperta una connessione su cui il server invia le nuove mail appena arrivano. Se la connessione cade, o il
+     * server non conosce SUBSCRIBE, le nuove mail vengono di nuovo chieste da checkNewEmails; una connessione persa
+     * viene riaperta dopo RESUBSCRIBE_DELAY_MILLIS.
+     */
+    private void subscribeToNewEmails() {
+        subscriber = new Thread(() -> {
+            while (!emailChecker.isShutdown()) {
+                try {
+                    if (!listenForNewEmails()) {
+                        return;     // il server non conosce SUBSCRIBE, resta il polling
+                    }
+                } catch (IOException e) {
+                    // connessione persa: si torna al polling
+                } finally {
+                    subscribed = false;
+                }
+                try {
+                    Thread.sleep(RESUBSCRIBE_DELAY_MILLIS);
+                } catch (InterruptedException e) {
+                    return;
+                }
+            }
+        }, "mail-subscription");
+        subscriber.setDaemon(true);
+        subscriber.start();
     }
 
-    private void requestNewEmails() {
+    /**
+     * @return false se il server rifiuta la sottoscrizione, altrimenti legge le notifiche finché la connessione cade
+     */
+    private boolean listenForNewEmails() throws IOException {
+        ServerConnection subscribeConnection = new ServerConnection();
+        openConnections.add(subscribeConnection);
         try {
-            Socket newEmailsSocket = new Socket(SERVER_ADDRESS, SERVER_PORT);
-            openSockets.add(newEmailsSocket);
-
-            BufferedReader in = new BufferedReader(new InputStreamReader(newEmailsSocket.getInputStream()));
-            PrintWriter out = new PrintWriter(newEmailsSocket.getOutputStream(), true);
-
-            String mostRecentEmailDate = clientStorage.mostRecentEmailDate();
-            String request;
-            String responseString;
+            if (emailChecker.isShutdown()) {
+                return true;    // aperta mentre shutdown chiudeva le altre
+            }
+            if (!subscribeConnection.subscribe(clientStorage.getUserEmail()).success()) {
+                return false;
+            }
+            subscribed = true;
+            // le mail arrivate tra l'ultima richiesta e la sottoscrizione
+            requestNewEmails(false);
+            while (!emailChecker.isShutdown()) {
+                Email newEmail = subscribeConnection.readPush();
+                if (newEmail != null && !emailChecker.isShutdown()) {
+                    showReceivedEmail(newEmail);
+                    Platform.runLater(() -> AlertNotification.showResponsetoSendMessage("Avviso", "Arrivate nuove mail"));
+                }
+            }
+            return true;
+        } finally {
+            openConnections.remove(subscribeConnection);
+            subscribeConnection.close();
+        }
+    }
 
-            if (clientStorage.getInbox().isEmpty()) {
-                request = String.join("|", "GET_ALL_MESSAGES", clientStorage.getUserEmail());
-                out.println(request);
+    /**
+     * @param wait se true e il server lo permette, attende con un long poll che arrivi una nuova mail; dopo il long
+     *             poll una sync porta anche le mail eliminate
+     * @return false se il server non è raggiungibile
+     */
+    private boolean requestNewEmails(boolean wait) {
+        try {
+            boolean arrived;
+            boolean changed;
+            LocalDateTime since = clientStorage.mostRecentEmailDate();
+            if (since == null) {
+                ServerConnection.Response response = await(requestPage(null));
+                arrived = response.success() && !response.emails().isEmpty();
+                changed = arrived;
             } else {
-                request = String.join("|", "GET_NEW_MESSAGES", clientStorage.getUserEmail(), mostRecentEmailDate);
-                out.println(request);
+                ServerConnection.Response polled = null;
+                if (wait && longPollSupported) {
+                    polled = waitNewMessages(clientStorage.getUserEmail(), since);
+                    if (!polled.success() && polled.message().equals("Unknown request type")) {
+                        longPollSupported = false;
+                        polled = null;
+                    } else {
+                        handleGetAllMessagesResponse(polled);
+                    }
+                }
+                arrived = polled != null && polled.success() && !polled.emails().isEmpty();
+                changed = arrived;
+                if (polled == null || syncSupported) {
+                    ServerConnection.Response response = await(requestChanges(since));
+                    ServerConnection.Changes changes = response.changes();
+                    boolean reset = changes != null && changes.reset();
+                    arrived |= response.success() && !reset && !response.emails().isEmpty();
+                    changed |= !response.emails().isEmpty() || changes != null && !changes.removed().isEmpty();
+                }
             }
+            pollSeconds = changed ? MIN_POLL_SECONDS : Math.min(2 * pollSeconds, MAX_POLL_SECONDS);
 
-            responseString = in.readLine();
-            handleGetAllMessagesResponse(responseString);
-
-            if (responseString.contains("SUCCESS") && !responseString.contains("No messages found")) {
+            if (arrived && !emailChecker.isShutdown()) {
                 Platform.runLater(() -> AlertNotification.showResponsetoSendMessage("Avviso", "Arrivate nuove mail"));
             }
-
-            openSockets.remove(newEmailsSocket);
-            newEmailsSocket.close();
+            return true;
         } catch (IOException e) {
-            Platform.runLater(() -> AlertNotification.errorConnection("Errore nel richiedere nuove emails: " + e.getMessage()));
+            if (!emailChecker.isShutdown()) {
+                Platform.runLater(() -> AlertNotification.errorConnection("Errore nel richiedere nuove emails: " + e.getMessage()));
+            }
+            return false;
+        }
+    }
+
+    /**
+     * Il long poll tiene occupata la sua connessione finché non arriva una mail, per questo non usa quella della sessione.
+     */
+    private ServerConnection.Response waitNewMessages(String userEmail, LocalDateTime since) throws IOException {
+        ServerConnection longPollConnection = new ServerConnection();
+        openConnections.add(longPollConnection);
+        try {
+            if (emailChecker.isShutdown()) {
+                throw new IOException("Sessione chiusa");
+            }
+            return longPollConnection.waitNewMessages(userEmail, since, LONG_POLL_MILLIS);
+        } finally {
+            openConnections.remove(longPollConnection);
+            longPollConnection.close();
         }
     }
 
@@ -221,6 +553,7 @@ public class InboxController {
 
             WriteMailController writeMailController = loader.getController();
             writeMailController.setUserMail(clientStorage.getUserEmail());
+            writeMailController.setConnections(connections);
 
             Stage newStage = new Stage();
             newStage.setTitle("Mail Client - Write New Email");
@@ -238,6 +571,10 @@ public class InboxController {
             AlertNotification.emptyField("Nessuna email selezionata");
             return;
         }
+        withBody(selectedEmail, body -> openReply(selectedEmail, body));
+    }
+
+    private void openReply(Email selectedEmail, String body) {
         try {
             FXMLLoader loader = new FXMLLoader(getClass().getResource("/com/prog3/client/writeMail-view.fxml"));
             Parent root = loader.load();
@@ -245,6 +582,7 @@ public class InboxController {
             // Ottieni il controller della nuova vista
             WriteMailController writeMailController = loader.getController();
             writeMailController.setUserMail(clientStorage.getUserEmail());
+            writeMailController.setConnections(connections);
             String replyRecipient = selectedEmail.getSender();
             String replySubject = "Re: " + selectedEmail.getSubject();
             String originalMessage = String.format("""
@@ -252,7 +590,7 @@ public class InboxController {
                     --- Messaggio originale ---
                     Da: %s
                     Oggetto: %s
-                    Testo: %s""", selectedEmail.getSender(), selectedEmail.getSubject(), selectedEmail.getBody());
+                    Testo: %s""", selectedEmail.getSender(), selectedEmail.getSubject(), body);
 
             writeMailController.initFields(replyRecipient, replySubject, originalMessage);
 
@@ -272,6 +610,10 @@ public class InboxController {
             AlertNotification.emptyField("Nessuna email selezionata");
             return;
         }
+        withBody(selectedEmail, body -> openReplyAll(selectedEmail, body));
+    }
+
+    private void openReplyAll(Email selectedEmail, String body) {
         try {
             FXMLLoader loader = new FXMLLoader(getClass().getResource("/com/prog3/client/writeMail-view.fxml"));
             Parent root = loader.load();
@@ -279,6 +621,7 @@ public class InboxController {
             // Ottieni il controller della nuova vista
             WriteMailController writeMailController = loader.getController();
             writeMailController.setUserMail(clientStorage.getUserEmail());
+            writeMailController.setConnections(connections);
 
             String replyRecipients = String.join("|", selectedEmail.getRecipients());
             if (!replyRecipients.contains(selectedEmail.getSender())) {
@@ -291,7 +634,7 @@ public class InboxController {
                     Da: %s
                     A: %s
                     Oggetto: %s
-                    Testo: %s""", selectedEmail.getSender(), selectedEmail.getRecipientsAsString(), selectedEmail.getSubject(), selectedEmail.getBody());
+                    Testo: %s""", selectedEmail.getSender(), selectedEmail.getRecipientsAsString(), selectedEmail.getSubject(), body);
 
             writeMailController.initFields(replyRecipients, replySubject, originalMessage);
 
@@ -312,41 +655,60 @@ public class InboxController {
             return;
         }
 
-        // Thread per gestire l'eliminazione dal server
-        new Thread(() -> {
-            try {
-                Socket deleteMailSocket = new Socket(SERVER_ADDRESS, SERVER_PORT);
-                openSockets.add(deleteMailSocket);
-
-                BufferedReader in = new BufferedReader(new InputStreamReader(deleteMailSocket.getInputStream()));
-                PrintWriter out = new PrintWriter(deleteMailSocket.getOutputStream(), true);
-
-                String emailId = selectedEmail.getId();
-                String request = String.join("|", "DELETE_EMAIL", clientStorage.getUserEmail(), emailId);
-                out.println(request);
-
-                String response = in.readLine();
-                try {
-                    openSockets.remove(deleteMailSocket);
-                    deleteMailSocket.close();
-                } catch (IOException e) {
-                    Platform.runLater(() -> AlertNotification.errorConnection("Errore nella chiusura socket per richiesta Eliminazione email: " + e.getMessage()));
+        // L'eliminazione dal server
+        String emailId = selectedEmail.getId();
+        connections.deleteEmail(clientStorage.getUserEmail(), emailId).whenComplete((response, error) -> {
+            if (error != null) {
+                Platform.runLater(() -> AlertNotification.errorConnection("Errore di comunicazione con il server."));
+                return;
+            }
+            boolean success = response.success();
+            Platform.runLater(() -> {
+                clientStorage.removeEmail(emailId);
+                if (inboxListView.getItems() != clientStorage.getInbox()) {
+                    inboxListView.getItems().removeIf(email -> email.getId().equals(emailId));
                 }
-                boolean success = response.contains("SUCCESS");
-                Platform.runLater(() -> {
-                    clientStorage.removeEmail(emailId);
-                });
+                if (success) {
+                    AlertNotification.showResponsetoSendMessage("Email eliminata", "L'email è stata eliminata con successo.");
+                } else {
+                    AlertNotification.showResponsetoSendMessage("Errore", "Errore durante l'eliminazione dell'email.");
+                }
+            });
+        });
+    }
+
+    /**
+     * Cerca sul server le mail che contengono le parole scritte e le mostra al posto della inbox, dalla più pertinente;
+     * con il campo vuoto torna la inbox. Le mail già scaricate vengono mostrate con l'anteprima, le altre con la sola
+     * intestazione; il testo viene chiesto al server quando la mail viene aperta.
+     */
+    @FXML
+    private void handleSearch() {
+        String query = searchField.getText().replace('|', ' ').trim();
+        if (query.isEmpty()) {
+            inboxListView.setItems(clientStorage.getInbox());
+            return;
+        }
+        connections.search(clientStorage.getUserEmail(), query, SEARCH_LIMIT).whenComplete((response, error) ->
                 Platform.runLater(() -> {
-                    if (success) {
-                        Platform.runLater(() -> AlertNotification.showResponsetoSendMessage("Email eliminata", "L'email è stata eliminata con successo."));
-                    } else {
-                        Platform.runLater(() -> AlertNotification.showResponsetoSendMessage("Errore", "Errore durante l'eliminazione dell'email."));
+                    if (error != null) {
+                        AlertNotification.errorConnection("Errore di comunicazione con il server.");
+                        return;
                     }
-                });
-            } catch (Exception e) {
-                Platform.runLater(() -> AlertNotification.errorConnection("Errore di comunicazione con il server."));
-            }
-        }).start();
+                    if (!response.success()) {
+                        AlertNotification.errorConnection("Errore nella ricerca: " + response.message());
+                        return;
+                    }
+                    Map<String, Email> downloaded = new HashMap<>();
+                    for (Email email : clientStorage.getInbox()) {
+                        downloaded.put(email.getId(), email);
+                    }
+                    List<Email> results = new ArrayList<>();
+                    for (Email match : response.emails()) {
+                        results.add(downloaded.getOrDefault(match.getId(), match));
+                    }
+                    inboxListView.setItems(FXCollections.observableArrayList(results));
+                }));
     }
 
     @FXML
@@ -357,6 +719,10 @@ public class InboxController {
             AlertNotification.emptyField("Nessuna email selezionata");
             return;
         }
+        withBody(selectedEmail, body -> openForward(selectedEmail, body));
+    }
+
+    private void openForward(Email selectedEmail, String body) {
         try {
             // Carica la vista WriteMail
             FXMLLoader loader = new FXMLLoader(getClass().getResource("/com/prog3/client/writeMail-view.fxml"));
@@ -365,6 +731,7 @@ public class InboxController {
             // Ottieni il controller della nuova vista
             WriteMailController writeMailController = loader.getController();
             writeMailController.setUserMail(clientStorage.getUserEmail());
+            writeMailController.setConnections(connections);
 
             // Pre-compila i campi della nuova vista
             String forwardSubject = "Fwd: " + selectedEmail.getSubject(); // Oggetto con prefisso "Fwd: "
@@ -374,7 +741,7 @@ public class InboxController {
                     Da: %s
                     A: %s
                     Oggetto: %s
-                    Testo: %s""", selectedEmail.getSender(), selectedEmail.getRecipientsAsString(), selectedEmail.getSubject(), selectedEmail.getBody());
+                    Testo: %s""", selectedEmail.getSender(), selectedEmail.getRecipientsAsString(), selectedEmail.getSubject(), body);
 
 
             writeMailController.initFields("", forwardSubject, originalMessage); // Il destinatario è vuoto
@@ -391,7 +758,7 @@ public class InboxController {
 
     @FXML
     private void handleLogout() {
-        safeClosing();
+        shutdown();
         // Chiude la finestra attuale
         Stage currentStage = (Stage) menuButton.getScene().getWindow();
         currentStage.close();
@@ -411,7 +778,7 @@ public class InboxController {
 
     @FXML
     private void updateConnectionStatus() {
-        openSockets.addListener((ListChangeListener<Socket>) change -> {
+        openConnections.addListener((ListChangeListener<ServerConnection>) change -> {
             while (change.next()) {
                 if (change.wasAdded()) {
                     Platform.runLater(() -> {
@@ -429,39 +796,36 @@ public class InboxController {
         });
     }
 
-    private static Email reconstructSingleEmail(String email) {
-        String[] emailParts = email.split("\\|");
-        String id = emailParts[0];
-        String sender = emailParts[1];
-        List<String> receivers = Arrays.asList(emailParts[2].split("#"));
-        String subject = emailParts[3];
-        String body = emailParts[4].replace("\\n", "\n").replace("\\|", "|");
-        String cleanedTimestamp = emailParts[5].replace("'", "").trim();
-        LocalDateTime timestamp = LocalDateTime.parse(cleanedTimestamp);
-
-        return new Email(id, sender, receivers, subject, body, timestamp);
-    }
-
     private void safeClosing() {
         Platform.runLater(() -> {
             Stage stage = (Stage) menuButton.getScene().getWindow();
-            stage.setOnCloseRequest(event -> {
-                if (emailChecker != null && !emailChecker.isShutdown()) {
-                    emailChecker.close();
-                }
-                // Close all sockets
-                synchronized (openSockets) {
-                    for (Socket socket : openSockets) {
-                        try {
-                            socket.close();
-                        } catch (IOException e) {
-                            System.err.println("Error closing socket: " + e.getMessage());
-                        }
-                    }
-                    openSockets.clear();
-                }
-            });
+            stage.setOnCloseRequest(event -> shutdown());
         });
     }
-}
 
+    /**
+     * Chiude la sessione: ferma polling e sottoscrizione, chiude tutte le connessioni e poi la cache. Chiamato sia alla
+     * chiusura della finestra sia al logout, perché stage.close() non genera onCloseRequest.
+     */
+    private void shutdown() {
+        // shutdownNow e non close: close aspetterebbe la fine di un long poll in corso
+        emailChecker.shutdownNow();
+        Thread subscriberThread = subscriber;
+        if (subscriberThread != null) {
+            subscriberThread.interrupt();
+        }
+        connections.close();
+        // chiudere le connessioni sblocca i thread fermi in lettura su long poll e sottoscrizione
+        synchronized (openConnections) {
+            for (ServerConnection connection : openConnections) {
+                try {
+                    connection.close();
+                } catch (IOException e) {
+                    System.err.println("Error closing socket: " + e.getMessage());
+                }
+            }
+            openConnections.clear();
+        }
+        clientStorage.closeCache();
+    }
+}
@@ -2,6 +2,8 @@ package com.prog3.client.controller;
 
 import com.prog3.client.library.AlertNotification;
 import com.prog3.client.library.Check;
+import com.prog3.client.library.ConnectionManager;
+import com.prog3.client.library.ServerConnection;
 import com.prog3.client.model.ClientStorage;
 
 import javafx.fxml.FXML;
@@ -15,11 +17,7 @@ import javafx.scene.control.TextField;
 import javafx.application.Platform;
 import javafx.stage.Stage;
 
-import java.io.BufferedReader;
 import java.io.IOException;
-import java.io.InputStreamReader;
-import java.io.PrintWriter;
-import java.net.Socket;
 
 
 public class LoginController {
@@ -35,15 +33,15 @@ public class LoginController {
     private String userGivenEmail;
     public ClientStorage clientStorage;
 
-    private Socket loginSocket;
-    private static final String SERVER_ADDRESS = "127.0.0.1";
-    private static final int SERVER_PORT = 8082;
+    // la connessione della sessione, passata alla inbox dopo il login
+    private ConnectionManager connections;
 
 
     @FXML
     public void initialize() {
         // Inizializza il modello del client
         clientStorage = new ClientStorage();
+        connections = new ConnectionManager();
 
         userMailTxtField.textProperty().addListener((observable, oldValue, newValue) -> {
             if (Check.isValidEmail(newValue.trim())) {
@@ -73,46 +71,27 @@ public class LoginController {
     @FXML
     private void handleLogInButtonClick() {
         loginBtn.setDisable(true);
-        // Avvia un thread per gestire la comunicazione con il server
-        new Thread(() -> {
-            try {
-                loginSocket = new Socket(SERVER_ADDRESS, SERVER_PORT);
-                BufferedReader in = new BufferedReader(new InputStreamReader(loginSocket.getInputStream()));
-                PrintWriter out = new PrintWriter(loginSocket.getOutputStream(), true);
-
-                sendLoginRequestToServer(out);
-
-                String response = in.readLine();
-                handleLoginResponse(response);
-
-                loginSocket.close();
-            } catch (IOException e) {
-                Platform.runLater(()->AlertNotification.errorConnection("Errore nella connessione al server"));
-                loginBtn.setDisable(false);
+        String userEmail = userGivenEmail;
+        connections.login(userEmail).whenComplete((response, error) -> {
+            if (error != null) {
+                Platform.runLater(() -> {
+                    AlertNotification.errorConnection("Errore nella connessione al server");
+                    loginBtn.setDisable(false);
+                });
+            } else {
+                handleLoginResponse(userEmail, response);
             }
-        }).start();
+        });
     }
 
 
-    private void sendLoginRequestToServer(PrintWriter out) {
-        // Create login request
-        String loginRequest = String.format("LOGIN|%s", userGivenEmail);
-        out.println(loginRequest);
-    }
-
-    private void handleLoginResponse(String responseString) {
+    private void handleLoginResponse(String userEmail, ServerConnection.Response response) {
         try {
-            String[] responseParts = responseString.split("\\|");
-            String status = responseParts[0];
-            String message = responseParts[1];
-
-            if ("SUCCESS".equalsIgnoreCase(status)) {
-                clientStorage.setUserEmail(userGivenEmail);
+            if (response.success()) {
+                clientStorage.setUserEmail(userEmail);
                 Platform.runLater(this::switchToInbox);
-            } else if ("ERROR".equalsIgnoreCase(status)) {
-                Platform.runLater(() -> AlertNotification.showAlertWrongEmail("Errore: " + message));
             } else {
-                Platform.runLater(() -> AlertNotification.emptyField("Risposta inattesa dal server: " + responseString));
+                Platform.runLater(() -> AlertNotification.showAlertWrongEmail("Errore: " + response.message()));
             }
         } catch (Exception e) {
             Platform.runLater(() -> AlertNotification.errorConnection("Errore nella comunicazione al server"));
@@ -131,6 +110,7 @@ public class LoginController {
 
             InboxController inboxController = loader.getController();
             inboxController.setClientStorage(clientStorage);
+            inboxController.setConnections(connections);
 
             Stage currentStage = (Stage) loginBtn.getScene().getWindow();
             currentStage.setTitle("Mail Client - Inbox");
@@ -143,15 +123,7 @@ public class LoginController {
     private void safeClosing() {
         Platform.runLater(() -> {
             Stage stage = (Stage) loginBtn.getScene().getWindow();
-            stage.setOnCloseRequest(event -> {
-                if (loginSocket != null && !loginSocket.isClosed()) {
-                    try {
-                        loginSocket.close();
-                    } catch (IOException e) {
-                        Platform.runLater(() -> AlertNotification.errorConnection("Errore nella chiusura del socket"));
-                    }
-                }
-            });
+            stage.setOnCloseRequest(event -> connections.close());
         });
     }
 
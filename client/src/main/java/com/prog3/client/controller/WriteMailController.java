@@ -2,6 +2,7 @@ package com.prog3.client.controller;
 
 import com.prog3.client.library.AlertNotification;
 import com.prog3.client.library.Check;
+import com.prog3.client.library.ConnectionManager;
 import javafx.fxml.FXML;
 import javafx.geometry.Insets;
 import javafx.application.Platform;
@@ -12,14 +13,13 @@ import javafx.scene.control.Button;
 import javafx.scene.control.TextArea;
 import javafx.scene.control.TextField;
 
-import java.io.BufferedReader;
-import java.io.IOException;
-import java.io.InputStreamReader;
-import java.io.PrintWriter;
-import java.net.Socket;
+import java.net.ConnectException;
 import java.time.LocalDateTime;
 import java.util.ArrayList;
 import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.TimeUnit;
 
 public class WriteMailController {
     @FXML
@@ -34,17 +34,20 @@ public class WriteMailController {
     private TextArea bodyField; // Area di testo per il corpo della mail
 
     private String userMail;
+    private ConnectionManager connections;
 
     private List<String> recipients;
 
     int insertIndex = 2;
-    private static final String SERVER_ADDRESS = "127.0.0.1";
-    private static final int SERVER_PORT = 8082;
 
     public void setUserMail(String userMail) {
         this.userMail = userMail;
     }
 
+    public void setConnections(ConnectionManager connections) {
+        this.connections = connections;
+    }
+
     @FXML
     public void initialize() {
         recipients = new ArrayList<>();
@@ -121,7 +124,7 @@ public class WriteMailController {
     @FXML
     private void handleSendEmail() {
         String subject = subjectField.getText();
-        String body = bodyField.getText().replace("\n", "\\n").replace("|", "\\|");
+        String body = bodyField.getText();
 
         // Controlla che i campi non siano vuoti
         if (recipients.isEmpty()) {
@@ -134,68 +137,40 @@ public class WriteMailController {
         if (body.isEmpty()) {
             body = " ";
         }
-        // Costruisci la stringa da inviare al server
-        String recipientsString = String.join("#", recipients); // Destinatari separati da #
-        String emailString = String.format(
-                "SEND_EMAIL|%s|%s|%s|%s|%s",
-                userMail,
-                recipientsString,
-                subject.trim(),
-                body.trim(),
-                LocalDateTime.now()
-        );
-
-        // Invia la stringa al server
-        new Thread(() -> {
-            Socket sendEmailSocket = null;
-            boolean connected = false;
-
-            while (!connected) {
-                try {
-                    sendEmailSocket = new Socket(SERVER_ADDRESS, SERVER_PORT);
-                    connected = true;
-                } catch (Exception e) {
-                    Platform.runLater(() -> AlertNotification.errorConnection("Errore di connesione al server, " +
-                            "Riprovo fra 20 secondi"));
-                    try {
-                        Thread.sleep(20000);
-                    } catch (InterruptedException ex) {
-                        throw new RuntimeException(ex);
-                    }
-                }
-            }
-
-            try { // Cambia indirizzo IP e porta se necessario
-                PrintWriter out = new PrintWriter(sendEmailSocket.getOutputStream(), true);
-                BufferedReader in = new BufferedReader(new InputStreamReader(sendEmailSocket.getInputStream()));
-
-                // Invia la richiesta al server
-                out.println(emailString);
+        List<String> emailRecipients = List.copyOf(recipients);
+        String emailSubject = subject.trim();
+        String emailBody = body;
+        LocalDateTime timestamp = LocalDateTime.now();
 
-                // Leggi la risposta del server
-                String response = in.readLine();
-                String[] responseParts = response.split("\\|");
-                String status = responseParts[0];
-                String message = responseParts[1];
-
-                try {
-                    sendEmailSocket.close();
-                } catch (IOException e) {
-                    throw new RuntimeException(e);
-                }
+        // Invia la mail al server
+        sendEmail(emailRecipients, emailSubject, emailBody, timestamp);
+    }
 
-                Platform.runLater(() -> {
-                    if ("SUCCESS".equalsIgnoreCase(status)) {
-                        AlertNotification.showResponsetoSendMessage("Successo", "Email inviata con successo.");
-                        closeStage(); // Pulisci i campi dopo l'invio
-                    } else {
-                        AlertNotification.showResponsetoSendMessage("Errore", message);
-                    }
-                });
-            } catch (Exception e) {
-                Platform.runLater(() -> AlertNotification.errorConnection("Errore di comunicazione con il server." + e.getMessage()));
+    /**
+     * Invia la mail sulla connessione della sessione. Se il server non è raggiungibile la mail non è stata inviata, e
+     * si riprova dopo 20 secondi.
+     */
+    private void sendEmail(List<String> emailRecipients, String emailSubject, String emailBody, LocalDateTime timestamp) {
+        connections.sendEmail(userMail, emailRecipients, emailSubject, emailBody, timestamp).whenComplete((response, error) -> {
+            Throwable cause = error instanceof CompletionException ? error.getCause() : error;
+            if (cause instanceof ConnectException) {
+                Platform.runLater(() -> AlertNotification.errorConnection("Errore di connesione al server, " +
+                        "Riprovo fra 20 secondi"));
+                CompletableFuture.delayedExecutor(20, TimeUnit.SECONDS)
+                        .execute(() -> sendEmail(emailRecipients, emailSubject, emailBody, timestamp));
+                return;
             }
-        }).start();
+            Platform.runLater(() -> {
+                if (cause != null) {
+                    AlertNotification.errorConnection("Errore di comunicazione con il server." + cause.getMessage());
+                } else if (response.success()) {
+                    AlertNotification.showResponsetoSendMessage("Successo", "Email inviata con successo.");
+                    closeStage(); // Pulisci i campi dopo l'invio
+                } else {
+                    AlertNotification.showResponsetoSendMessage("Errore", response.message());
+                }
+            });
+        });
     }
 
     private void closeStage() {
@@ -0,0 +1,292 @@
+package com.prog3.client.library;
+
+import com.prog3.client.model.Email;
+import com.prog3.protocol.FrameReader;
+import com.prog3.protocol.FrameWriter;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.net.ProtocolException;
+import java.time.LocalDateTime;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.function.Consumer;
+import java.util.function.Supplier;
+
+/**
+ * Connessione al server condivisa da tutte le richieste di una sessione, che restituiscono subito un CompletableFuture.
+ * La connessione resta aperta tra una richiesta e l'altra. Se il server conosce gli id di richiesta le richieste
+ * vengono inviate senza attendere le risposte precedenti, e un thread di lettura consegna ogni risposta alla richiesta
+ * con il suo id; altrimenti, o con il protocollo testuale, passano sulla connessione una alla volta.
+ * Se la connessione cade viene riaperta alla richiesta successiva: le richieste che leggono soltanto vengono ripetute
+ * una volta sulla nuova connessione, le altre falliscono perché il server potrebbe averle già eseguite.
+ * Long poll e subscribe restano su connessioni proprie: il server risponde in ordine, e terrebbero ferme le altre
+ * richieste.
+ */
+public class ConnectionManager implements Closeable {
+    // apre la connessione e scrive le richieste, nell'ordine in cui sono state fatte
+    private final ExecutorService writer = Executors.newSingleThreadExecutor(runnable -> {
+        Thread thread = new Thread(runnable, "mail-connection");
+        thread.setDaemon(true);
+        return thread;
+    });
+    private Link link;      // usata solo dal thread writer
+    private volatile boolean closed;
+
+    /**
+     * Esegue una richiesta su una connessione che non ha gli id di richiesta
+     */
+    @FunctionalInterface
+    private interface Request {
+        ServerConnection.Response send(ServerConnection connection) throws IOException;
+    }
+
+    /**
+     * @param request  la richiesta del protocollo binario con gli id
+     * @param frames   crea il lettore della risposta, uno per ogni tentativo
+     * @param fallback la stessa richiesta, per le connessioni senza id
+     */
+    private record Call(FrameWriter request, Supplier<ServerConnection.ResponseFrames> frames, Request fallback,
+                        CompletableFuture<ServerConnection.Response> result) {
+    }
+
+    private record InFlight(Call call, ServerConnection.ResponseFrames frames, int retries) {
+    }
+
+    public CompletableFuture<ServerConnection.Response> login(String userEmail) {
+        return submit(ServerConnection.loginFrame(userEmail), () -> ServerConnection.singleFrame(false),
+                connection -> connection.login(userEmail), true);
+    }
+
+    /**
+     * @param since vengono restituite solo le email successive a questa data
+     */
+    public CompletableFuture<ServerConnection.Response> getNewMessages(String userEmail, LocalDateTime since) {
+        return submit(ServerConnection.newMessagesFrame(userEmail, since), () -> ServerConnection.singleFrame(true),
+                connection -> connection.getNewMessages(userEmail, since), true);
+    }
+
+    /**
+     * Legge una pagina della casella, vedi ServerConnection.getMessagesPage. Se la pagina viene riletta dopo una
+     * connessione persa, onEmail può ricevere due volte la stessa mail.
+     */
+    public CompletableFuture<ServerConnection.Response> getMessagesPage(String userEmail, int limit, String cursor,
+                                                                        Consumer<Email> onEmail) {
+        return submit(ServerConnection.pageFrame(userEmail, limit, cursor), () -> ServerConnection.pageFrames(onEmail),
+                connection -> connection.getMessagesPage(userEmail, limit, cursor, onEmail), true);
+    }
+
+    /**
+     * Chiede le modifiche della casella dopo una sync precedente, vedi ServerConnection.sync
+     */
+    public CompletableFuture<ServerConnection.Response> sync(String userEmail, long since) {
+        return submit(ServerConnection.syncFrame(userEmail, since), () -> ServerConnection.syncFrames(since),
+                connection -> connection.sync(userEmail, since), true);
+    }
+
+    /**
+     * Cerca nella casella sul server, vedi ServerConnection.search
+     */
+    public CompletableFuture<ServerConnection.Response> search(String userEmail, String query, int limit) {
+        return submit(ServerConnection.searchFrame(userEmail, query, limit), ServerConnection::searchFrames,
+                connection -> connection.search(userEmail, query, limit), true);
+    }
+
+    /**
+     * Chiede il testo completo di una mail, vedi ServerConnection.fetchBody
+     */
+    public CompletableFuture<ServerConnection.Response> fetchBody(String userEmail, String emailId) {
+        return submit(ServerConnection.fetchBodyFrame(userEmail, emailId), () -> ServerConnection.singleFrame(false),
+                connection -> connection.fetchBody(userEmail, emailId), true);
+    }
+
+    public CompletableFuture<ServerConnection.Response> sendEmail(String userEmail, List<String> recipients,
+                                                                  String subject, String body,
+                                                                  LocalDateTime timestamp) {
+        return submit(ServerConnection.sendEmailFrame(userEmail, recipients, subject, body, timestamp),
+                () -> ServerConnection.singleFrame(false),
+                connection -> connection.sendEmail(userEmail, recipients, subject, body, timestamp), false);
+    }
+
+    public CompletableFuture<ServerConnection.Response> deleteEmail(String userEmail, String emailId) {
+        return submit(ServerConnection.deleteEmailFrame(userEmail, emailId), () -> ServerConnection.singleFrame(false),
+                connection -> connection.deleteEmail(userEmail, emailId), false);
+    }
+
+    /**
+     * @param repeatable true se la richiesta può essere ripetuta su una nuova connessione
+     */
+    private CompletableFuture<ServerConnection.Response> submit(FrameWriter request,
+                                                                Supplier<ServerConnection.ResponseFrames> frames,
+                                                                Request fallback, boolean repeatable) {
+        Call call = new Call(request, frames, fallback, new CompletableFuture<>());
+        schedule(call, repeatable ? 1 : 0, new IOException("Connessione chiusa"));
+        return call.result();
+    }
+
+    /**
+     * Mette in coda un tentativo della richiesta, o la fa fallire con error se la connessione è stata chiusa
+     */
+    private void schedule(Call call, int retries, IOException error) {
+        if (closed) {
+            call.result().completeExceptionally(error);
+            return;
+        }
+        try {
+            writer.execute(() -> execute(call, retries));
+        } catch (RejectedExecutionException e) {
+            call.result().completeExceptionally(error);
+        }
+    }
+
+    // sul thread writer
+    private void execute(Call call, int retries) {
+        if (closed) {
+            call.result().completeExceptionally(new IOException("Connessione chiusa"));
+            return;
+        }
+        Link current = link;
+        try {
+            if (current == null || current.isBroken()) {
+                current = new Link();
+                link = current;
+            }
+            if (current.connection.isMultiplexed()) {
+                current.send(call, retries);
+            } else {
+                call.result().complete(call.fallback().send(current.connection));
+            }
+        } catch (IOException e) {
+            if (current != null) {
+                current.breakDown(e);
+            }
+            retry(call, retries, e);
+        } catch (RuntimeException e) {
+            call.result().completeExceptionally(e);
+        }
+    }
+
+    private void retry(Call call, int retries, IOException error) {
+        if (retries > 0) {
+            schedule(call, retries - 1, error);
+        } else {
+            call.result().completeExceptionally(error);
+        }
+    }
+
+    /**
+     * Chiude la connessione; le richieste non ancora concluse falliscono
+     */
+    @Override
+    public void close() {
+        if (closed) {
+            return;
+        }
+        closed = true;
+        try {
+            // dopo le richieste già in coda, che falliscono senza aprire connessioni
+            writer.execute(() -> {
+                if (link != null) {
+                    link.breakDown(new IOException("Connessione chiusa"));
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            // già chiuso
+        }
+        writer.shutdown();
+    }
+
+    /**
+     * Una connessione aperta, con le richieste inviate che attendono la risposta
+     */
+    private final class Link {
+        private final ServerConnection connection;
+        private final Map<Integer, InFlight> inFlight = new HashMap<>();
+        private boolean broken;
+
+        Link() throws IOException {
+            connection = new ServerConnection();
+            if (connection.isMultiplexed()) {
+                Thread reader = new Thread(this::readResponses, "mail-connection-reader");
+                reader.setDaemon(true);
+                reader.start();
+            }
+        }
+
+        synchronized boolean isBroken() {
+            return broken;
+        }
+
+        // sul thread writer
+        void send(Call call, int retries) throws IOException {
+            int requestId;
+            synchronized (this) {
+                if (broken) {
+                    throw new IOException("Connessione persa");
+                }
+                requestId = connection.nextRequestId();
+                inFlight.put(requestId, new InFlight(call, call.frames().get(), retries));
+            }
+            try {
+                connection.send(call.request(), requestId);
+            } catch (IOException e) {
+                breakDown(e);       // la richiesta è tra quelle in attesa, e viene ripetuta o fatta fallire da qui
+            }
+        }
+
+        private void readResponses() {
+            try {
+                while (true) {
+                    FrameReader frame = connection.receive();
+                    InFlight pending;
+                    synchronized (this) {
+                        pending = inFlight.get(frame.requestId());
+                    }
+                    if (pending == null) {
+                        throw new ProtocolException("Risposta a una richiesta sconosciuta: " + frame.requestId());
+                    }
+                    ServerConnection.Response response = pending.frames().read(frame);
+                    if (response != null) {
+                        synchronized (this) {
+                            inFlight.remove(frame.requestId());
+                        }
+                        pending.call().result().complete(response);
+                    }
+                }
+            } catch (IOException e) {
+                breakDown(e);
+            } catch (RuntimeException e) {
+                breakDown(new IOException("Risposta non valida: " + e.getMessage(), e));
+            }
+        }
+
+        /**
+         * Chiude la connessione persa: le richieste in attesa vengono ripetute su una nuova connessione, se possibile
+         */
+        void breakDown(IOException error) {
+            List<InFlight> lost;
+            synchronized (this) {
+                if (broken) {
+                    return;
+                }
+                broken = true;
+                lost = new ArrayList<>(inFlight.values());
+                inFlight.clear();
+            }
+            try {
+                connection.close();
+            } catch (IOException e) {
+                // la connessione è comunque inutilizzabile
+            }
+            for (InFlight pending : lost) {
+                retry(pending.call(), pending.retries(), error);
+            }
+        }
+    }
+}
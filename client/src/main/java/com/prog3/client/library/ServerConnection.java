@@ -0,0 +1,622 @@
+package com.prog3.client.library;
+
+import com.prog3.client.model.Email;
+import com.prog3.protocol.FrameReader;
+import com.prog3.protocol.FrameWriter;
+import com.prog3.protocol.Protocol;
+
+import java.io.*;
+import java.net.ProtocolException;
+import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.time.LocalDateTime;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.function.Consumer;
+
+/**
+ * Connessione al server per una o più richieste.
+ * Appena aperta prova a negoziare il protocollo binario (frame con lunghezza, opcode e campi tipizzati, senza escaping
+ * del testo); se il server conosce solo il protocollo testuale risponde con una riga di errore e la connessione viene
+ * riaperta con il protocollo a righe separate da "|". Con -Dmailfx.protocol=text si usa sempre il protocollo testuale.
+ * <p>
+ * Pagine e sync chiedono le mail con la sola anteprima del testo (vedi Protocol.preview); il testo completo si legge
+ * con fetchBody. Un server che non conosce le anteprime invia comunque i testi completi, che restano nelle mail.
+ */
+public class ServerConnection implements Closeable {
+    private static final String SERVER_ADDRESS = "127.0.0.1";
+    private static final int SERVER_PORT = 8082;
+    // diventa true al primo server che non conosce il protocollo binario, per non rinegoziare ad ogni connessione
+    private static volatile boolean textOnly = "text".equalsIgnoreCase(System.getProperty("mailfx.protocol"));
+
+    private final Socket socket;
+    private final boolean binary;
+    // con un server che parla REQUEST_ID_VERSION ogni frame porta l'id della richiesta
+    private boolean tagged;
+    private int nextRequestId = 1;
+    private DataInputStream frameIn;
+    private OutputStream frameOut;
+    private BufferedReader lineIn;
+    private PrintWriter lineOut;
+    private int heartbeatMillis;
+
+    /**
+     * Legge i frame della risposta a una richiesta, uno alla volta: quasi tutte le risposte sono un solo frame, una
+     * pagina è un frame di intestazione seguito da un frame per mail.
+     */
+    interface ResponseFrames {
+        /**
+         * @return la risposta, null se mancano altri frame
+         */
+        Response read(FrameReader frame) throws ProtocolException;
+    }
+
+    /**
+     * Esito di una richiesta: il messaggio del server e, per le richieste che leggono la casella, le email ricevute.
+     * nextCursor è il cursore della pagina successiva, null dopo l'ultima pagina o per le altre richieste; changes
+     * accompagna le email aggiunte restituite da sync, ed è null per le altre richieste.
+     */
+    public record Response(boolean success, String message, List<Email> emails, String nextCursor, Changes changes) {
+        static Response of(boolean success, String message) {
+            return new Response(success, message, List.of(), null, null);
+        }
+
+        static Response of(List<Email> emails) {
+            return new Response(true, "", emails, null, null);
+        }
+
+        /**
+         * @return la risposta a una sync di una casella che non è cambiata: nessuna modifica, stesso numero di sequenza
+         */
+        static Response notModified(long sequence) {
+            return new Response(true, "", List.of(), null, new Changes(sequence, false, List.of()));
+        }
+    }
+
+    /**
+     * Il resto della risposta a sync
+     *
+     * @param sequence il numero di sequenza da inviare alla prossima sync
+     * @param reset    true se le email restituite sono tutta la casella e sostituiscono quelle che il client ha
+     * @param removed  gli id delle email eliminate
+     */
+    public record Changes(long sequence, boolean reset, List<String> removed) {
+    }
+
+    /**
+     * Apre la connessione e sceglie il protocollo
+     *
+     * @throws IOException se il server non è raggiungibile
+     */
+    public ServerConnection() throws IOException {
+        Socket opened = new Socket(SERVER_ADDRESS, SERVER_PORT);
+        boolean negotiated = false;
+        if (!textOnly) {
+            try {
+                negotiated = negotiateBinary(opened);
+            } catch (IOException e) {
+                opened.close();
+                throw e;
+            }
+            if (!negotiated) {
+                // il socket ha già ricevuto la riga di errore del server testuale
+                textOnly = true;
+                opened.close();
+                opened = new Socket(SERVER_ADDRESS, SERVER_PORT);
+            }
+        }
+        socket = opened;
+        binary = negotiated;
+        if (!binary) {
+            lineIn = new BufferedReader(new InputStreamReader(socket.getInputStream()));
+            lineOut = new PrintWriter(socket.getOutputStream(), true);
+        }
+    }
+
+    private boolean negotiateBinary(Socket socket) throws IOException {
+        frameOut = new BufferedOutputStream(socket.getOutputStream());
+        frameOut.write(Protocol.handshake(Protocol.VERSION));
+        frameOut.flush();
+
+        frameIn = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+        int first = frameIn.read();
+        if (first == -1) {
+            throw new EOFException("Connessione chiusa dal server");
+        }
+        if (first != Protocol.MAGIC[0]) {
+            return false;
+        }
+        byte[] handshake = new byte[Protocol.HANDSHAKE_LENGTH];
+        handshake[0] = (byte) first;
+        frameIn.readFully(handshake, 1, handshake.length - 1);
+        int version = Protocol.handshakeVersion(handshake);
+        if (version < 1 || version > Protocol.VERSION) {
+            throw new ProtocolException("Versione del protocollo non supportata: " + version);
+        }
+        tagged = version >= Protocol.REQUEST_ID_VERSION;
+        return true;
+    }
+
+    /**
+     * @return true se le richieste possono essere inviate senza attendere le risposte precedenti, perché ogni risposta
+     * porta l'id della sua richiesta
+     */
+    boolean isMultiplexed() {
+        return binary && tagged;
+    }
+
+    /**
+     * @return l'id della prossima richiesta, mai PUSH_REQUEST_ID
+     */
+    int nextRequestId() {
+        int requestId = nextRequestId++;
+        if (nextRequestId == Protocol.PUSH_REQUEST_ID) {
+            nextRequestId++;
+        }
+        return requestId;
+    }
+
+    /**
+     * Invia una richiesta del protocollo binario, con il suo id se il server li conosce
+     */
+    void send(FrameWriter request, int requestId) throws IOException {
+        if (tagged) {
+            request.writeTo(frameOut, requestId);
+        } else {
+            request.writeTo(frameOut);
+        }
+        frameOut.flush();
+    }
+
+    /**
+     * Legge il prossimo frame del protocollo binario
+     */
+    FrameReader receive() throws IOException {
+        return FrameReader.readFrom(frameIn, tagged);
+    }
+
+    static FrameWriter loginFrame(String userEmail) {
+        return new FrameWriter(Protocol.LOGIN).writeString(userEmail);
+    }
+
+    static FrameWriter newMessagesFrame(String userEmail, LocalDateTime since) {
+        return new FrameWriter(Protocol.GET_NEW_MESSAGES).writeString(userEmail).writeTimestamp(since);
+    }
+
+    static FrameWriter pageFrame(String userEmail, int limit, String cursor) {
+        return new FrameWriter(Protocol.GET_MESSAGES_PAGE)
+                .writeString(userEmail)
+                .writeInt(limit)
+                .writeString(cursor == null ? "" : cursor)
+                .writeInt(Protocol.PREVIEW_LISTING);
+    }
+
+    static FrameWriter sendEmailFrame(String userEmail, List<String> recipients, String subject, String body,
+                                      LocalDateTime timestamp) {
+        return new FrameWriter(Protocol.SEND_EMAIL, 64 + 3 * body.length())
+                .writeString(userEmail)
+                .writeStrings(recipients)
+                .writeString(subject)
+                .writeString(body)
+                .writeTimestamp(timestamp);
+    }
+
+    static FrameWriter deleteEmailFrame(String userEmail, String emailId) {
+        return new FrameWriter(Protocol.DELETE_EMAIL).writeString(userEmail).writeId(emailId);
+    }
+
+    public Response login(String userEmail) throws IOException {
+        if (binary) {
+            return sendFrame(loginFrame(userEmail), singleFrame(false));
+        }
+        return sendLine(String.join("|", "LOGIN", userEmail), false);
+    }
+
+    public Response getAllMessages(String userEmail) throws IOException {
+        if (binary) {
+            return sendFrame(new FrameWriter(Protocol.GET_ALL_MESSAGES).writeString(userEmail), singleFrame(true));
+        }
+        return sendLine(String.join("|", "GET_ALL_MESSAGES", userEmail), true);
+    }
+
+    /**
+     * @param since vengono restituite solo le email successive a questa data
+     */
+    public Response getNewMessages(String userEmail, LocalDateTime since) throws IOException {
+        if (binary) {
+            return sendFrame(newMessagesFrame(userEmail, since), singleFrame(true));
+        }
+        return sendLine(String.join("|", "GET_NEW_MESSAGES", userEmail, since.toString()), true);
+    }
+
+    /**
+     * Come getNewMessages, ma se non ci sono mail successive a since il server risponde solo quando ne arriva una o
+     * quando scadono timeoutMillis millisecondi. Un server che non conosce la richiesta risponde con un errore.
+     */
+    public Response waitNewMessages(String userEmail, LocalDateTime since, int timeoutMillis) throws IOException {
+        if (binary) {
+            return sendFrame(new FrameWriter(Protocol.WAIT_NEW_MESSAGES)
+                    .writeString(userEmail)
+                    .writeTimestamp(since)
+                    .writeInt(timeoutMillis), singleFrame(true));
+        }
+        return sendLine(String.join("|", "WAIT_NEW_MESSAGES", userEmail, since.toString(),
+                String.valueOf(timeoutMillis)), true);
+    }
+
+    /**
+     * Legge una pagina della casella, dalla mail più recente, con le sole anteprime. Le email arrivano una alla volta e
+     * vengono passate a onEmail appena lette, così possono essere mostrate prima che la pagina sia completa.
+     * Un server che non conosce le pagine risponde con tutta la casella, in una sola pagina.
+     *
+     * @param cursor il nextCursor della pagina precedente, null per la prima pagina
+     */
+    public Response getMessagesPage(String userEmail, int limit, String cursor, Consumer<Email> onEmail)
+            throws IOException {
+        if (binary) {
+            return sendFrame(pageFrame(userEmail, limit, cursor), pageFrames(onEmail));
+        }
+        lineOut.println(String.join("|", "GET_MESSAGES_PAGE", userEmail, String.valueOf(limit),
+                cursor == null ? "" : cursor, "PREVIEWS"));
+        String[] header = readLine().split("\\|", -1);
+        if (!"SUCCESS".equalsIgnoreCase(header[0])) {
+            String message = header.length > 1 ? header[1] : "";
+            if (message.equals("Unknown request type")) {
+                Response all = getAllMessages(userEmail);
+                all.emails().forEach(onEmail);
+                return all;
+            }
+            if (message.equals("Invalid page request") && cursor == null) {
+                // un server che non conosce le anteprime legge il cursore vuoto come non valido
+                lineOut.println(String.join("|", "GET_MESSAGES_PAGE", userEmail, String.valueOf(limit)));
+                header = readLine().split("\\|", -1);
+            }
+            if (!"SUCCESS".equalsIgnoreCase(header[0])) {
+                return Response.of(false, header.length > 1 ? header[1] : "");
+            }
+        }
+        int count = Integer.parseInt(header[1]);
+        List<Email> emails = new ArrayList<>(count);
+        for (int i = 0; i < count; i++) {
+            Email email = reconstructSingleEmail(readLine(), true);
+            emails.add(email);
+            onEmail.accept(email);
+        }
+        return new Response(true, "", emails, header[2].isEmpty() ? null : header[2], null);
+    }
+
+    static FrameWriter searchFrame(String userEmail, String query, int limit) {
+        return new FrameWriter(Protocol.SEARCH).writeString(userEmail).writeString(query).writeInt(limit);
+    }
+
+    /**
+     * Cerca nella casella, sul server, le email che contengono tutte le parole della query nel mittente, nei
+     * destinatari, nell'oggetto o nel testo; l'ultima parola può essere anche solo l'inizio di una parola.
+     * Le email restituite, dalla più pertinente, hanno solo l'intestazione: il testo è vuoto.
+     * Un server che non conosce SEARCH risponde con un errore.
+     *
+     * @param query non deve contenere "|"
+     */
+    public Response search(String userEmail, String query, int limit) throws IOException {
+        if (binary) {
+            return sendFrame(searchFrame(userEmail, query, limit), searchFrames());
+        }
+        lineOut.println(String.join("|", "SEARCH", userEmail, query, String.valueOf(limit)));
+        String[] header = readLine().split("\\|", 2);
+        if (!"SUCCESS".equalsIgnoreCase(header[0])) {
+            return Response.of(false, header.length > 1 ? header[1] : "");
+        }
+        int count = Integer.parseInt(header[1]);
+        List<Email> emails = new ArrayList<>(count);
+        for (int i = 0; i < count; i++) {
+            String[] parts = readLine().split("\\|", -1);
+            emails.add(new Email(parts[0], parts[1], Arrays.asList(parts[2].split("#")), parts[3], "",
+                    LocalDateTime.parse(parts[4])));
+        }
+        return Response.of(emails);
+    }
+
+    static FrameWriter syncFrame(String userEmail, long since) {
+        return new FrameWriter(Protocol.SYNC)
+                .writeString(userEmail)
+                .writeLong(since)
+                .writeInt(Protocol.PREVIEW_LISTING);
+    }
+
+    /**
+     * Chiede le modifiche della casella successive al numero di sequenza di una sync precedente: le email arrivate,
+     * anche con una data più vecchia dell'ultima mail ricevuta, con le sole anteprime, e gli id di quelle eliminate.
+     * Se la casella non è cambiata il server risponde solo NOT_MODIFIED, senza leggerla. Un server che non conosce
+     * SYNC risponde con un errore.
+     *
+     * @param since il sequence della sync precedente; con un valore negativo il server restituisce solo il numero di
+     *              sequenza attuale, da cui partire dopo aver letto la casella in altro modo
+     */
+    public Response sync(String userEmail, long since) throws IOException {
+        if (binary) {
+            return sendFrame(syncFrame(userEmail, since), syncFrames(since));
+        }
+        lineOut.println(String.join("|", "SYNC", userEmail, String.valueOf(since), "PREVIEWS"));
+        String line = readLine();
+        if (line.equals("NOT_MODIFIED")) {
+            return Response.notModified(since);
+        }
+        String[] header = line.split("\\|", -1);
+        if (!"SUCCESS".equalsIgnoreCase(header[0])) {
+            return Response.of(false, header.length > 1 ? header[1] : "");
+        }
+        int count = Integer.parseInt(header[3]);
+        List<Email> emails = new ArrayList<>(count);
+        for (int i = 0; i < count; i++) {
+            emails.add(reconstructSingleEmail(readLine(), true));
+        }
+        List<String> removed = header[4].isEmpty() ? List.of() : Arrays.asList(header[4].split("#"));
+        return new Response(true, "", emails, null,
+                new Changes(Long.parseLong(header[1]), header[2].equals("RESET"), removed));
+    }
+
+    /**
+     * Trasforma la connessione in un canale di notifiche: dopo una risposta positiva il server non legge altre
+     * richieste e invia ogni nuova mail di userEmail, da leggere con readPush. Il messaggio della risposta è
+     * l'intervallo di heartbeat in millisecondi.
+     * Un server che non conosce SUBSCRIBE risponde con un errore: il client continua a chiedere le nuove mail.
+     */
+    public Response subscribe(String userEmail) throws IOException {
+        Response response;
+        if (binary) {
+            response = sendFrame(new FrameWriter(Protocol.SUBSCRIBE).writeString(userEmail),
+                    frame -> frame.type() == Protocol.SUCCESS
+                            ? Response.of(true, String.valueOf(frame.readInt()))
+                            : Response.of(false, frame.readString()));
+        } else {
+            response = sendLine(String.join("|", "SUBSCRIBE", userEmail), false);
+        }
+        if (response.success()) {
+            heartbeatMillis = Integer.parseInt(response.message());
+            // senza mail né heartbeat per due intervalli la connessione è considerata persa
+            socket.setSoTimeout(2 * heartbeatMillis);
+        }
+        return response;
+    }
+
+    /**
+     * Attende la prossima notifica di una connessione su cui è stato fatto subscribe
+     *
+     * @return la nuova mail, null se il server ha inviato solo un heartbeat
+     * @throws SocketTimeoutException se il server non invia niente per due intervalli di heartbeat
+     */
+    public Email readPush() throws IOException {
+        if (heartbeatMillis == 0) {
+            throw new IllegalStateException("Connessione senza subscribe");
+        }
+        if (binary) {
+            FrameReader push = receive();
+            return switch (push.type()) {
+                case Protocol.PUSH_EMAIL -> readEmail(push, false);
+                case Protocol.HEARTBEAT -> null;
+                default -> throw new ProtocolException("Notifica non valida: " + push.type());
+            };
+        }
+        String[] push = readLine().split("\\|", 2);
+        return switch (push[0]) {
+            case "NEW_EMAIL" -> reconstructSingleEmail(push[1], false);
+            case "HEARTBEAT" -> null;
+            default -> throw new ProtocolException("Notifica non valida: " + push[0]);
+        };
+    }
+
+    /**
+     * @param body il testo della mail, senza escaping: lo aggiunge il protocollo testuale se serve
+     */
+    public Response sendEmail(String userEmail, List<String> recipients, String subject, String body,
+                              LocalDateTime timestamp) throws IOException {
+        if (binary) {
+            return sendFrame(sendEmailFrame(userEmail, recipients, subject, body, timestamp), singleFrame(false));
+        }
+        String escapedBody = Protocol.escape(body).trim();
+        return sendLine(String.join("|", "SEND_EMAIL", userEmail, String.join("#", recipients), subject,
+                escapedBody, timestamp.toString()), false);
+    }
+
+    static FrameWriter fetchBodyFrame(String userEmail, String emailId) {
+        return new FrameWriter(Protocol.FETCH_BODY).writeString(userEmail).writeId(emailId);
+    }
+
+    /**
+     * Chiede il testo completo di una mail, che pagine e sync portano solo come anteprima: è il messaggio della
+     * risposta. Un server che non conosce FETCH_BODY risponde con un errore.
+     */
+    public Response fetchBody(String userEmail, String emailId) throws IOException {
+        if (binary) {
+            return sendFrame(fetchBodyFrame(userEmail, emailId), singleFrame(false));
+        }
+        Response response = sendLine(String.join("|", "FETCH_BODY", userEmail, emailId), false);
+        return response.success() ? Response.of(true, fromLineText(response.message())) : response;
+    }
+
+    public Response deleteEmail(String userEmail, String emailId) throws IOException {
+        if (binary) {
+            return sendFrame(deleteEmailFrame(userEmail, emailId), singleFrame(false));
+        }
+        return sendLine(String.join("|", "DELETE_EMAIL", userEmail, emailId), false);
+    }
+
+    private Response sendFrame(FrameWriter request, ResponseFrames frames) throws IOException {
+        int requestId = nextRequestId();
+        send(request, requestId);
+        while (true) {
+            FrameReader frame = receive();
+            if (tagged && frame.requestId() != requestId) {
+                throw new ProtocolException("Risposta a una richiesta sconosciuta: " + frame.requestId());
+            }
+            Response response = frames.read(frame);
+            if (response != null) {
+                return response;
+            }
+        }
+    }
+
+    /**
+     * @param withEmails true per le richieste che leggono la casella
+     */
+    static ResponseFrames singleFrame(boolean withEmails) {
+        return response -> {
+            if (response.type() != Protocol.SUCCESS) {
+                return Response.of(false, response.readString());
+            }
+            if (!withEmails) {
+                return Response.of(true, response.readString());
+            }
+            int count = response.readCount();
+            List<Email> emails = new ArrayList<>(count);
+            for (int i = 0; i < count; i++) {
+                emails.add(readEmail(response, false));
+            }
+            return Response.of(emails);
+        };
+    }
+
+    /**
+     * @param onEmail riceve ogni mail della pagina appena letta
+     */
+    static ResponseFrames pageFrames(Consumer<Email> onEmail) {
+        return new ResponseFrames() {
+            private List<Email> emails;
+            private int count;
+            private String nextCursor;
+
+            @Override
+            public Response read(FrameReader frame) throws ProtocolException {
+                if (emails == null) {
+                    if (frame.type() != Protocol.SUCCESS) {
+                        return Response.of(false, frame.readString());
+                    }
+                    count = frame.readInt();
+                    nextCursor = frame.readString();
+                    emails = new ArrayList<>(Math.min(count, 1024));
+                } else {
+                    Email email = readEmail(frame, true);
+                    emails.add(email);
+                    onEmail.accept(email);
+                }
+                return emails.size() < count ? null
+                        : new Response(true, "", emails, nextCursor.isEmpty() ? null : nextCursor, null);
+            }
+        };
+    }
+
+    /**
+     * @param since il numero di sequenza inviato con la richiesta
+     */
+    static ResponseFrames syncFrames(long since) {
+        return response -> {
+            if (response.type() == Protocol.NOT_MODIFIED) {
+                return Response.notModified(since);
+            }
+            if (response.type() != Protocol.SUCCESS) {
+                return Response.of(false, response.readString());
+            }
+            long sequence = response.readLong();
+            boolean reset = response.readInt() != 0;
+            List<String> removed = response.readStrings();
+            int count = response.readCount();
+            List<Email> emails = new ArrayList<>(count);
+            for (int i = 0; i < count; i++) {
+                emails.add(readEmail(response, true));
+            }
+            return new Response(true, "", emails, null, new Changes(sequence, reset, removed));
+        };
+    }
+
+    static ResponseFrames searchFrames() {
+        return response -> {
+            if (response.type() != Protocol.SUCCESS) {
+                return Response.of(false, response.readString());
+            }
+            int count = response.readCount();
+            List<Email> emails = new ArrayList<>(count);
+            for (int i = 0; i < count; i++) {
+                emails.add(new Email(response.readId(), response.readString(), response.readStrings(),
+                        response.readString(), "", response.readTimestamp()));
+            }
+            return Response.of(emails);
+        };
+    }
+
+    /**
+     * @param listed true se la mail è di una richiesta con le sole anteprime
+     */
+    private static Email readEmail(FrameReader frame, boolean listed) throws ProtocolException {
+        return toEmail(frame.readId(), frame.readString(), frame.readStrings(), frame.readString(), frame.readString(),
+                frame.readTimestamp(), listed);
+    }
+
+    /**
+     * @param text   il testo ricevuto: l'anteprima o il testo completo
+     * @param listed true se il server doveva inviare l'anteprima; un server che non conosce le anteprime invia il testo
+     *               completo, riconosciuto perché diverso dalla sua anteprima
+     */
+    private static Email toEmail(String id, String sender, List<String> recipients, String subject, String text,
+                                 LocalDateTime timestamp, boolean listed) {
+        String preview = Protocol.preview(text);
+        return new Email(id, sender, recipients, subject, preview, listed && preview.equals(text) ? null : text,
+                timestamp);
+    }
+
+    private String readLine() throws IOException {
+        String line = lineIn.readLine();
+        if (line == null) {
+            throw new EOFException("Connessione chiusa dal server");
+        }
+        return line;
+    }
+
+    private Response sendLine(String request, boolean withEmails) throws IOException {
+        lineOut.println(request);
+        String responseString = readLine();
+
+        String[] responseParts = responseString.split("\\|", 2);
+        boolean success = "SUCCESS".equalsIgnoreCase(responseParts[0]);
+        String message = responseParts.length > 1 ? responseParts[1] : "";
+        if (!success || !withEmails) {
+            return Response.of(success, message);
+        }
+        if (message.equalsIgnoreCase("No messages found")) {
+            return Response.of(List.of());
+        }
+        List<Email> emails = new ArrayList<>();
+        for (String email : message.split("±")) {
+            emails.add(reconstructSingleEmail(email, false));
+        }
+        return Response.of(emails);
+    }
+
+    /**
+     * @param listed see toEmail
+     */
+    static Email reconstructSingleEmail(String email, boolean listed) {
+        String[] emailParts = email.split("\\|");
+        String id = emailParts[0];
+        String sender = emailParts[1];
+        List<String> receivers = Arrays.asList(emailParts[2].split("#"));
+        String subject = emailParts[3];
+        String body = fromLineText(emailParts[4]);
+        String cleanedTimestamp = emailParts[5].replace("'", "").trim();
+        LocalDateTime timestamp = LocalDateTime.parse(cleanedTimestamp);
+
+        return toEmail(id, sender, receivers, subject, body, timestamp, listed);
+    }
+
+    /**
+     * @return il testo senza l'escaping del protocollo testuale
+     */
+    private static String fromLineText(String text) {
+        return Protocol.unescape(text);
+    }
+
+    @Override
+    public void close() throws IOException {
+        socket.close();
+    }
+}
@@ -0,0 +1,51 @@
+package com.prog3.client.model;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+
+/**
+ * Testi completi delle mail lette più di recente, fino a maxChars caratteri in tutto: quando il limite viene superato
+ * si scarta il testo usato meno di recente, che se serve di nuovo viene chiesto al server.
+ * Usata sia dal thread JavaFX sia dai thread che ricevono le risposte.
+ */
+class BodyCache {
+    // in ordine di accesso, dal meno recente
+    private final LinkedHashMap<String, String> bodies = new LinkedHashMap<>(16, 0.75f, true);
+    private final long maxChars;
+    private long chars;
+
+    BodyCache(long maxChars) {
+        this.maxChars = maxChars;
+    }
+
+    /**
+     * @return il testo della mail, null se non è in cache
+     */
+    synchronized String get(String emailId) {
+        return bodies.get(emailId);
+    }
+
+    /**
+     * Aggiunge il testo, o lo rende il più recente se c'è già; un testo più lungo del limite non viene tenuto
+     */
+    synchronized void put(String emailId, String body) {
+        if (body.length() > maxChars) {
+            remove(emailId);
+            return;
+        }
+        String previous = bodies.put(emailId, body);
+        chars += body.length() - (previous == null ? 0 : previous.length());
+        Iterator<String> eldest = bodies.values().iterator();
+        while (chars > maxChars) {
+            chars -= eldest.next().length();
+            eldest.remove();
+        }
+    }
+
+    synchronized void remove(String emailId) {
+        String removed = bodies.remove(emailId);
+        if (removed != null) {
+            chars -= removed.length();
+        }
+    }
+}
@@ -3,11 +3,35 @@ package com.prog3.client.model;
 import javafx.collections.FXCollections;
 import javafx.collections.ObservableList;
 
+import java.io.IOException;
+import java.nio.file.Path;
 import java.time.LocalDateTime;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Comparator;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
 
 public class ClientStorage {
+    // le cache delle inbox, una per utente; si può cambiare con -Dmailfx.cache.dir
+    private static final Path CACHE_DIRECTORY = Path.of(System.getProperty("mailfx.cache.dir",
+            Path.of(System.getProperty("user.home"), ".mailfx", "cache").toString()));
+
+    // i testi completi tenuti in memoria, in caratteri; si può cambiare con -Dmailfx.bodyCache.maxChars
+    private static final long MAX_BODY_CHARS = Long.getLong("mailfx.bodyCache.maxChars", 4_000_000);
+
+    // l'ordine della inbox, dalla mail più recente
+    private static final Comparator<Email> NEWEST_FIRST = Comparator.comparing(Email::getTimestamp).reversed();
+
     private String userEmail;
     private final ObservableList<Email> inbox;
+    // gli id delle mail nella inbox, per scartare i duplicati senza scorrerla; come la inbox, usato dal thread JavaFX
+    private final Set<String> ids = new HashSet<>();
+    // la inbox tiene solo le anteprime, i testi completi stanno qui
+    private final BodyCache bodies = new BodyCache(MAX_BODY_CHARS);
+    private volatile InboxCache cache;     // null finché non viene aperta con openCache
 
     public ClientStorage() {
         this.userEmail = null;
@@ -42,13 +66,84 @@ public class ClientStorage {
     }
 
     /**
-     * Aggiunge un'email all'inbox.
+     * Aggiunge un'email all'inbox, se non c'è già: la stessa mail può arrivare sia come notifica sia con la richiesta
+     * delle nuove mail. La mail viene inserita al suo posto, la inbox resta ordinata per data decrescente.
      *
      * @param email L'email da aggiungere.
      */
     public void addEmail(Email email) {
-        inbox.add(email);
-        FXCollections.sort(inbox, (e1, e2) -> e2.getTimestamp().compareTo(e1.getTimestamp())); // Ordina per data decrescente
+        addEmails(List.of(email));
+    }
+
+    /**
+     * Aggiunge un gruppo di email all'inbox, scartando quelle già presenti, con una sola modifica della lista: le
+     * email vengono ordinate e unite alla inbox, invece di riordinarla dopo ogni inserimento.
+     *
+     * @param emails Le email da aggiungere, in qualsiasi ordine.
+     */
+    public void addEmails(Collection<Email> emails) {
+        List<Email> added = merge(emails);
+        if (cache != null) {
+            added.forEach(cache::add);
+        }
+    }
+
+    /**
+     * @return le email che non erano già nella inbox, senza testo completo: quello ricevuto va nella cache dei testi
+     */
+    private List<Email> merge(Collection<Email> emails) {
+        List<Email> batch = new ArrayList<>(emails.size());
+        for (Email email : emails) {
+            if (email.getBody() != null) {
+                bodies.put(email.getId(), email.getBody());
+            }
+            if (ids.add(email.getId())) {
+                batch.add(email.withoutBody());
+            }
+        }
+        if (batch.size() == 1) {
+            inbox.add(insertionPoint(batch.getFirst()), batch.getFirst());
+        } else if (!batch.isEmpty()) {
+            batch.sort(NEWEST_FIRST);
+            // i casi comuni: nuove mail tutte più recenti della inbox, o una pagina tutta più vecchia
+            if (inbox.isEmpty() || NEWEST_FIRST.compare(batch.getFirst(), inbox.getLast()) >= 0) {
+                inbox.addAll(batch);
+                return batch;
+            }
+            if (NEWEST_FIRST.compare(batch.getLast(), inbox.getFirst()) < 0) {
+                inbox.addAll(0, batch);
+                return batch;
+            }
+            Email[] current = inbox.toArray(new Email[0]);
+            List<Email> merged = new ArrayList<>(current.length + batch.size());
+            int i = 0;
+            int j = 0;
+            while (i < current.length && j < batch.size()) {
+                // a parità di data la mail già presente resta prima
+                merged.add(NEWEST_FIRST.compare(batch.get(j), current[i]) < 0 ? batch.get(j++) : current[i++]);
+            }
+            merged.addAll(Arrays.asList(current).subList(i, current.length));
+            merged.addAll(batch.subList(j, batch.size()));
+            inbox.setAll(merged);
+        }
+        return batch;
+    }
+
+    /**
+     * @return la posizione dopo tutte le mail non più vecchie di email
+     */
+    private int insertionPoint(Email email) {
+        int low = 0;
+        int high = inbox.size();
+        while (low < high) {
+            int middle = (low + high) >>> 1;
+            if (NEWEST_FIRST.compare(inbox.get(middle), email) <= 0) {
+                low = middle + 1;
+            } else {
+                high = middle;
+            }
+        }
+        return low;
     }
 
     /**
@@ -57,20 +152,131 @@ public class ClientStorage {
      * @param emailId L'ID dell'email da rimuovere.
      */
     public void removeEmail(String emailId) {
-        inbox.removeIf(email -> email.getId().equals(emailId));
+        bodies.remove(emailId);
+        if (ids.remove(emailId)) {
+            inbox.removeIf(email -> email.getId().equals(emailId));
+            if (cache != null) {
+                cache.remove(emailId);
+            }
+        }
+    }
+
+    /**
+     * Rimuove un gruppo di email dall'inbox con una sola modifica della lista; gli id che non ci sono vengono ignorati.
+     *
+     * @param emailIds Gli ID delle email da rimuovere.
+     */
+    public void removeEmails(Collection<String> emailIds) {
+        Set<String> removed = new HashSet<>();
+        for (String emailId : emailIds) {
+            bodies.remove(emailId);
+            if (ids.remove(emailId)) {
+                removed.add(emailId);
+            }
+        }
+        if (removed.isEmpty()) {
+            return;
+        }
+        inbox.removeIf(email -> removed.contains(email.getId()));
+        if (cache != null) {
+            removed.forEach(cache::remove);
+        }
     }
 
-    public String mostRecentEmailDate() {
-        if (inbox.isEmpty()) {
-            return null;
+    /**
+     * Sostituisce la inbox con tutta la casella letta dal server: rimuove le email che non ci sono più e aggiunge le
+     * altre, così la cache registra solo le differenze.
+     *
+     * @param emails Tutte le email della casella, in qualsiasi ordine.
+     */
+    public void replaceEmails(Collection<Email> emails) {
+        Set<String> kept = new HashSet<>();
+        for (Email email : emails) {
+            kept.add(email.getId());
         }
-        LocalDateTime mostRecentDate = inbox.getFirst().getTimestamp();
-        for (Email email : inbox) {
-            if (email.getTimestamp().isAfter(mostRecentDate)) {
-                mostRecentDate = email.getTimestamp();
+        List<String> gone = new ArrayList<>();
+        for (String emailId : ids) {
+            if (!kept.contains(emailId)) {
+                gone.add(emailId);
             }
         }
-        return mostRecentDate.toString();
+        removeEmails(gone);
+        addEmails(emails);
+    }
+
+    /**
+     * @return il testo completo della mail, null se non è tra quelli letti di recente: va chiesto al server
+     */
+    public String getBody(String emailId) {
+        return bodies.get(emailId);
+    }
+
+    /**
+     * Tiene il testo completo di una mail chiesto al server, finché non viene scartato per fare posto ad altri.
+     */
+    public void putBody(String emailId, String body) {
+        bodies.put(emailId, body);
+    }
+
+    /**
+     * Apre la cache su disco della inbox dell'utente: da qui in poi le mail aggiunte e rimosse vengono salvate anche
+     * lì. Legge il file, quindi va chiamato fuori dal thread JavaFX; le mail restituite vanno mostrate con
+     * showCachedEmails.
+     *
+     * @return le mail in cache, dalla più recente, e il cursore della prossima pagina da chiedere al server
+     * @throws IOException se la cache non può essere creata: la inbox funziona comunque, senza cache
+     */
+    public synchronized InboxCache.Contents openCache() throws IOException {
+        if (cache == null) {
+            cache = new InboxCache(CACHE_DIRECTORY.resolve(userEmail.toLowerCase() + ".log"));
+        }
+        return cache.contents();
+    }
+
+    /**
+     * Mostra le mail lette dalla cache, senza salvarle di nuovo, insieme a quelle eventualmente già arrivate dal server.
+     */
+    public void showCachedEmails(List<Email> emails) {
+        merge(emails);
+    }
+
+    /**
+     * Salva nella cache il cursore della prossima pagina da chiedere al server.
+     *
+     * @param pageCursor null se la inbox contiene già tutta la casella
+     */
+    public void setPageCursor(String pageCursor) {
+        if (cache != null) {
+            cache.setPageCursor(pageCursor);
+        }
+    }
+
+    /**
+     * Salva nella cache il numero di sequenza dell'ultima sync, dopo le modifiche che questa ha portato.
+     */
+    public void setSequence(long sequence) {
+        if (cache != null) {
+            cache.setSequence(sequence);
+        }
+    }
+
+    /**
+     * Chiude la cache, dopo aver scritto le modifiche ancora in coda.
+     */
+    public synchronized void closeCache() {
+        if (cache != null) {
+            cache.close();
+            cache = null;
+        }
+    }
+
+    /**
+     * @return la data della mail più recente, la prima della inbox; null se la inbox è vuota
+     */
+    public LocalDateTime mostRecentEmailDate() {
+        synchronized (inbox) {
+            return inbox.isEmpty() ? null : inbox.getFirst().getTimestamp();
+        }
     }
 
 }
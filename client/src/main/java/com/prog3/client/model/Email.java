@@ -4,12 +4,18 @@ import java.time.LocalDateTime;
 import java.util.Collections;
 import java.util.List;
 
+/**
+ * Una mail come la mostra la inbox: intestazione e anteprima del testo. Il testo completo viene tenuto a parte da
+ * ClientStorage, solo per le mail lette di recente; una mail appena ricevuta dal server può portarlo con sé finché
+ * non viene aggiunta alla inbox.
+ */
 public class Email {
     private final String id;
     private final String sender;
     private final List<String> recipients;
     private final String subject;
-    private final String body;
+    private final String preview;
+    private final String body;      // null se non è stato ricevuto con la mail
     private final LocalDateTime timestamp;
 
     /**
@@ -19,18 +25,36 @@ public class Email {
      * @param sender
      * @param recipients
      * @param subject
-     * @param body
+     * @param preview    l'inizio del testo, vedi Protocol.preview
+     * @param body       il testo completo, null se non è noto
      * @param timestamp
      */
-    public Email(String id, String sender, List<String> recipients, String subject, String body, LocalDateTime timestamp) {
+    public Email(String id, String sender, List<String> recipients, String subject, String preview, String body,
+                 LocalDateTime timestamp) {
         this.id = id;
         this.sender = sender;
         this.recipients = Collections.unmodifiableList(recipients);
         this.subject = subject;
+        this.preview = preview;
         this.body = body;
         this.timestamp = timestamp;
     }
 
+    /**
+     * Mail di cui è nota solo l'anteprima del testo
+     */
+    public Email(String id, String sender, List<String> recipients, String subject, String preview,
+                 LocalDateTime timestamp) {
+        this(id, sender, recipients, subject, preview, null, timestamp);
+    }
+
+    /**
+     * @return la stessa mail con la sola anteprima, come viene tenuta nella inbox
+     */
+    public Email withoutBody() {
+        return body == null ? this : new Email(id, sender, recipients, subject, preview, timestamp);
+    }
+
     // Getters
     public String getId() {
         return id;
@@ -52,6 +76,14 @@ public class Email {
         return subject;
     }
 
+    public String getPreview() {
+        return preview;
+    }
+
+    /**
+     * @return il testo completo, null se non è arrivato con la mail: va letto da ClientStorage.getBody o chiesto al
+     * server
+     */
     public String getBody() {
         return body;
     }
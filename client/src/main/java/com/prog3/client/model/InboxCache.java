@@ -0,0 +1,181 @@
+package com.prog3.client.model;
+
+import com.prog3.protocol.FrameReader;
+import com.prog3.protocol.FrameWriter;
+
+import java.io.*;
+import java.net.ProtocolException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * Copia su disco della inbox di un utente, per mostrarla al login prima di sentire il server e chiedergli poi solo le
+ * mail più recenti. Come la inbox, tiene di ogni mail l'intestazione e l'anteprima, non il testo completo.
+ * Il file è un log di frame del protocollo binario: ADD con una mail, REMOVE con l'id di una mail
+ * eliminata, CURSOR con il cursore della prossima pagina da chiedere al server ("" se la casella è tutta in cache),
+ * SEQUENCE con il numero di sequenza dell'ultima sync, scritto dopo le modifiche che questa ha portato.
+ * All'apertura il log viene riletto e, se contiene troppi record superati o una coda troncata, riscritto con le sole
+ * mail presenti. Le scritture avvengono su un thread dedicato, nell'ordine in cui sono richieste.
+ */
+public class InboxCache implements Closeable {
+    private static final byte HEADER = 0;
+    private static final byte ADD = 1;
+    private static final byte REMOVE = 2;
+    private static final byte CURSOR = 3;
+    private static final byte SEQUENCE = 4;
+    // la versione 1 teneva i testi completi
+    private static final int FORMAT_VERSION = 2;
+
+    private final ExecutorService writer = Executors.newSingleThreadExecutor(runnable -> new Thread(runnable, "inbox-cache"));
+    private final Contents contents;
+    private DataOutputStream out;       // dopo il costruttore, usato solo dal thread writer
+
+    /**
+     * @param emails     le mail in cache, dalla più recente
+     * @param pageCursor il cursore della prossima pagina, null se nessuna pagina è stata letta
+     * @param sequence   il numero di sequenza dell'ultima sync, 0 se non ce n'è stata una
+     */
+    public record Contents(List<Email> emails, String pageCursor, long sequence) {
+    }
+
+    /**
+     * Legge la cache, o ne crea una vuota se il file manca o è di un altro formato
+     */
+    InboxCache(Path file) throws IOException {
+        Map<String, Email> emails = new LinkedHashMap<>();
+        String pageCursor = null;
+        long sequence = 0;
+        int records = 0;
+        boolean intact = false;
+        if (Files.exists(file)) {
+            try (DataInputStream in = new DataInputStream(new BufferedInputStream(Files.newInputStream(file)))) {
+                FrameReader header = FrameReader.readFrom(in);
+                if (header.type() == HEADER && header.readInt() == FORMAT_VERSION) {
+                    while (in.available() > 0) {
+                        FrameReader record = FrameReader.readFrom(in);
+                        switch (record.type()) {
+                            case ADD -> {
+                                Email email = readEmail(record);
+                                emails.put(email.getId(), email);
+                            }
+                            case REMOVE -> emails.remove(record.readString());
+                            case CURSOR -> pageCursor = record.readString();
+                            case SEQUENCE -> sequence = record.readLong();
+                            default -> throw new IOException("Record non valido: " + record.type());
+                        }
+                        records++;
+                    }
+                    intact = true;
+                }
+            } catch (IOException e) {
+                // coda troncata da una chiusura improvvisa, o file di un altro formato: si tiene quanto letto
+            }
+        }
+
+        List<Email> sorted = new ArrayList<>(emails.values());
+        sorted.sort(Comparator.comparing(Email::getTimestamp).reversed());
+        contents = new Contents(sorted, pageCursor, sequence);
+
+        if (!intact || records > 2 * emails.size() + 64) {
+            rewrite(file);
+        }
+        out = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(file, StandardOpenOption.CREATE,
+                StandardOpenOption.APPEND)));
+    }
+
+    Contents contents() {
+        return contents;
+    }
+
+    void add(Email email) {
+        append(addRecord(email));
+    }
+
+    void remove(String emailId) {
+        append(new FrameWriter(REMOVE).writeString(emailId));
+    }
+
+    /**
+     * @param pageCursor il cursore della prossima pagina, null se la casella è tutta in cache
+     */
+    void setPageCursor(String pageCursor) {
+        append(new FrameWriter(CURSOR).writeString(pageCursor == null ? "" : pageCursor));
+    }
+
+    void setSequence(long sequence) {
+        append(new FrameWriter(SEQUENCE).writeLong(sequence));
+    }
+
+    // l'id è scritto come stringa: le mail più vecchie hanno id che non sono UUID
+    private static FrameWriter addRecord(Email email) {
+        return new FrameWriter(ADD, 128 + 3 * email.getPreview().length())
+                .writeString(email.getId())
+                .writeString(email.getSender())
+                .writeStrings(email.getRecipients())
+                .writeString(email.getSubject())
+                .writeString(email.getPreview())
+                .writeTimestamp(email.getTimestamp());
+    }
+
+    private void append(FrameWriter record) {
+        writer.execute(() -> {
+            try {
+                record.writeTo(out);
+                out.flush();
+            } catch (IOException e) {
+                // la cache è solo una copia: al prossimo login mancherà qualche mail, chiesta di nuovo al server
+            }
+        });
+    }
+
+    /**
+     * Riscrive il log con le sole mail presenti, passando da un file temporaneo
+     */
+    private void rewrite(Path file) throws IOException {
+        Files.createDirectories(file.toAbsolutePath().getParent());
+        Path temporary = file.resolveSibling(file.getFileName() + ".tmp");
+        try (DataOutputStream rewritten = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(temporary)))) {
+            new FrameWriter(HEADER).writeInt(FORMAT_VERSION).writeTo(rewritten);
+            // dalla più vecchia, come sono arrivate
+            for (Email email : contents.emails().reversed()) {
+                addRecord(email).writeTo(rewritten);
+            }
+            if (contents.pageCursor() != null) {
+                new FrameWriter(CURSOR).writeString(contents.pageCursor()).writeTo(rewritten);
+            }
+            if (contents.sequence() != 0) {
+                new FrameWriter(SEQUENCE).writeLong(contents.sequence()).writeTo(rewritten);
+            }
+        }
+        Files.move(temporary, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    private static Email readEmail(FrameReader record) throws ProtocolException {
+        return new Email(record.readString(), record.readString(), record.readStrings(), record.readString(),
+                record.readString(), record.readTimestamp());
+    }
+
+    /**
+     * Scrive i record ancora in coda e chiude il file
+     */
+    @Override
+    public void close() {
+        writer.execute(() -> {
+            try {
+                out.close();
+            } catch (IOException e) {
+                // niente da fare, vedi append
+            }
+        });
+        writer.shutdown();
+    }
+}
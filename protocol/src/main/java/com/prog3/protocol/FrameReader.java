@@ -0,0 +1,169 @@
+package com.prog3.protocol;
+
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.net.ProtocolException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.time.DateTimeException;
+import java.time.LocalDateTime;
+import java.time.ZoneOffset;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.UUID;
+
+/**
+ * Reads the fields of one frame of the binary protocol, in the order they were written by FrameWriter.
+ * A frame that is too short or holds invalid values raises a ProtocolException.
+ */
+public final class FrameReader {
+    private final ByteBuffer frame;
+    private final int requestId;
+    private final byte type;
+
+    /**
+     * @param frame the frame without its length prefix, and without its request id if it has one
+     */
+    public FrameReader(ByteBuffer frame) throws ProtocolException {
+        this(frame, Protocol.PUSH_REQUEST_ID);
+    }
+
+    private FrameReader(ByteBuffer frame, int requestId) throws ProtocolException {
+        this.frame = frame;
+        this.requestId = requestId;
+        require(1);
+        this.type = frame.get();
+    }
+
+    /**
+     * Reads a whole frame without request id from a blocking stream
+     *
+     * @throws java.io.EOFException if the stream ends before the frame
+     */
+    public static FrameReader readFrom(DataInputStream in) throws IOException {
+        return readFrom(in, false);
+    }
+
+    /**
+     * Reads a whole frame from a blocking stream
+     *
+     * @param tagged true if the frame carries a request id, i.e. the connection speaks REQUEST_ID_VERSION or later
+     * @throws java.io.EOFException if the stream ends before the frame
+     */
+    public static FrameReader readFrom(DataInputStream in, boolean tagged) throws IOException {
+        byte[] bytes = new byte[checkLength(in.readInt())];
+        in.readFully(bytes);
+        ByteBuffer frame = ByteBuffer.wrap(bytes);
+        return tagged ? new FrameReader(frame, readRequestId(frame)) : new FrameReader(frame);
+    }
+
+    /**
+     * Reads the request id that starts a frame of REQUEST_ID_VERSION or later, leaving the frame at its type
+     *
+     * @param frame the frame without its length prefix
+     */
+    public static int readRequestId(ByteBuffer frame) throws ProtocolException {
+        if (frame.remaining() < Integer.BYTES) {
+            throw new ProtocolException("Truncated frame");
+        }
+        return frame.getInt();
+    }
+
+    /**
+     * @param length the length prefix of a frame
+     * @return the length, if it is valid
+     */
+    public static int checkLength(int length) throws ProtocolException {
+        if (length < 1 || length > Protocol.MAX_FRAME_LENGTH) {
+            throw new ProtocolException("Invalid frame length: " + length);
+        }
+        return length;
+    }
+
+    /**
+     * @return the request id carried by the frame, PUSH_REQUEST_ID if it was read without one
+     */
+    public int requestId() {
+        return requestId;
+    }
+
+    /**
+     * @return the opcode of a request or the status of a response
+     */
+    public byte type() {
+        return type;
+    }
+
+    public int readInt() throws ProtocolException {
+        require(Integer.BYTES);
+        return frame.getInt();
+    }
+
+    public long readLong() throws ProtocolException {
+        require(Long.BYTES);
+        return frame.getLong();
+    }
+
+    public String readString() throws ProtocolException {
+        int length = readInt();
+        if (length < 0) {
+            throw new ProtocolException("Invalid string length: " + length);
+        }
+        require(length);
+        String value = new String(frame.array(), frame.arrayOffset() + frame.position(), length, StandardCharsets.UTF_8);
+        frame.position(frame.position() + length);
+        return value;
+    }
+
+    public List<String> readStrings() throws ProtocolException {
+        int count = readCount();
+        List<String> values = new ArrayList<>(count);
+        for (int i = 0; i < count; i++) {
+            values.add(readString());
+        }
+        return values;
+    }
+
+    /**
+     * @return a list length, checked against the bytes left so that a corrupted count cannot allocate a huge list
+     */
+    public int readCount() throws ProtocolException {
+        int count = readInt();
+        if (count < 0 || count > frame.remaining()) {
+            throw new ProtocolException("Invalid list length: " + count);
+        }
+        return count;
+    }
+
+    public LocalDateTime readTimestamp() throws ProtocolException {
+        require(Long.BYTES + Integer.BYTES);
+        long epochSecond = frame.getLong();
+        int nano = frame.getInt();
+        try {
+            return LocalDateTime.ofEpochSecond(epochSecond, nano, ZoneOffset.UTC);
+        } catch (DateTimeException e) {
+            throw new ProtocolException("Invalid timestamp: " + e.getMessage());
+        }
+    }
+
+    /**
+     * @return the email id in the canonical UUID form
+     */
+    public String readId() throws ProtocolException {
+        require(2 * Long.BYTES);
+        return new UUID(frame.getLong(), frame.getLong()).toString();
+    }
+
+    /**
+     * @return true if fields are left to read, e.g. the optional ones at the end of a request
+     */
+    public boolean hasRemaining() {
+        return frame.hasRemaining();
+    }
+
+    private void require(int bytes) throws ProtocolException {
+        if (frame.remaining() < bytes) {
+            throw new ProtocolException("Truncated frame");
+        }
+    }
+}
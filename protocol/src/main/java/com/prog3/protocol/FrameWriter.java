@@ -0,0 +1,145 @@
+package com.prog3.protocol;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.time.LocalDateTime;
+import java.time.ZoneOffset;
+import java.util.Collection;
+import java.util.UUID;
+import java.util.function.Consumer;
+
+/**
+ * Builds one frame of the binary protocol. The length prefix is filled in when the frame is finished.
+ */
+public final class FrameWriter {
+    private ByteBuffer buffer;
+
+    /**
+     * @param type the opcode of a request or the status of a response
+     */
+    public FrameWriter(byte type) {
+        this(type, 256);
+    }
+
+    /**
+     * @param type            the opcode of a request or the status of a response
+     * @param expectedLength  expected size of the frame in bytes, the buffer grows if it is exceeded
+     */
+    public FrameWriter(byte type, int expectedLength) {
+        buffer = ByteBuffer.allocate(Math.max(expectedLength, 16));
+        buffer.putInt(0);
+        buffer.put(type);
+    }
+
+    public FrameWriter writeInt(int value) {
+        ensureCapacity(Integer.BYTES);
+        buffer.putInt(value);
+        return this;
+    }
+
+    public FrameWriter writeLong(long value) {
+        ensureCapacity(Long.BYTES);
+        buffer.putLong(value);
+        return this;
+    }
+
+    public FrameWriter writeString(String value) {
+        byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+        ensureCapacity(Integer.BYTES + bytes.length);
+        buffer.putInt(bytes.length);
+        buffer.put(bytes);
+        return this;
+    }
+
+    public FrameWriter writeStrings(Collection<String> values) {
+        writeInt(values.size());
+        for (String value : values) {
+            writeString(value);
+        }
+        return this;
+    }
+
+    public FrameWriter writeTimestamp(LocalDateTime timestamp) {
+        ensureCapacity(Long.BYTES + Integer.BYTES);
+        buffer.putLong(timestamp.toEpochSecond(ZoneOffset.UTC));
+        buffer.putInt(timestamp.getNano());
+        return this;
+    }
+
+    /**
+     * @param id an email id in the canonical UUID form
+     * @throws IllegalArgumentException if the id is not a canonical UUID, it would not be read back unchanged
+     */
+    public FrameWriter writeId(String id) {
+        UUID uuid = UUID.fromString(id);
+        if (!uuid.toString().equals(id)) {
+            throw new IllegalArgumentException("Email id is not a canonical UUID: " + id);
+        }
+        ensureCapacity(2 * Long.BYTES);
+        buffer.putLong(uuid.getMostSignificantBits());
+        buffer.putLong(uuid.getLeastSignificantBits());
+        return this;
+    }
+
+    /**
+     * @return the finished frame, length prefix included, ready to be written
+     */
+    public ByteBuffer toByteBuffer() {
+        buffer.putInt(0, buffer.position() - Integer.BYTES);
+        return buffer.duplicate().flip();
+    }
+
+    /**
+     * Writes the finished frame, the stream is not flushed
+     */
+    public void writeTo(OutputStream out) throws IOException {
+        ByteBuffer frame = toByteBuffer();
+        out.write(frame.array(), frame.arrayOffset(), frame.remaining());
+    }
+
+    /**
+     * Writes the finished frame tagged with a request id, the stream is not flushed
+     */
+    public void writeTo(OutputStream out, int requestId) throws IOException {
+        ByteBuffer frame = toByteBuffer();
+        out.write(tagPrefix(frame, requestId).array());
+        out.write(frame.array(), frame.arrayOffset() + frame.position(), frame.remaining());
+    }
+
+    /**
+     * Tags the finished frames given to the returned consumer with a request id. Each frame is passed on as two
+     * buffers, the new length prefix with the id and then the frame without its old prefix, so it is not copied.
+     *
+     * @param out receives the tagged frames
+     */
+    public static Consumer<ByteBuffer> tagging(int requestId, Consumer<ByteBuffer> out) {
+        return frame -> {
+            ByteBuffer prefix = tagPrefix(frame, requestId);
+            out.accept(prefix);
+            out.accept(frame);
+        };
+    }
+
+    // the length prefix of the tagged frame; the frame is moved past its own length prefix
+    private static ByteBuffer tagPrefix(ByteBuffer frame, int requestId) {
+        int length = frame.getInt();
+        return ByteBuffer.allocate(2 * Integer.BYTES).putInt(length + Integer.BYTES).putInt(requestId).flip();
+    }
+
+    private void ensureCapacity(int bytes) {
+        if (buffer.remaining() >= bytes) {
+            return;
+        }
+        // leaves room for the request id, so the frame can still be tagged
+        long maxCapacity = Protocol.MAX_FRAME_LENGTH;
+        long required = (long) buffer.position() + bytes;
+        if (required > maxCapacity) {
+            throw new IllegalStateException("Frame longer than " + (Protocol.MAX_FRAME_LENGTH - Integer.BYTES) + " bytes");
+        }
+        ByteBuffer grown = ByteBuffer.allocate((int) Math.min(Math.max(required, 2L * buffer.capacity()), maxCapacity));
+        grown.put(buffer.flip());
+        buffer = grown;
+    }
+}
@@ -0,0 +1,216 @@
+package com.prog3.protocol;
+
+/**
+ * Binary wire protocol, spoken by the server next to the "|"-delimited line protocol on the same port.
+ * <p>
+ * A client asks for it by sending the handshake: MAGIC, the highest version it speaks and "\n". A text request never
+ * starts with a 0 byte, so the server tells the two protocols apart from the first byte of the connection. The server
+ * answers with a handshake carrying the version both sides speak; a server that only knows the line protocol answers
+ * with an ERROR line instead, and the client can go back to the line protocol.
+ * <p>
+ * After the handshake every request and response is a frame: a 4 byte big-endian length followed by that many bytes,
+ * the first of which is the opcode of a request or the status of a response. The fields that follow have fixed types,
+ * written by FrameWriter and read by FrameReader:
+ * <ul>
+ *     <li>long: 8 byte big-endian integer</li>
+ *     <li>string: 4 byte length and the UTF-8 bytes, with no escaping</li>
+ *     <li>timestamp: 8 byte epoch second and 4 byte nanosecond of the local date-time, read as UTC</li>
+ *     <li>id: the 16 bytes of the email UUID</li>
+ *     <li>list: 4 byte count followed by the elements</li>
+ *     <li>email: id, sender, list of recipients, subject, body, timestamp</li>
+ *     <li>listed email: an email whose body field holds only the preview of the body (see preview)</li>
+ *     <li>header: id, sender, list of recipients, subject, timestamp</li>
+ * </ul>
+ * Every request starts with the mail of the client; the other fields are listed with each opcode. A successful response
+ * carries a message string, or a list of emails for the requests reading a mailbox; an ERROR response carries the
+ * error message. GET_MESSAGES_PAGE is the only request answered by more than one frame. A request can end with
+ * optional fields, which a server that does not know them ignores.
+ * <p>
+ * SUBSCRIBE turns the connection into a push channel: the server reads no further request from it and sends a
+ * PUSH_EMAIL frame for every email delivered to the client, and a HEARTBEAT frame whenever the heartbeat interval
+ * passes. A client that gets neither for longer than that can assume the connection is lost.
+ * <p>
+ * Since version 2 every frame starts, right after its length prefix, with a 4 byte request id: the client picks a
+ * different id for each request in flight, and the server copies it into every frame of the response. A client can
+ * then pipeline its requests on one connection and match the responses by id rather than by order. The server still
+ * answers the requests of a connection in order. Pushes carry PUSH_REQUEST_ID, which a client never uses for a request.
+ */
+public final class Protocol {
+    public static final int VERSION = 2;
+    /** first version whose frames carry a request id */
+    public static final int REQUEST_ID_VERSION = 2;
+    public static final int PUSH_REQUEST_ID = 0;
+    public static final byte[] MAGIC = {0, 'M', 'F', 'X'};
+    public static final int HANDSHAKE_LENGTH = MAGIC.length + 2;
+    public static final int MAX_FRAME_LENGTH = 16 * 1024 * 1024;
+    /** maximum length of the preview of a body */
+    public static final int PREVIEW_LENGTH = 100;
+    /** added by the client above the quoted message of a reply or forward */
+    public static final String QUOTE_MARKER = "--- Messaggio originale ---";
+
+    /** client mail */
+    public static final byte LOGIN = 1;
+    /** client mail */
+    public static final byte GET_ALL_MESSAGES = 2;
+    /** client mail, timestamp: only the emails sent after it */
+    public static final byte GET_NEW_MESSAGES = 3;
+    /** client mail, list of recipients, subject, body, timestamp */
+    public static final byte SEND_EMAIL = 4;
+    /** client mail, id */
+    public static final byte DELETE_EMAIL = 5;
+    /**
+     * client mail, limit, cursor (empty for the first page), optionally a listing (int, FULL_LISTING by default).
+     * Answered by a frame holding the number of emails and the cursor of the next page (empty after the last page),
+     * followed by one frame per email, newest first.
+     */
+    public static final byte GET_MESSAGES_PAGE = 6;
+    /** client mail. Answered by a frame holding the heartbeat interval in milliseconds, then by pushes only. */
+    public static final byte SUBSCRIBE = 7;
+    /**
+     * client mail, timestamp, timeout in milliseconds (int). Answered like GET_NEW_MESSAGES, but only once there are
+     * emails after the timestamp or the timeout has expired.
+     */
+    public static final byte WAIT_NEW_MESSAGES = 8;
+    /**
+     * client mail, sequence number (long) of the previous sync, 0 for the first one, optionally a listing (int,
+     * FULL_LISTING by default). Answered by a frame holding the
+     * sequence number to send next time, a reset flag (int), the list of the ids removed since then (strings) and the
+     * list of the emails added, in the order they arrived. With the reset flag set the list holds the whole mailbox,
+     * and the client drops the emails it has. A negative sequence number asks only for the current one.
+     * If nothing changed since the given sequence number the answer is a NOT_MODIFIED frame.
+     */
+    public static final byte SYNC = 9;
+    /**
+     * client mail, query, limit. Answered by a frame holding the list of the headers of the emails with every word of
+     * the query in sender, recipients, subject or body, best match first; the last word also matches longer words.
+     */
+    public static final byte SEARCH = 10;
+    /**
+     * client mail, id. Answered by a message holding the body of the email, or by an ERROR if the mailbox does not
+     * hold it.
+     */
+    public static final byte FETCH_BODY = 11;
+
+    public static final byte SUCCESS = 0;
+    public static final byte ERROR = 1;
+    /** pushed to a subscribed connection: one email */
+    public static final byte PUSH_EMAIL = 2;
+    /** pushed to a subscribed connection: no fields */
+    public static final byte HEARTBEAT = 3;
+    /** answers a SYNC when the mailbox did not change: no fields */
+    public static final byte NOT_MODIFIED = 4;
+
+    /** listing of GET_MESSAGES_PAGE and SYNC: emails */
+    public static final int FULL_LISTING = 0;
+    /** listing of GET_MESSAGES_PAGE and SYNC: listed emails, whose bodies are read with FETCH_BODY when opened */
+    public static final int PREVIEW_LISTING = 1;
+
+    private Protocol() {
+    }
+
+    /**
+     * @return the handshake announcing the given version, sent by the client and echoed by the server
+     */
+    public static byte[] handshake(int version) {
+        byte[] handshake = new byte[HANDSHAKE_LENGTH];
+        System.arraycopy(MAGIC, 0, handshake, 0, MAGIC.length);
+        handshake[MAGIC.length] = (byte) version;
+        handshake[MAGIC.length + 1] = '\n';
+        return handshake;
+    }
+
+    /**
+     * @param handshake HANDSHAKE_LENGTH bytes read from the connection
+     * @return the version announced by the handshake, -1 if the bytes are not a handshake
+     */
+    public static int handshakeVersion(byte[] handshake) {
+        if (handshake.length != HANDSHAKE_LENGTH || handshake[HANDSHAKE_LENGTH - 1] != '\n') {
+            return -1;
+        }
+        for (int i = 0; i < MAGIC.length; i++) {
+            if (handshake[i] != MAGIC[i]) {
+                return -1;
+            }
+        }
+        return handshake[MAGIC.length] & 0xFF;
+    }
+
+    /**
+     * The start of a body shown next to the headers in a listing: whitespace runs become one space, the text is cut
+     * to PREVIEW_LENGTH characters and before a quoted message. A preview is its own preview, so a client can tell a
+     * listed email from one whose whole body fits in its preview only by asking for it.
+     *
+     * @param body the plain text of a body, without the escaping of the line protocol
+     */
+    public static String preview(String body) {
+        StringBuilder preview = new StringBuilder(Math.min(body.length(), PREVIEW_LENGTH));
+        boolean space = false;
+        for (int i = 0; i < body.length() && preview.length() < PREVIEW_LENGTH; i++) {
+            char c = body.charAt(i);
+            if (Character.isWhitespace(c)) {
+                space = !preview.isEmpty();
+            } else {
+                if (space) {
+                    if (preview.length() + 1 == PREVIEW_LENGTH) {
+                        break;
+                    }
+                    preview.append(' ');
+                    space = false;
+                }
+                preview.append(c);
+            }
+        }
+        int quote = preview.indexOf(QUOTE_MARKER);
+        if (quote >= 0) {
+            preview.setLength(quote);
+        }
+        // neither a trailing space nor half of a surrogate pair
+        int end = preview.length();
+        while (end > 0 && (preview.charAt(end - 1) == ' ' || Character.isHighSurrogate(preview.charAt(end - 1)))) {
+            end--;
+        }
+        return preview.substring(0, end);
+    }
+
+    /**
+     * Escapes a text for a field of the line protocol, a form the server also keeps in its storage: a backslash
+     * becomes "\\\\", a new line "\\n" and a "|" "\\|", so the text fits in a single "|"-delimited column
+     */
+    public static String escape(String text) {
+        return text.replace("\\", "\\\\").replace("\n", "\\n").replace("|", "\\|");
+    }
+
+    /**
+     * Reverses escape in a single left-to-right pass. A backslash followed by anything else is kept as it is, as in
+     * the texts stored before backslashes were escaped.
+     */
+    public static String unescape(String text) {
+        int backslash = text.indexOf('\\');
+        if (backslash < 0) {
+            return text;
+        }
+        StringBuilder plain = new StringBuilder(text.length());
+        plain.append(text, 0, backslash);
+        for (int i = backslash; i < text.length(); i++) {
+            char c = text.charAt(i);
+            if (c == '\\' && i + 1 < text.length()) {
+                char next = text.charAt(i + 1);
+                if (next == 'n' || next == '|' || next == '\\') {
+                    plain.append(next == 'n' ? '\n' : next);
+                    i++;
+                    continue;
+                }
+            }
+            plain.append(c);
+        }
+        return plain.toString();
+    }
+
+    /**
+     * @param clientVersion the highest version the client speaks
+     * @return the version used by the connection, -1 if there is none both sides speak
+     */
+    public static int negotiate(int clientVersion) {
+        return clientVersion < 1 ? -1 : Math.min(clientVersion, VERSION);
+    }
+}
@@ -0,0 +1,3 @@
+module com.prog3.protocol {
+    exports com.prog3.protocol;
+}
@@ -0,0 +1,157 @@
+package com.prog3.protocol;
+
+import org.junit.jupiter.api.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.net.ProtocolException;
+import java.nio.ByteBuffer;
+import java.time.LocalDateTime;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class FrameTest {
+    private static final String ID = "123e4567-e89b-12d3-a456-426614174000";
+    private static final LocalDateTime TIMESTAMP = LocalDateTime.of(2024, 1, 1, 9, 30, 15, 123_456_789);
+
+    @Test
+    void fieldsAreReadBackInTheOrderTheyWereWritten() throws Exception {
+        FrameReader frame = FrameReader.readFrom(stream(sampleFrame().toByteBuffer()));
+
+        assertEquals(Protocol.SYNC, frame.type());
+        assertEquals(Protocol.PUSH_REQUEST_ID, frame.requestId());
+        assertSampleFields(frame);
+    }
+
+    @Test
+    void frameGrowsPastItsExpectedLength() throws Exception {
+        String body = "è".repeat(10_000);
+        ByteBuffer written = new FrameWriter(Protocol.SUCCESS, 16).writeString(body).writeInt(7).toByteBuffer();
+
+        FrameReader frame = FrameReader.readFrom(stream(written));
+
+        assertEquals(body, frame.readString());
+        assertEquals(7, frame.readInt());
+    }
+
+    @Test
+    void taggedFrameCarriesItsRequestId() throws Exception {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        sampleFrame().writeTo(out, 42);
+
+        FrameReader frame = FrameReader.readFrom(new DataInputStream(new ByteArrayInputStream(out.toByteArray())), true);
+
+        assertEquals(42, frame.requestId());
+        assertEquals(Protocol.SYNC, frame.type());
+        assertSampleFields(frame);
+    }
+
+    @Test
+    void taggingConsumerWritesTheSameBytesAsWriteTo() throws Exception {
+        ByteArrayOutputStream expected = new ByteArrayOutputStream();
+        sampleFrame().writeTo(expected, 7);
+        ByteArrayOutputStream tagged = new ByteArrayOutputStream();
+
+        FrameWriter.tagging(7, buffer -> {
+            byte[] bytes = new byte[buffer.remaining()];
+            buffer.get(bytes);
+            tagged.writeBytes(bytes);
+        }).accept(sampleFrame().toByteBuffer());
+
+        assertArrayEquals(expected.toByteArray(), tagged.toByteArray());
+    }
+
+    @Test
+    void requestIdIsReadFromAFrameWithoutItsLengthPrefix() throws Exception {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        new FrameWriter(Protocol.LOGIN).writeString("user1@mail.com").writeTo(out, 3);
+        ByteBuffer frame = ByteBuffer.wrap(out.toByteArray());
+        FrameReader.checkLength(frame.getInt());
+
+        assertEquals(3, FrameReader.readRequestId(frame));
+        FrameReader reader = new FrameReader(frame);
+        assertEquals(Protocol.LOGIN, reader.type());
+        assertEquals("user1@mail.com", reader.readString());
+        assertFalse(reader.hasRemaining());
+    }
+
+    @Test
+    void truncatedFrameIsRejected() throws Exception {
+        ByteBuffer written = new FrameWriter(Protocol.SUCCESS).writeString("hello").toByteBuffer();
+        written.getInt();
+        ByteBuffer truncated = written.limit(written.limit() - 1).slice();
+
+        FrameReader frame = new FrameReader(truncated);
+
+        assertThrows(ProtocolException.class, frame::readString);
+    }
+
+    @Test
+    void streamEndingInsideAFrameIsAnEof() {
+        ByteBuffer written = new FrameWriter(Protocol.SUCCESS).writeLong(1).toByteBuffer();
+        byte[] bytes = new byte[written.remaining() - 1];
+        written.get(bytes);
+
+        assertThrows(EOFException.class, () -> FrameReader.readFrom(new DataInputStream(new ByteArrayInputStream(bytes))));
+    }
+
+    @Test
+    void invalidLengthsAndCountsAreRejected() throws Exception {
+        assertThrows(ProtocolException.class, () -> FrameReader.checkLength(0));
+        assertThrows(ProtocolException.class, () -> FrameReader.checkLength(Protocol.MAX_FRAME_LENGTH + 1));
+
+        FrameReader frame = FrameReader.readFrom(stream(new FrameWriter(Protocol.SUCCESS).writeInt(1000).toByteBuffer()));
+        assertThrows(ProtocolException.class, frame::readCount);
+    }
+
+    @Test
+    void escapedTextIsReadBackUnchanged() {
+        for (String text : List.of("C:\\new", "a\\|b", "a|b\nc", "ends with \\", "\\\\n", "\\")) {
+            String escaped = Protocol.escape(text);
+
+            assertEquals(-1, escaped.indexOf('\n'));
+            assertEquals(text, Protocol.unescape(escaped));
+        }
+        assertEquals("C:\\\\new", Protocol.escape("C:\\new"));
+    }
+
+    @Test
+    void unescapeKeepsBackslashesThatEscapeNothing() {
+        assertEquals("C:\\temp\\", Protocol.unescape("C:\\temp\\"));
+        assertEquals("a\nb|c\\", Protocol.unescape("a\\nb\\|c\\\\"));
+    }
+
+    @Test
+    void nonCanonicalIdIsNotWritten() {
+        assertThrows(IllegalArgumentException.class, () -> new FrameWriter(Protocol.FETCH_BODY).writeId(ID.toUpperCase()));
+    }
+
+    private static FrameWriter sampleFrame() {
+        return new FrameWriter(Protocol.SYNC)
+                .writeString("user1@mail.com")
+                .writeLong(Long.MAX_VALUE)
+                .writeInt(-1)
+                .writeStrings(List.of("a", "", "ü|#"))
+                .writeTimestamp(TIMESTAMP)
+                .writeId(ID);
+    }
+
+    private static void assertSampleFields(FrameReader frame) throws Exception {
+        assertEquals("user1@mail.com", frame.readString());
+        assertEquals(Long.MAX_VALUE, frame.readLong());
+        assertEquals(-1, frame.readInt());
+        assertEquals(List.of("a", "", "ü|#"), frame.readStrings());
+        assertEquals(TIMESTAMP, frame.readTimestamp());
+        assertEquals(ID, frame.readId());
+        assertFalse(frame.hasRemaining());
+    }
+
+    private static DataInputStream stream(ByteBuffer frame) {
+        byte[] bytes = new byte[frame.remaining()];
+        frame.get(bytes);
+        return new DataInputStream(new ByteArrayInputStream(bytes));
+    }
+}
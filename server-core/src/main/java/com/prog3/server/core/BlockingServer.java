@@ -0,0 +1,341 @@
+package com.prog3.server.core;
+
+import com.prog3.protocol.FrameReader;
+import com.prog3.protocol.FrameWriter;
+import com.prog3.protocol.Protocol;
+
+import java.io.*;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.function.BiFunction;
+import java.util.function.Consumer;
+import java.util.function.ToIntFunction;
+
+/**
+ * Blocking server modes: the accept loop runs on its own thread and every connection is served by a
+ * SingleClientController running on a thread of the given executor
+ */
+class BlockingServer {
+    private final int port;
+    private final RequestHandler requestHandler;
+    private final ExecutorService threadPool;
+    private final Semaphore requestPermits;
+    private final Consumer<String> log;
+
+    private volatile boolean running;
+    private ServerSocket serverSocket;
+
+    /**
+     * Constructor for the BlockingServer class
+     *
+     * @param port           the port to listen on
+     * @param requestHandler the protocol handler shared by all connections
+     * @param executor       runs one SingleClientController per connection
+     * @param requestPermits caps the requests handled at the same time, null for no cap
+     * @param log            receives the server log messages
+     */
+    BlockingServer(int port, RequestHandler requestHandler, ExecutorService executor, Semaphore requestPermits,
+                   Consumer<String> log) {
+        this.port = port;
+        this.requestHandler = requestHandler;
+        this.threadPool = executor;
+        this.requestPermits = requestPermits;
+        this.log = log;
+    }
+
+    /**
+     * Opens the socket and starts the accept loop thread
+     */
+    void start() throws IOException {
+        serverSocket = new ServerSocket(port);      // Opens the socket for connections
+        running = true;
+
+        new Thread(() -> {
+            try {
+                while (running) {
+                    try {
+                        Socket clientSocket = serverSocket.accept();        // accepts new connections
+                        log.accept("Opened connection");
+
+                        // starts new thread to run singleClientController instance
+                        threadPool.submit(new SingleClientController(clientSocket, requestHandler, log, requestPermits));
+                    } catch (IOException ioException) {
+                        // if the server is still accepting connections, and an IOException is thrown, the log is updated
+                        if (running) {
+                            log.accept("Error accepting client connection: " + ioException.getMessage());
+                        }
+                    }
+                }
+            } catch (Exception exception) {
+                log.accept("Error: " + exception.getMessage());
+            } finally {
+                threadPool.shutdown();
+            }
+        }, "accept-loop").start();
+    }
+
+    /**
+     * Closes the server socket, which ends the accept loop, and shuts down the connection threads
+     */
+    void stop() {
+        running = false; // Setting the flag to false so that the loop stops
+        try {
+            if (serverSocket != null && !serverSocket.isClosed()) {
+                serverSocket.close(); // Close the server socket
+            }
+        } catch (IOException e) {
+            log.accept("Error stopping the server: " + e.getMessage());
+        } finally {
+            threadPool.shutdown();
+        }
+    }
+}
+
+class SingleClientController implements Runnable {
+    // With a cap, this much of a response is collected before it is written without the permit
+    private static final int RESPONSE_BUFFER_SIZE = 64 * 1024;
+
+    private final Socket clientSocket;      // Socket for connection to the client
+    private final RequestHandler requestHandler;
+    private final Consumer<String> log;
+    private final Semaphore requestPermits;
+
+    /**
+     * Constructor for the SingleClientController class
+     *
+     * @param clientSocket   the socket through which the client is connected
+     * @param requestHandler the protocol handler shared by all connections
+     * @param log            receives the server log messages
+     * @param requestPermits shared cap on requests handled at the same time, null for no cap
+     */
+    public SingleClientController(Socket clientSocket, RequestHandler requestHandler, Consumer<String> log,
+                                  Semaphore requestPermits) {
+        this.clientSocket = clientSocket;
+        this.requestHandler = requestHandler;
+        this.log = log;
+        this.requestPermits = requestPermits;
+    }
+
+    /**
+     * Serves the connection with the protocol chosen by its first byte: the binary protocol if it starts with the
+     * handshake, the line protocol otherwise
+     */
+    @Override
+    public void run() {
+        try (
+                BufferedInputStream input = new BufferedInputStream(clientSocket.getInputStream());
+                OutputStream output = clientSocket.getOutputStream()
+        ) {
+            input.mark(1);
+            int first = input.read();
+            input.reset();
+
+            if (first == Protocol.MAGIC[0]) {
+                serveFrames(new DataInputStream(input), new BufferedOutputStream(output));
+            } else if (first != -1) {
+                serveLines(new BufferedReader(new InputStreamReader(input)), new PrintWriter(output, false));
+            }
+        } catch (InterruptedException e) {
+            log.accept("Client connection interrupted");
+            Thread.currentThread().interrupt();
+        } catch (IOException e) {
+            log.accept("Client connection error: " + e.getMessage());
+        } catch (UncheckedIOException | RequestHandler.PartialResponseException | CompletionException e) {
+            log.accept("Client connection error while writing a response: " + e.getMessage());
+        } finally {
+            try {
+                log.accept("Connection closed");
+                clientSocket.close();
+            } catch (IOException e) {
+                log.accept("Error closing client socket: " + e.getMessage());
+            }
+        }
+    }
+
+    private void serveLines(BufferedReader in, PrintWriter out) throws IOException, InterruptedException {
+        String request; // any request is passed as a String
+        BlockingQueue<String> pushes = new LinkedBlockingQueue<>();
+        Subscriptions.Session<String> session = new Subscriptions.Session<>(pushes::add);
+
+        try {
+            while ((request = in.readLine()) != null) {
+                log.accept("Received: " + request);
+                String line = request;
+                this.<String>handle((executor, sink) -> requestHandler.handleRequest(line,
+                        clientSocket.getRemoteSocketAddress(), session, executor, sink), out::println, String::length);
+                out.flush();
+
+                if (session.isSubscribed()) {
+                    forwardPushes(pushes, out::println, () -> {
+                        out.flush();
+                        if (out.checkError()) {
+                            throw new IOException("Push connection lost");
+                        }
+                    });
+                    return;
+                }
+            }
+        } finally {
+            session.close();
+        }
+    }
+
+    private void serveFrames(DataInputStream in, BufferedOutputStream out) throws IOException, InterruptedException {
+        byte[] handshake = new byte[Protocol.HANDSHAKE_LENGTH];
+        in.readFully(handshake);
+        int version = Protocol.negotiate(Protocol.handshakeVersion(handshake));
+        if (version < 0) {
+            throw new IOException("Invalid protocol handshake");
+        }
+        out.write(Protocol.handshake(version));
+        out.flush();
+        boolean tagged = version >= Protocol.REQUEST_ID_VERSION;
+
+        BlockingQueue<ByteBuffer> pushes = new LinkedBlockingQueue<>();
+        Subscriptions.Session<ByteBuffer> session = new Subscriptions.Session<>(pushes::add);
+        Consumer<ByteBuffer> writer = response -> {
+            try {
+                out.write(response.array(), response.arrayOffset() + response.position(), response.remaining());
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        };
+        try {
+            while (true) {
+                byte[] request;
+                try {
+                    request = new byte[FrameReader.checkLength(in.readInt())];
+                } catch (EOFException e) {
+                    return;     // the client closed the connection between two requests
+                }
+                in.readFully(request);
+                ByteBuffer frame = ByteBuffer.wrap(request);
+                // the response frames carry the id of the request
+                Consumer<ByteBuffer> response = tagged ? FrameWriter.tagging(FrameReader.readRequestId(frame), writer) : writer;
+                this.<ByteBuffer>handle((executor, sink) -> requestHandler.handleFrame(frame,
+                        clientSocket.getRemoteSocketAddress(), session, executor, sink), response, ByteBuffer::remaining);
+                out.flush();
+
+                if (session.isSubscribed()) {
+                    forwardPushes(pushes, tagged ? FrameWriter.tagging(Protocol.PUSH_REQUEST_ID, writer) : writer,
+                            out::flush);
+                    return;
+                }
+            }
+        } finally {
+            session.close();
+        }
+    }
+
+    /**
+     * Serves a subscribed connection until it breaks: the connection thread writes the pushes queued by the
+     * subscription, and no longer reads requests. A client that went away is noticed when a push or heartbeat fails to
+     * be written; once the heartbeats stop because the server stopped, the connection is closed.
+     *
+     * @param out   writes a push to the buffered output
+     * @param flush flushes the buffered output
+     */
+    private <T> void forwardPushes(BlockingQueue<T> pushes, Consumer<T> out, Flushable flush)
+            throws IOException, InterruptedException {
+        T push;
+        while ((push = pushes.poll(2L * Subscriptions.HEARTBEAT_MILLIS, TimeUnit.MILLISECONDS)) != null) {
+            out.accept(push);
+            while ((push = pushes.poll()) != null) {
+                out.accept(push);
+            }
+            flush.flush();
+        }
+    }
+
+    /**
+     * Runs the handler, holding a permit if a cap is set. Without a cap the response goes to the buffered output while
+     * it is produced; with a cap it is collected, and written without the permit every RESPONSE_BUFFER_SIZE and at the
+     * end, so a slow reader cannot hold a permit and a streamed response is never held in memory as a whole.
+     * A long poll waits here, without a permit: its continuation is handed back to this thread, which runs it once the
+     * mailbox wakes the poll up, so the response is still written by the connection thread.
+     *
+     * @param handler runs the request with the given executor, writing the response to the sink it is given
+     * @param out     writes a piece of the response to the buffered output
+     * @param size    the size of a piece of the response
+     */
+    private <T> void handle(BiFunction<Executor, Consumer<T>, CompletableFuture<Void>> handler, Consumer<T> out,
+                            ToIntFunction<T> size) throws InterruptedException {
+        BlockingQueue<Runnable> continuations = new LinkedBlockingQueue<>();
+        CompletableFuture<Void> done;
+        CappedResponse<T> response = null;
+        if (requestPermits == null) {
+            done = handler.apply(continuations::add, out);
+        } else {
+            response = new CappedResponse<>(out, size);
+            requestPermits.acquire();
+            response.holdsPermit = true;
+            try {
+                done = handler.apply(continuations::add, response);
+            } finally {
+                response.holdsPermit = false;
+                requestPermits.release();
+            }
+        }
+        while (!done.isDone()) {
+            continuations.take().run();
+        }
+        done.join();
+        if (response != null) {
+            response.write();
+        }
+    }
+
+    /**
+     * The sink of a request handled with a permit: collects the pieces of the response, and writes them once they reach
+     * RESPONSE_BUFFER_SIZE, giving the permit back for as long as the write takes. The handlers read what they stream
+     * before they start writing it, so they hold no lock while the permit is given back.
+     */
+    private final class CappedResponse<T> implements Consumer<T> {
+        private final Consumer<T> out;
+        private final ToIntFunction<T> size;
+        private final List<T> collected = new ArrayList<>();
+        private long collectedSize;
+        private boolean holdsPermit;
+
+        CappedResponse(Consumer<T> out, ToIntFunction<T> size) {
+            this.out = out;
+            this.size = size;
+        }
+
+        @Override
+        public void accept(T piece) {
+            collected.add(piece);
+            collectedSize += size.applyAsInt(piece);
+            if (collectedSize < RESPONSE_BUFFER_SIZE) {
+                return;
+            }
+            if (!holdsPermit) {
+                write();
+                return;
+            }
+            requestPermits.release();
+            try {
+                write();
+            } finally {
+                requestPermits.acquireUninterruptibly();
+            }
+        }
+
+        void write() {
+            collected.forEach(out);
+            collected.clear();
+            collectedSize = 0;
+        }
+    }
+}
@@ -0,0 +1,111 @@
+package com.prog3.server.core;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Bounded lock-free buffer of log messages, written by any number of threads and read by a single consumer.
+ * Publishing never blocks and does not allocate: when the buffer is full the message is dropped and counted, so a slow
+ * consumer (the UI) cannot slow down the threads serving requests.
+ * <p>
+ * Every slot has a sequence number telling whose turn it is: a producer claims position p by moving the tail from p
+ * to p + 1, fills the slot and sets its sequence to p + 1, which makes it visible to the consumer; the consumer empties
+ * it and sets its sequence to p + capacity, handing it back to the producer of the next round.
+ */
+public class LogRingBuffer {
+    private final int capacity;
+    private final int mask;
+    private final AtomicLongArray sequences;
+    private final long[] timestamps;
+    private final String[] messages;
+    private final AtomicLong tail = new AtomicLong();    // next position claimed by a producer
+    private final LongAdder dropped = new LongAdder();
+    private long head;                                  // next position read by the consumer
+
+    /**
+     * Receives the drained entries
+     */
+    @FunctionalInterface
+    public interface EntryConsumer {
+        void accept(long timestampMillis, String message);
+    }
+
+    /**
+     * @param capacity number of messages the buffer can hold, rounded up to a power of two
+     */
+    public LogRingBuffer(int capacity) {
+        if (capacity < 1 || capacity > 1 << 30) {
+            throw new IllegalArgumentException("Invalid log buffer capacity: " + capacity);
+        }
+        this.capacity = capacity == 1 ? 1 : Integer.highestOneBit(capacity - 1) << 1;
+        this.mask = this.capacity - 1;
+        this.sequences = new AtomicLongArray(this.capacity);
+        this.timestamps = new long[this.capacity];
+        this.messages = new String[this.capacity];
+        for (int i = 0; i < this.capacity; i++) {
+            sequences.set(i, i);
+        }
+    }
+
+    /**
+     * Adds a message stamped with the current time, can be called from any thread
+     *
+     * @return false if the buffer was full and the message has been dropped
+     */
+    public boolean publish(String message) {
+        long now = System.currentTimeMillis();
+        long position = tail.get();
+        while (true) {
+            int index = (int) position & mask;
+            long difference = sequences.getAcquire(index) - position;
+            if (difference == 0) {
+                if (tail.compareAndSet(position, position + 1)) {
+                    timestamps[index] = now;
+                    messages[index] = message;
+                    sequences.setRelease(index, position + 1);
+                    return true;
+                }
+                position = tail.get();
+            } else if (difference < 0) {
+                // the slot still holds the message of the previous round: the buffer is full
+                dropped.increment();
+                return false;
+            } else {
+                position = tail.get();      // another producer claimed this position first
+            }
+        }
+    }
+
+    /**
+     * Hands the buffered messages, oldest first, to the consumer. Must always be called from the same thread.
+     *
+     * @param consumer   receives every drained message
+     * @param maxEntries maximum number of messages drained by this call
+     * @return the number of drained messages
+     */
+    public int drain(EntryConsumer consumer, int maxEntries) {
+        int drained = 0;
+        while (drained < maxEntries) {
+            int index = (int) head & mask;
+            if (sequences.getAcquire(index) != head + 1) {
+                break;
+            }
+            String message = messages[index];
+            long timestamp = timestamps[index];
+            messages[index] = null;
+            sequences.setRelease(index, head + capacity);
+            head++;
+            drained++;
+            consumer.accept(timestamp, message);
+        }
+        return drained;
+    }
+
+    /**
+     * @return the number of messages dropped because the buffer was full, since it was created
+     */
+    public long droppedCount() {
+        return dropped.sum();
+    }
+}
@@ -0,0 +1,164 @@
+package com.prog3.server.core;
+
+import com.prog3.server.model.Email;
+import com.prog3.server.model.MailboxListener;
+import com.prog3.server.model.ServerStorage;
+import com.prog3.server.model.User;
+
+import java.io.IOException;
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.Set;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.function.Consumer;
+
+/**
+ * The mail server without any user interface: it owns the storage and the connection handling, and reports what
+ * happens to a log consumer. It is started by ServerDaemon when running headless, or driven by the JavaFX admin view.
+ */
+public class MailServer {
+    public static final int SERVER_PORT = 8082;
+    // NIO mode sizing, can be overridden with -Dmailfx.nio.ioThreads / -Dmailfx.nio.handlerThreads
+    private static final int NIO_IO_THREADS = Integer.getInteger("mailfx.nio.ioThreads", 2);
+    private static final int NIO_HANDLER_THREADS = Integer.getInteger("mailfx.nio.handlerThreads",
+            Runtime.getRuntime().availableProcessors() * 2);
+    // Virtual threads mode: connections are unbounded, requests being handled at the same time are not
+    private static final int MAX_IN_FLIGHT_REQUESTS = Integer.getInteger("mailfx.vt.maxInFlightRequests", 1000);
+
+    private final ServerStorage serverStorage;
+    private final Consumer<String> log;
+    // Users whose mailbox changes are logged; a reload keeps the User objects, and with them the listeners
+    private final Set<User> loggedUsers = Collections.newSetFromMap(new IdentityHashMap<>());
+    private boolean logMailboxChanges;
+
+    private RequestHandler requestHandler;
+    private BlockingServer blockingServer;
+    private NioServer nioServer;
+
+    /**
+     * Loads the storage, the server is not listening until start is called
+     *
+     * @param dataDirectory path of the permanent storage directory "data"
+     * @param log           receives the server log messages, from any thread
+     */
+    public MailServer(String dataDirectory, Consumer<String> log) throws Exception {
+        this.log = log;
+        this.serverStorage = new ServerStorage(dataDirectory, log);
+    }
+
+    public ServerStorage getStorage() {
+        return serverStorage;
+    }
+
+    public synchronized boolean isRunning() {
+        return blockingServer != null || nioServer != null;
+    }
+
+    /**
+     * Starts accepting connections on SERVER_PORT
+     *
+     * @param mode how client connections are handled
+     */
+    public synchronized void start(ServerMode mode) throws IOException {
+        if (isRunning()) {
+            throw new IllegalStateException("Server already running");
+        }
+        log.accept("Starting server...");
+        log.accept("Users: " + serverStorage.listUsers());
+
+        requestHandler = new RequestHandler(serverStorage, log);
+        switch (mode) {
+            case NIO -> {
+                NioServer server = new NioServer(SERVER_PORT, NIO_IO_THREADS, NIO_HANDLER_THREADS, requestHandler, log);
+                try {
+                    server.start();
+                } catch (IOException e) {
+                    server.stop();
+                    throw e;
+                }
+                nioServer = server;
+                log.accept("Server started on port " + SERVER_PORT + " (NIO, " + NIO_IO_THREADS + " I/O threads)");
+            }
+            case VIRTUAL_THREADS -> startBlockingServer(new BlockingServer(SERVER_PORT, requestHandler,
+                    Executors.newVirtualThreadPerTaskExecutor(), new Semaphore(MAX_IN_FLIGHT_REQUESTS), log));
+            default -> startBlockingServer(new BlockingServer(SERVER_PORT, requestHandler,
+                    Executors.newCachedThreadPool(), null, log));
+        }
+    }
+
+    private void startBlockingServer(BlockingServer server) throws IOException {
+        try {
+            server.start();
+        } catch (IOException e) {
+            server.stop();
+            throw e;
+        }
+        blockingServer = server;
+        log.accept("Server started on port " + SERVER_PORT);
+    }
+
+    /**
+     * Stops accepting connections and shuts down the connection threads, the storage stays loaded
+     */
+    public synchronized void stop() {
+        log.accept("Stopping server...");
+        if (blockingServer != null) {
+            blockingServer.stop();
+            blockingServer = null;
+        }
+        if (nioServer != null) {
+            nioServer.stop();
+            nioServer = null;
+        }
+        if (requestHandler != null) {
+            requestHandler.close();
+            requestHandler = null;
+        }
+        log.accept("Server stopped successfully.");
+    }
+
+    /**
+     * Stops the server, if running, and the storage: called once, when the process exits
+     */
+    public synchronized void close() throws InterruptedException {
+        if (isRunning()) {
+            stop();
+        }
+        serverStorage.close();
+    }
+
+    public synchronized void reloadStorage() throws Exception {
+        serverStorage.reloadFromFile();
+        if (logMailboxChanges) {
+            listenToNewMailboxes();
+        }
+    }
+
+    /**
+     * Logs every email added to or removed from a mailbox, for the users loaded now and for the ones found by later
+     * reloads. Each mailbox is listened to once, however many times the storage is reloaded.
+     */
+    public synchronized void logMailboxChanges() {
+        logMailboxChanges = true;
+        listenToNewMailboxes();
+    }
+
+    private void listenToNewMailboxes() {
+        for (User user : serverStorage.getUsers().values()) {
+            if (loggedUsers.add(user)) {
+                user.addMailboxListener(new MailboxListener() {
+                    @Override
+                    public void emailAdded(Email email) {
+                        log.accept("Email added to " + user.getEmail() + "'s inbox: " + email.toString());
+                    }
+
+                    @Override
+                    public void emailRemoved(Email email) {
+                        log.accept("Email removed from " + user.getEmail() + "'s inbox: " + email.toString());
+                    }
+                });
+            }
+        }
+    }
+}
@@ -0,0 +1,595 @@
+package com.prog3.server.core;
+
+import com.prog3.protocol.FrameReader;
+import com.prog3.protocol.FrameWriter;
+import com.prog3.protocol.Protocol;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.*;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.Queue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Consumer;
+import java.util.function.Function;
+
+/**
+ * Non-blocking server mode: a small, fixed number of I/O threads each own a Selector and multiplex many
+ * SocketChannels. Incoming bytes are framed into "\n" terminated request lines, or into length-prefixed frames when the
+ * connection opens with the handshake of the binary protocol, and the requests are handed to a bounded pool of
+ * handler threads running the same RequestHandler used by SingleClientController (storage calls may block on file
+ * I/O, so they must never run on a selector thread). Requests of the same connection are handled in order.
+ * Responses are queued for the selector thread in chunks while the handler produces them, so a streamed page starts
+ * reaching the client before it has been fully serialized. Pushes to a subscribed connection are queued after the
+ * response being handled, so they never interleave with it.
+ * <p>
+ * A client that sends requests faster than it reads the responses is not read from while MAX_PENDING_REQUESTS of its
+ * requests wait to be handled or MAX_QUEUED_BYTES of responses wait to be written, so it cannot fill the heap; a
+ * subscriber that falls MAX_QUEUED_BYTES behind its pushes is disconnected, and catches up with a SYNC once it
+ * reconnects.
+ */
+class NioServer {
+    private static final int READ_BUFFER_SIZE = 8 * 1024;
+    private static final int WRITE_CHUNK_SIZE = 16 * 1024;
+    private static final int MAX_LINE_LENGTH = 16 * 1024 * 1024;
+    // Backpressure, can be overridden with -Dmailfx.nio.maxPendingRequests / -Dmailfx.nio.maxQueuedBytes
+    private static final int MAX_PENDING_REQUESTS = Integer.getInteger("mailfx.nio.maxPendingRequests", 64);
+    private static final int MAX_QUEUED_BYTES = Integer.getInteger("mailfx.nio.maxQueuedBytes", 4 * 1024 * 1024);
+
+    private final int port;
+    private final RequestHandler requestHandler;
+    private final Consumer<String> log;
+    private final EventLoop[] eventLoops;
+    private final ExecutorService handlerPool;
+
+    private volatile boolean running;
+    private ServerSocketChannel serverChannel;
+    private int nextLoop;
+
+    /**
+     * Constructor for the NioServer class
+     *
+     * @param port             the port to listen on
+     * @param ioThreads        number of selector threads
+     * @param handlerThreads   number of threads running request handlers
+     * @param requestHandler   the protocol handler shared by all connections
+     * @param log              receives the server log messages
+     */
+    NioServer(int port, int ioThreads, int handlerThreads, RequestHandler requestHandler, Consumer<String> log) {
+        this.port = port;
+        this.requestHandler = requestHandler;
+        this.log = log;
+        this.eventLoops = new EventLoop[ioThreads];
+        this.handlerPool = Executors.newFixedThreadPool(handlerThreads);
+    }
+
+    /**
+     * Opens the listening channel and starts the I/O threads. The first event loop also accepts new connections and
+     * distributes them round-robin over all the loops.
+     */
+    void start() throws IOException {
+        serverChannel = ServerSocketChannel.open();
+        serverChannel.bind(new InetSocketAddress(port));
+        serverChannel.configureBlocking(false);
+
+        for (int i = 0; i < eventLoops.length; i++) {
+            eventLoops[i] = new EventLoop(Selector.open());
+        }
+        serverChannel.register(eventLoops[0].selector, SelectionKey.OP_ACCEPT);
+
+        running = true;
+        for (int i = 0; i < eventLoops.length; i++) {
+            Thread thread = new Thread(eventLoops[i], "nio-io-" + i);
+            thread.setDaemon(true);
+            thread.start();
+        }
+    }
+
+    /**
+     * Closes the listening channel, every open connection and the handler pool
+     */
+    void stop() {
+        running = false;
+        try {
+            if (serverChannel != null) {
+                serverChannel.close();
+            }
+        } catch (IOException e) {
+            log.accept("Error closing server channel: " + e.getMessage());
+        }
+        for (EventLoop eventLoop : eventLoops) {
+            if (eventLoop != null) {
+                eventLoop.selector.wakeup();
+            }
+        }
+        handlerPool.shutdown();
+    }
+
+    private void accept() throws IOException {
+        SocketChannel channel;
+        while ((channel = serverChannel.accept()) != null) {
+            channel.configureBlocking(false);
+            log.accept("Opened connection");
+            EventLoop target = eventLoops[nextLoop];
+            nextLoop = (nextLoop + 1) % eventLoops.length;
+            SocketChannel accepted = channel;
+            target.execute(() -> target.register(accepted));
+        }
+    }
+
+    /**
+     * A selector thread. Other threads never touch the selector directly: they enqueue a task and wake it up.
+     */
+    private class EventLoop implements Runnable {
+        private final Selector selector;
+        private final Queue<Runnable> tasks = new ConcurrentLinkedQueue<>();
+
+        EventLoop(Selector selector) {
+            this.selector = selector;
+        }
+
+        void execute(Runnable task) {
+            tasks.add(task);
+            selector.wakeup();
+        }
+
+        void register(SocketChannel channel) {
+            try {
+                Connection connection = new Connection(channel, this);
+                connection.key = channel.register(selector, SelectionKey.OP_READ, connection);
+            } catch (IOException e) {
+                log.accept("Error registering client connection: " + e.getMessage());
+                closeQuietly(channel);
+            }
+        }
+
+        @Override
+        public void run() {
+            try {
+                while (running) {
+                    selector.select();
+                    Runnable task;
+                    while ((task = tasks.poll()) != null) {
+                        task.run();
+                    }
+
+                    Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+                    while (keys.hasNext()) {
+                        SelectionKey key = keys.next();
+                        keys.remove();
+                        if (!key.isValid()) {
+                            continue;
+                        }
+                        if (key.isAcceptable()) {
+                            accept();
+                            continue;
+                        }
+                        Connection connection = (Connection) key.attachment();
+                        try {
+                            if (key.isReadable()) {
+                                connection.read();
+                            }
+                            if (key.isValid() && key.isWritable()) {
+                                connection.write();
+                            }
+                        } catch (IOException e) {
+                            log.accept("Client connection error: " + e.getMessage());
+                            connection.close();
+                        }
+                    }
+                }
+            } catch (IOException | ClosedSelectorException e) {
+                if (running) {
+                    log.accept("Error in NIO event loop: " + e.getMessage());
+                }
+            } finally {
+                for (SelectionKey key : selector.keys()) {
+                    if (key.attachment() instanceof Connection connection) {
+                        connection.close();
+                    }
+                }
+                try {
+                    selector.close();
+                } catch (IOException e) {
+                    log.accept("Error closing selector: " + e.getMessage());
+                }
+            }
+        }
+    }
+
+    /**
+     * Per-connection state. Reading, framing and writing happen on the owning event loop thread only; handler threads
+     * publish responses through the write queue.
+     */
+    private class Connection {
+        private final SocketChannel channel;
+        private final EventLoop eventLoop;
+        private final SocketAddress remoteAddress;
+        private final ByteBuffer readBuffer = ByteBuffer.allocate(READ_BUFFER_SIZE);
+        private final Queue<ByteBuffer> writeQueue = new ConcurrentLinkedQueue<>();
+        private final AtomicLong queuedBytes = new AtomicLong();            // still in writeQueue
+        private final AtomicInteger pendingRequests = new AtomicInteger();  // dispatched and not handled yet
+        private volatile boolean readPaused;
+        private SelectionKey key;
+
+        private byte[] line = new byte[256];
+        private int lineLength;
+        // binary protocol: chosen by the first byte read, then the handshake, then length prefix and frame, in turn
+        private boolean protocolChosen;
+        private boolean binary;
+        private boolean handshakeDone;
+        private boolean tagged;         // the frames carry request ids
+        private final byte[] header = new byte[Protocol.HANDSHAKE_LENGTH];
+        private int headerLength;
+        private byte[] frame;           // null while the length prefix is read
+        private int frameLength;
+        private boolean inputClosed;
+        private boolean closed;
+        // completes when every request read so far has been handled, keeps responses in request order
+        private CompletableFuture<Void> pending = CompletableFuture.completedFuture(null);
+        // push state, only the one of the protocol chosen is used
+        private final Subscriptions.Session<String> lineSession = new Subscriptions.Session<>(line -> push(encodeLine(line)));
+        private final Subscriptions.Session<ByteBuffer> frameSession = new Subscriptions.Session<>(frame -> {
+            if (tagged) {
+                // a push is queued as a single buffer, so nothing can be queued between its id and its fields
+                ByteBuffer push = ByteBuffer.allocate(frame.remaining() + Integer.BYTES);
+                FrameWriter.tagging(Protocol.PUSH_REQUEST_ID, push::put).accept(frame);
+                push(push.flip());
+            } else {
+                push(frame);
+            }
+        });
+
+        Connection(SocketChannel channel, EventLoop eventLoop) throws IOException {
+            this.channel = channel;
+            this.eventLoop = eventLoop;
+            this.remoteAddress = channel.getRemoteAddress();
+        }
+
+        void read() throws IOException {
+            int read = channel.read(readBuffer);
+            if (read == -1) {
+                inputClosed = true;
+                key.interestOps(key.interestOps() & ~SelectionKey.OP_READ);
+                pending.whenComplete((ignored, error) -> eventLoop.execute(this::closeIfDone));
+                return;
+            }
+
+            if (lineSession.isSubscribed() || frameSession.isSubscribed()) {
+                // a subscribed connection only carries pushes, anything the client sends is ignored
+                readBuffer.clear();
+                return;
+            }
+            dispatchInput();
+        }
+
+        /**
+         * Frames and dispatches the bytes in the read buffer. Once the connection is busy the rest stays in the buffer,
+         * and the socket is no longer read, until resumeReading.
+         */
+        private void dispatchInput() throws IOException {
+            readBuffer.flip();
+            if (!protocolChosen && readBuffer.hasRemaining()) {
+                binary = readBuffer.get(0) == Protocol.MAGIC[0];
+                protocolChosen = true;
+            }
+            if (binary) {
+                readFrames();
+            } else {
+                readLines();
+            }
+            readBuffer.compact();
+            pauseReadingIfBusy();
+        }
+
+        /**
+         * Stops reading requests while too many wait to be handled or too many response bytes wait to be written.
+         * The flag is set before the counters are checked, and handlers update the counters before reading it, so a
+         * request completing meanwhile either is seen here or sees the flag and resumes reading.
+         */
+        private void pauseReadingIfBusy() {
+            readPaused = true;
+            if (isBusy()) {
+                key.interestOps(key.interestOps() & ~SelectionKey.OP_READ);
+            } else {
+                readPaused = false;
+            }
+        }
+
+        /**
+         * Dispatches the requests left in the read buffer and reads the socket again, once the connection is no longer
+         * busy
+         */
+        private void resumeReading() {
+            if (!readPaused || isBusy() || !key.isValid()) {
+                return;
+            }
+            readPaused = false;
+            try {
+                dispatchInput();
+            } catch (IOException e) {
+                log.accept("Client connection error: " + e.getMessage());
+                close();
+                return;
+            }
+            if (!readPaused && !inputClosed) {
+                key.interestOps(key.interestOps() | SelectionKey.OP_READ);
+            }
+        }
+
+        private boolean isBusy() {
+            return pendingRequests.get() >= MAX_PENDING_REQUESTS || queuedBytes.get() >= MAX_QUEUED_BYTES;
+        }
+
+        private void readLines() throws IOException {
+            while (readBuffer.hasRemaining()) {
+                byte b = readBuffer.get();
+                if (b == '\n') {
+                    dispatch(new String(line, 0, stripCarriageReturn(), StandardCharsets.UTF_8));
+                    lineLength = 0;
+                    if (isBusy()) {
+                        return;
+                    }
+                } else {
+                    if (lineLength == line.length) {
+                        if (line.length >= MAX_LINE_LENGTH) {
+                            throw new IOException("Request line too long from: " + remoteAddress);
+                        }
+                        line = Arrays.copyOf(line, Math.min(line.length * 2, MAX_LINE_LENGTH));
+                    }
+                    line[lineLength++] = b;
+                }
+            }
+        }
+
+        /**
+         * Copies the bytes read into the handshake, length prefix or frame being read, and dispatches complete frames.
+         * A frame is read into an array of its exact size, which is then handed to the handler without copying.
+         */
+        private void readFrames() throws IOException {
+            while (readBuffer.hasRemaining()) {
+                if (frame == null) {
+                    int headerSize = handshakeDone ? Integer.BYTES : Protocol.HANDSHAKE_LENGTH;
+                    int count = Math.min(headerSize - headerLength, readBuffer.remaining());
+                    readBuffer.get(header, headerLength, count);
+                    headerLength += count;
+                    if (headerLength < headerSize) {
+                        return;
+                    }
+                    headerLength = 0;
+                    if (handshakeDone) {
+                        frame = new byte[FrameReader.checkLength(ByteBuffer.wrap(header).getInt())];
+                        frameLength = 0;
+                    } else {
+                        acceptHandshake();
+                    }
+                } else {
+                    int count = Math.min(frame.length - frameLength, readBuffer.remaining());
+                    readBuffer.get(frame, frameLength, count);
+                    frameLength += count;
+                    if (frameLength == frame.length) {
+                        dispatchFrame(frame);
+                        frame = null;
+                        if (isBusy()) {
+                            return;
+                        }
+                    }
+                }
+            }
+        }
+
+        private void acceptHandshake() throws IOException {
+            int version = Protocol.negotiate(Protocol.handshakeVersion(header));
+            if (version < 0) {
+                throw new IOException("Invalid protocol handshake from: " + remoteAddress);
+            }
+            handshakeDone = true;
+            tagged = version >= Protocol.REQUEST_ID_VERSION;
+            // nothing was dispatched before the handshake, so the answer is the first thing written
+            queue(ByteBuffer.wrap(Protocol.handshake(version)));
+            enableWrite();
+        }
+
+        private int stripCarriageReturn() {
+            return lineLength > 0 && line[lineLength - 1] == '\r' ? lineLength - 1 : lineLength;
+        }
+
+        private void dispatch(String request) {
+            handle(response -> {
+                log.accept("Received: " + request);
+                return requestHandler.handleRequest(request, remoteAddress, lineSession, handlerPool,
+                        line -> response.add(encodeLine(line)));
+            });
+        }
+
+        private void dispatchFrame(byte[] request) throws IOException {
+            ByteBuffer frame = ByteBuffer.wrap(request);
+            int requestId = tagged ? FrameReader.readRequestId(frame) : Protocol.PUSH_REQUEST_ID;
+            handle(response -> requestHandler.handleFrame(frame, remoteAddress, frameSession, handlerPool,
+                    tagged ? FrameWriter.tagging(requestId, response::add) : response::add));
+        }
+
+        /**
+         * Runs a request on the handler pool after the previous ones. A long poll frees its handler thread while it
+         * waits: the next request of the connection starts once its response has been queued.
+         *
+         * @param handler runs the request, giving the response to the chunks, and returns when it completes
+         */
+        private void handle(Function<ResponseChunks, CompletableFuture<Void>> handler) {
+            pendingRequests.incrementAndGet();
+            pending = pending.thenComposeAsync(ignored -> {
+                ResponseChunks response = new ResponseChunks(this::send);
+                CompletableFuture<Void> handled;
+                try {
+                    handled = handler.apply(response);
+                } catch (RuntimeException e) {
+                    handled = CompletableFuture.failedFuture(e);
+                }
+                // never completes exceptionally, or the following requests would be skipped
+                return handled.handle((done, error) -> {
+                    if (error == null) {
+                        response.flush();
+                    } else {
+                        abort(error);
+                    }
+                    pendingRequests.decrementAndGet();
+                    if (readPaused) {
+                        eventLoop.execute(this::resumeReading);
+                    }
+                    return null;
+                });
+            }, handlerPool);
+        }
+
+        /**
+         * Queues part of a response, can be called from any thread
+         */
+        private void send(ByteBuffer buffer) {
+            queue(buffer);
+            eventLoop.execute(this::enableWrite);
+        }
+
+        private void queue(ByteBuffer buffer) {
+            queuedBytes.addAndGet(buffer.remaining());
+            writeQueue.add(buffer);
+        }
+
+        /**
+         * Queues a push after the responses still being produced, can be called from any thread.
+         * A subscriber that does not read its pushes is disconnected rather than buffered for without limit.
+         */
+        private void push(ByteBuffer buffer) {
+            eventLoop.execute(() -> {
+                if (closed) {
+                    return;
+                }
+                if (queuedBytes.get() >= MAX_QUEUED_BYTES) {
+                    log.accept("Closing connection of: " + remoteAddress + ", it is not reading its pushes");
+                    close();
+                    return;
+                }
+                pending = pending.thenRun(() -> send(buffer));
+            });
+        }
+
+        private static ByteBuffer encodeLine(String line) {
+            return ByteBuffer.wrap((line + "\n").getBytes(StandardCharsets.UTF_8));
+        }
+
+        /**
+         * A response failed halfway: the client cannot make sense of what it got, so the connection is dropped
+         */
+        private void abort(Throwable e) {
+            log.accept("Error handling request from: " + remoteAddress + ", closing connection: " + e.getMessage());
+            eventLoop.execute(this::close);
+        }
+
+        private void enableWrite() {
+            if (key.isValid()) {
+                key.interestOps(key.interestOps() | SelectionKey.OP_WRITE);
+            }
+        }
+
+        void write() throws IOException {
+            ByteBuffer buffer;
+            while ((buffer = writeQueue.peek()) != null) {
+                queuedBytes.addAndGet(-channel.write(buffer));
+                if (buffer.hasRemaining()) {
+                    resumeReading();
+                    return; // socket buffer full, wait for the next OP_WRITE
+                }
+                writeQueue.poll();
+            }
+            key.interestOps(key.interestOps() & ~SelectionKey.OP_WRITE);
+            resumeReading();
+            closeIfDone();
+        }
+
+        private void closeIfDone() {
+            if (inputClosed && pending.isDone() && writeQueue.isEmpty()) {
+                close();
+            }
+        }
+
+        void close() {
+            if (closed) {
+                return;
+            }
+            closed = true;
+            lineSession.close();
+            frameSession.close();
+            key.cancel();
+            closeQuietly(channel);
+            log.accept("Connection closed");
+        }
+    }
+
+    /**
+     * Gathers the pieces of a response into chunks of about WRITE_CHUNK_SIZE bytes, so that a streamed response reaches
+     * the socket while it is produced without a write per email. A response made of a single piece is passed on as is.
+     */
+    private static final class ResponseChunks {
+        private final Consumer<ByteBuffer> sink;
+        private ByteBuffer first;
+        private ByteBuffer chunk;
+
+        ResponseChunks(Consumer<ByteBuffer> sink) {
+            this.sink = sink;
+        }
+
+        void add(ByteBuffer piece) {
+            if (first == null && chunk == null) {
+                first = piece;
+                return;
+            }
+            if (first != null) {
+                ByteBuffer held = first;
+                first = null;
+                append(held);
+            }
+            append(piece);
+        }
+
+        private void append(ByteBuffer piece) {
+            if (chunk != null && chunk.remaining() < piece.remaining()) {
+                sink.accept(chunk.flip());
+                chunk = null;
+            }
+            if (piece.remaining() >= WRITE_CHUNK_SIZE) {
+                sink.accept(piece);
+                return;
+            }
+            if (chunk == null) {
+                chunk = ByteBuffer.allocate(WRITE_CHUNK_SIZE);
+            }
+            chunk.put(piece);
+        }
+
+        void flush() {
+            if (first != null) {
+                sink.accept(first);
+                first = null;
+            } else if (chunk != null && chunk.position() > 0) {
+                sink.accept(chunk.flip());
+                chunk = null;
+            }
+        }
+    }
+
+    private void closeQuietly(SocketChannel channel) {
+        try {
+            channel.close();
+        } catch (IOException e) {
+            log.accept("Error closing client socket: " + e.getMessage());
+        }
+    }
+}
@@ -0,0 +1,792 @@
+package com.prog3.server.core;
+
+import com.prog3.protocol.FrameReader;
+import com.prog3.protocol.FrameWriter;
+import com.prog3.protocol.Protocol;
+import com.prog3.server.model.*;
+
+import java.net.ProtocolException;
+import java.net.SocketAddress;
+import java.nio.ByteBuffer;
+import java.time.LocalDateTime;
+import java.time.format.DateTimeParseException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Objects;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+import java.util.function.Function;
+import java.util.function.Supplier;
+
+/**
+ * Protocol logic shared by every connection handling mode.
+ * A request is either one "|"-delimited text line or one frame of the binary protocol (see Protocol). The response, in
+ * the same protocol, is handed to a sink: every request produces one line or frame, except GET_MESSAGES_PAGE and the
+ * text SYNC and SEARCH, which stream a header and then one line or frame per email as they are serialized.
+ * WAIT_NEW_MESSAGES may answer later, when a new email arrives: the handler returns a future instead of blocking the
+ * calling thread. After a successful
+ * SUBSCRIBE the connection only carries the pushes of its Subscriptions.Session. The same instance is used both by
+ * the blocking SingleClientController and by the NIO event loop.
+ * <p>
+ * Storage keeps bodies in the escaped form of the line protocol ("\n" and "\|"); binary requests carry the plain text,
+ * which is converted only here.
+ * <p>
+ * GET_MESSAGES_PAGE and SYNC can list the emails with a preview in place of the body ("PREVIEWS" at the end of the
+ * text request, Protocol.PREVIEW_LISTING in a frame); the client then reads a body with FETCH_BODY when it is opened.
+ */
+class RequestHandler {
+    // larger pages are cut to this size, the client follows the cursor for the rest
+    static final int MAX_PAGE_LIMIT = 500;
+    // longer long polls are cut to this time, the client just polls again
+    static final long MAX_WAIT_MILLIS = 120_000;
+    // searches return at most this many matches
+    static final int MAX_SEARCH_LIMIT = 100;
+    // the last field of a text GET_MESSAGES_PAGE or SYNC asking for previews instead of bodies
+    private static final String PREVIEWS = "PREVIEWS";
+    // the answer to a SYNC of a mailbox that did not change, the most common poll: built once
+    private static final String NOT_MODIFIED_LINE = "NOT_MODIFIED";
+    private static final ByteBuffer NOT_MODIFIED_FRAME = new FrameWriter(Protocol.NOT_MODIFIED).toByteBuffer();
+
+    private final ServerStorage serverStorage;
+    private final Subscriptions subscriptions;
+    private final Consumer<String> log;
+
+    /**
+     * Outcome of a request that answers with a message
+     */
+    private record Response(boolean success, String message) {
+        static Response success(String message) {
+            return new Response(true, message);
+        }
+
+        static Response error(String message) {
+            return new Response(false, message);
+        }
+    }
+
+    /**
+     * A streamed response failed after part of it was written, the client can only be disconnected
+     */
+    static class PartialResponseException extends RuntimeException {
+        PartialResponseException(Throwable cause) {
+            super("Response interrupted: " + cause.getMessage(), cause);
+        }
+    }
+
+    /**
+     * Constructor for the RequestHandler class
+     *
+     * @param serverStorage the main Model class
+     * @param log           receives the server log messages
+     */
+    RequestHandler(ServerStorage serverStorage, Consumer<String> log) {
+        this.serverStorage = serverStorage;
+        this.subscriptions = new Subscriptions(serverStorage, log);
+        this.log = log;
+    }
+
+    /**
+     * Stops the push heartbeats, called when the server stops
+     */
+    void close() {
+        subscriptions.shutdown();
+    }
+
+    /**
+     * Method that handles any request and dispatches them via a switch construct if the client mail is in the server
+     * storage map.
+     * An exception thrown while a response is streamed means the client got part of it: the connection must be closed.
+     *
+     * @param requestString incoming request string
+     * @param clientAddress remote address of the connection, used only for logging
+     * @param session       push state of the connection
+     * @param executor      runs the rest of a long poll once it is woken up
+     * @param out           receives the response lines (without line terminator)
+     * @return completes once the whole response has been given to out; it is already complete unless the request is a
+     * long poll waiting for new emails
+     */
+    CompletableFuture<Void> handleRequest(String requestString, SocketAddress clientAddress,
+                                          Subscriptions.Session<String> session, Executor executor,
+                                          Consumer<String> out) {
+        return dispatch(requestString, clientAddress, session, executor, out).thenAccept(response -> {
+            if (response != null) {
+                out.accept(response);
+            }
+        });
+    }
+
+    /**
+     * @return the response line, or null if the response has already been streamed to out
+     */
+    private CompletableFuture<String> dispatch(String requestString, SocketAddress clientAddress,
+                                               Subscriptions.Session<String> session, Executor executor,
+                                               Consumer<String> out) {
+        try {
+            String[] requestParts = requestString.split("\\|");
+
+            if (requestParts.length < 2) {
+                throw new Exception("Invalid request: " + requestString + " from: " + clientAddress);
+            }
+
+            String requestType = requestParts[0];
+            String clientMail = requestParts[1];
+
+            boolean authorized = isAuthorized(clientMail);
+            // Handle request based on type
+            if (authorized) {
+                switch (requestType) {
+                    case "LOGIN":
+                        return answer(createResponse(handleLogin(clientMail)));
+                    case "GET_ALL_MESSAGES":
+                        return answer(handleGetAllMessages(clientMail));
+                    case "GET_NEW_MESSAGES":
+                        return answer(handleGetNewMessages(clientMail, requestParts));
+                    case "WAIT_NEW_MESSAGES":
+                        return handleWaitNewMessages(clientMail, requestParts, executor);
+                    case "GET_MESSAGES_PAGE":
+                        return answer(handleGetMessagesPage(clientMail, requestParts, out));
+                    case "SYNC":
+                        return answer(handleSync(clientMail, requestParts, out));
+                    case "SEARCH":
+                        return answer(handleSearch(clientMail, requestParts, out));
+                    case "FETCH_BODY":
+                        return answer(handleFetchBody(clientMail, requestParts));
+                    case "SEND_EMAIL":
+                        return answer(handleSendEmail(clientMail, requestParts));
+                    case "DELETE_EMAIL":
+                        return answer(createResponse(handleDeleteEmail(clientMail, requestParts[2])));
+                    case "SUBSCRIBE":
+                        return answer(createResponse(handleSubscribe(clientMail, session,
+                                email -> String.join("|", "NEW_EMAIL", email.getEmailForResponse()),
+                                () -> "HEARTBEAT")));
+                    default:
+                        log.accept("Invalid request type: " + requestType);
+                        return answer(createResponse("ERROR", "Unknown request type"));
+                }
+            } else {
+                log.accept("REQUEST BY NON REGISTERED CLIENT: " + clientMail);
+                return answer(createResponse("ERROR", "Client not authorized"));
+            }
+        } catch (PartialResponseException e) {
+            throw e;
+        } catch (Exception e) {
+            log.accept("Error handling request: " + e.getMessage());
+            return answer(createResponse("ERROR", "Invalid request format"));
+        }
+    }
+
+    /**
+     * Binary counterpart of handleRequest: handles one frame of the binary protocol
+     *
+     * @param request       the request frame, without its length prefix
+     * @param clientAddress remote address of the connection, used only for logging
+     * @param session       push state of the connection
+     * @param executor      runs the rest of a long poll once it is woken up
+     * @param out           receives the response frames, length prefix included
+     * @return completes once the whole response has been given to out, see handleRequest
+     */
+    CompletableFuture<Void> handleFrame(ByteBuffer request, SocketAddress clientAddress,
+                                        Subscriptions.Session<ByteBuffer> session, Executor executor,
+                                        Consumer<ByteBuffer> out) {
+        return dispatchFrame(request, clientAddress, session, executor, out).thenAccept(response -> {
+            if (response != null) {
+                out.accept(response);
+            }
+        });
+    }
+
+    /**
+     * @return the response frame, or null if the response has already been streamed to out
+     */
+    private CompletableFuture<ByteBuffer> dispatchFrame(ByteBuffer request, SocketAddress clientAddress,
+                                                        Subscriptions.Session<ByteBuffer> session, Executor executor,
+                                                        Consumer<ByteBuffer> out) {
+        try {
+            FrameReader frame = new FrameReader(request);
+            String clientMail = frame.readString();
+
+            if (!isAuthorized(clientMail)) {
+                log.accept("REQUEST BY NON REGISTERED CLIENT: " + clientMail);
+                return answer(createFrame(Response.error("Client not authorized")));
+            }
+            if (frame.type() == Protocol.WAIT_NEW_MESSAGES) {
+                return handleWaitNewMessages(clientMail, frame.readTimestamp(), frame.readInt(), executor);
+            }
+            return answer(switch (frame.type()) {
+                case Protocol.LOGIN -> createFrame(handleLogin(clientMail));
+                case Protocol.GET_ALL_MESSAGES -> {
+                    log.accept("Handling GET_ALL_MESSAGES from: " + clientMail);
+                    yield createEmailsFrame(clientMail, serverStorage.getUserEmailList(clientMail));
+                }
+                case Protocol.GET_NEW_MESSAGES -> {
+                    log.accept("Handling GET_NEW_MESSAGES from: " + clientMail);
+                    yield createEmailsFrame(clientMail, serverStorage.getNewUserEmailList(clientMail, frame.readTimestamp()));
+                }
+                case Protocol.SEND_EMAIL -> {
+                    List<String> recipients = frame.readStrings();
+                    String subject = frame.readString();
+                    String body = frame.readString();
+                    LocalDateTime date = frame.readTimestamp();
+                    if (!isSingleLineField(subject)) {
+                        log.accept("Error in sending email from: " + clientMail + ", invalid subject");
+                        yield createFrame(Response.error("Email not sent, the subject cannot contain | or line breaks"));
+                    }
+                    yield createFrame(handleSendEmail(clientMail, recipients, subject, toStoredText(body), date));
+                }
+                case Protocol.DELETE_EMAIL -> createFrame(handleDeleteEmail(clientMail, frame.readId()));
+                case Protocol.GET_MESSAGES_PAGE -> {
+                    int limit = frame.readInt();
+                    String cursor = frame.readString();
+                    yield handleGetMessagesPage(clientMail, limit, cursor.isEmpty() ? null : cursor,
+                            readPreviewListing(frame), out);
+                }
+                case Protocol.SYNC -> {
+                    long since = frame.readLong();
+                    yield handleSync(clientMail, since, readPreviewListing(frame));
+                }
+                case Protocol.SEARCH -> {
+                    String query = frame.readString();
+                    yield handleSearch(clientMail, query, frame.readInt());
+                }
+                case Protocol.FETCH_BODY -> handleFetchBody(clientMail, frame.readId());
+                case Protocol.SUBSCRIBE -> {
+                    Response response = handleSubscribe(clientMail, session,
+                            email -> writeEmail(new FrameWriter(Protocol.PUSH_EMAIL, 512), email).toByteBuffer(),
+                            () -> new FrameWriter(Protocol.HEARTBEAT).toByteBuffer());
+                    yield response.success()
+                            ? new FrameWriter(Protocol.SUCCESS).writeInt(Subscriptions.HEARTBEAT_MILLIS).toByteBuffer()
+                            : createFrame(response);
+                }
+                default -> {
+                    log.accept("Invalid request opcode: " + frame.type());
+                    yield createFrame(Response.error("Unknown request type"));
+                }
+            });
+        } catch (ProtocolException e) {
+            log.accept("Error handling request: " + e.getMessage() + " from: " + clientAddress);
+            return answer(createFrame(Response.error("Invalid request format")));
+        } catch (PartialResponseException e) {
+            throw e;
+        } catch (RuntimeException e) {
+            // an email that cannot be encoded, e.g. a legacy id that is not a UUID
+            log.accept("Error handling request: " + e.getMessage() + " from: " + clientAddress);
+            return answer(createFrame(Response.error("Error handling request")));
+        }
+    }
+
+    /**
+     * This method handles the login request by clients, and since the client mail has been already checked, it can only
+     * be a successful request
+     *
+     * @param clientMail the mail of the requesting client
+     * @return the response
+     */
+    private Response handleLogin(String clientMail) {
+        log.accept("SUCCESSFUL LOGIN Request by: " + clientMail);
+        return Response.success("Login successful");
+    }
+
+    private String handleGetAllMessages(String clientMail) {
+        log.accept("Handling GET_ALL_MESSAGES from: " + clientMail);
+        try {
+            String allUserEmails = serverStorage.getAllUserEmails(clientMail);
+            if (allUserEmails == null) {
+                throw new Exception("Error in retrieving all messages of: " + clientMail);
+            } else if (allUserEmails.isEmpty()) {
+                log.accept("Sending 0 messages to: " + clientMail);
+                return createResponse("SUCCESS", "No messages found");
+            } else {
+                log.accept("Sending all messages to: " + clientMail + ": " + allUserEmails);
+                return createResponse("SUCCESS", allUserEmails);
+            }
+        } catch (Exception e) {
+            log.accept("Error handling GET_ALL_MESSAGES request from client: " + clientMail + "Error: " + e.getMessage());
+            return createResponse("ERROR", "Error handling GET_ALL_MESSAGES request");
+        }
+    }
+
+    private String handleGetNewMessages(String clientMail, String[] requestArray) {
+        try {
+            log.accept("Handling GET_NEW_MESSAGES from: " + clientMail);
+            String fromDate = requestArray[2];
+            String newMessages = serverStorage.getNewUserEmails(clientMail, fromDate);
+
+            if (newMessages == null) {
+                throw new Exception("Error in retrieving new messages for: " + clientMail);
+            } else if (newMessages.isEmpty()) {
+                log.accept("No New Messages for: " + clientMail);
+                return createResponse("SUCCESS", "No messages found");
+            } else {
+                log.accept("Sending New Messages to: " + clientMail);
+                return createResponse("SUCCESS", newMessages);
+            }
+        } catch (Exception e) {
+            log.accept("Error handling GET_NEW_MESSAGES request from client: " + clientMail + "Error: " + e.getMessage());
+            return createResponse("ERROR", "Invalid date format");
+        }
+    }
+
+    /**
+     * Long poll: answers like GET_NEW_MESSAGES, but when there is nothing newer than the given date the response waits
+     * for the next email or for the timeout in milliseconds, whichever comes first
+     */
+    private CompletableFuture<String> handleWaitNewMessages(String clientMail, String[] requestArray,
+                                                            Executor executor) {
+        LocalDateTime since;
+        long timeout;
+        try {
+            since = LocalDateTime.parse(requestArray[2]);
+            timeout = Long.parseLong(requestArray[3]);
+        } catch (ArrayIndexOutOfBoundsException | DateTimeParseException | NumberFormatException e) {
+            log.accept("Error handling WAIT_NEW_MESSAGES request from client: " + clientMail + " Error: " + e.getMessage());
+            return answer(createResponse("ERROR", "Invalid long poll request"));
+        }
+        return awaitEmailsAfter(clientMail, since, timeout)
+                .thenApplyAsync(ignored -> handleGetNewMessages(clientMail, requestArray), executor);
+    }
+
+    /**
+     * Binary counterpart of handleWaitNewMessages
+     */
+    private CompletableFuture<ByteBuffer> handleWaitNewMessages(String clientMail, LocalDateTime since, long timeout,
+                                                                Executor executor) {
+        return awaitEmailsAfter(clientMail, since, timeout).thenApplyAsync(ignored -> {
+            log.accept("Handling GET_NEW_MESSAGES from: " + clientMail);
+            try {
+                return createEmailsFrame(clientMail, serverStorage.getNewUserEmailList(clientMail, since));
+            } catch (RuntimeException e) {
+                log.accept("Error handling WAIT_NEW_MESSAGES request from client: " + clientMail + " Error: " + e.getMessage());
+                return createFrame(Response.error("Error handling request"));
+            }
+        }, executor);
+    }
+
+    /**
+     * Waits until the mailbox holds an email newer than since, without parking a thread: the returned future completes
+     * when the mailbox signals a new email or the timeout expires, and is already complete if such an email is there.
+     * It can complete on the thread adding the email, which holds the mailbox lock, so the answer is built on the
+     * executor of the connection.
+     * A new email older than since also wakes the poll up: it then answers with no messages and the client polls again.
+     */
+    private CompletableFuture<Void> awaitEmailsAfter(String clientMail, LocalDateTime since, long timeout) {
+        log.accept("Handling WAIT_NEW_MESSAGES from: " + clientMail);
+        // registered before looking at the mailbox, so that an email added in between is not missed
+        CompletableFuture<Void> arrival = serverStorage.awaitNewEmail(clientMail);
+        if (timeout <= 0 || !serverStorage.getNewUserEmailList(clientMail, since).isEmpty()) {
+            arrival.complete(null);
+            return arrival;
+        }
+        return arrival.completeOnTimeout(null, Math.min(timeout, MAX_WAIT_MILLIS), TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Streams one page of the mailbox: a "SUCCESS|count|nextCursor" line, where an empty nextCursor means this is the
+     * last page, followed by one line per email, newest first
+     *
+     * @return null once the page has been written to out, or the error line
+     */
+    private String handleGetMessagesPage(String clientMail, String[] requestArray, Consumer<String> out) {
+        Mailbox.Page page;
+        boolean previews = requestArray.length > 4 && requestArray[4].equals(PREVIEWS);
+        try {
+            int limit = Integer.parseInt(requestArray[2]);
+            String cursor = requestArray.length > 3 && !requestArray[3].isEmpty() ? requestArray[3] : null;
+            page = readPage(clientMail, cursor, limit);
+        } catch (ArrayIndexOutOfBoundsException | IllegalArgumentException e) {
+            log.accept("Error handling GET_MESSAGES_PAGE request from client: " + clientMail + " Error: " + e.getMessage());
+            return createResponse("ERROR", "Invalid page request");
+        }
+
+        try {
+            out.accept(String.join("|", "SUCCESS", String.valueOf(page.emails().size()),
+                    Objects.toString(page.nextCursor(), "")));
+            for (Email email : page.emails()) {
+                out.accept(previews ? email.getListedEmailForResponse() : email.getEmailForResponse());
+            }
+        } catch (RuntimeException e) {
+            throw new PartialResponseException(e);
+        }
+        return null;
+    }
+
+    /**
+     * Binary counterpart of handleGetMessagesPage: a frame with the number of emails and the next cursor, followed by
+     * one frame per email
+     *
+     * @param previews true to send the previews instead of the bodies
+     * @return null once the page has been written to out, or the error frame
+     */
+    private ByteBuffer handleGetMessagesPage(String clientMail, int limit, String cursor, boolean previews,
+                                             Consumer<ByteBuffer> out) {
+        Mailbox.Page page;
+        try {
+            page = readPage(clientMail, cursor, limit);
+        } catch (IllegalArgumentException e) {
+            log.accept("Error handling GET_MESSAGES_PAGE request from client: " + clientMail + " Error: " + e.getMessage());
+            return createFrame(Response.error("Invalid page request"));
+        }
+
+        try {
+            out.accept(new FrameWriter(Protocol.SUCCESS)
+                    .writeInt(page.emails().size())
+                    .writeString(Objects.toString(page.nextCursor(), ""))
+                    .toByteBuffer());
+            for (Email email : page.emails()) {
+                out.accept(writeEmail(new FrameWriter(Protocol.SUCCESS, 512), email, previews).toByteBuffer());
+            }
+        } catch (RuntimeException e) {
+            throw new PartialResponseException(e);
+        }
+        return null;
+    }
+
+    /**
+     * Streams the changes of the mailbox after the given sequence number: a
+     * "SUCCESS|sequence|RESET or DELTA|count|removed ids joined by #" line, followed by one line per added email, in
+     * the order they arrived. The client sends the sequence back in its next SYNC. If nothing changed since then the
+     * answer is a NOT_MODIFIED line.
+     *
+     * @return null once the changes have been written to out, or the error line
+     */
+    private String handleSync(String clientMail, String[] requestArray, Consumer<String> out) {
+        Mailbox.Changes changes;
+        boolean previews = requestArray.length > 3 && requestArray[3].equals(PREVIEWS);
+        try {
+            long since = Long.parseLong(requestArray[2]);
+            if (isUnchanged(clientMail, since)) {
+                return NOT_MODIFIED_LINE;
+            }
+            changes = readChanges(clientMail, since);
+        } catch (ArrayIndexOutOfBoundsException | NumberFormatException e) {
+            log.accept("Error handling SYNC request from client: " + clientMail + " Error: " + e.getMessage());
+            return createResponse("ERROR", "Invalid sync request");
+        }
+
+        try {
+            out.accept(String.join("|", "SUCCESS", String.valueOf(changes.sequence()),
+                    changes.reset() ? "RESET" : "DELTA", String.valueOf(changes.added().size()),
+                    String.join("#", changes.removed())));
+            for (Email email : changes.added()) {
+                out.accept(previews ? email.getListedEmailForResponse() : email.getEmailForResponse());
+            }
+        } catch (RuntimeException e) {
+            throw new PartialResponseException(e);
+        }
+        return null;
+    }
+
+    /**
+     * Binary counterpart of handleSync: a single frame with the sequence, the reset flag, the removed ids and the added
+     * emails
+     *
+     * @param previews true to send the previews instead of the bodies
+     */
+    private ByteBuffer handleSync(String clientMail, long since, boolean previews) {
+        if (isUnchanged(clientMail, since)) {
+            return NOT_MODIFIED_FRAME.duplicate();      // the connection moves the position of the buffer it writes
+        }
+        Mailbox.Changes changes = readChanges(clientMail, since);
+        FrameWriter frame = new FrameWriter(Protocol.SUCCESS, 64 + 40 * changes.removed().size()
+                + 256 * changes.added().size());
+        frame.writeLong(changes.sequence())
+                .writeInt(changes.reset() ? 1 : 0)
+                .writeStrings(changes.removed())
+                .writeInt(changes.added().size());
+        for (Email email : changes.added()) {
+            writeEmail(frame, email, previews);
+        }
+        return frame.toByteBuffer();
+    }
+
+    /**
+     * Streams the emails matching a query: a "SUCCESS|count" line followed by one
+     * "id|sender|recipients joined by #|subject|timestamp" line per email, best match first
+     *
+     * @return null once the matches have been written to out, or the error line
+     */
+    private String handleSearch(String clientMail, String[] requestArray, Consumer<String> out) {
+        List<Email> matches;
+        try {
+            matches = search(clientMail, requestArray[2], Integer.parseInt(requestArray[3]));
+        } catch (ArrayIndexOutOfBoundsException | IllegalArgumentException e) {
+            log.accept("Error handling SEARCH request from client: " + clientMail + " Error: " + e.getMessage());
+            return createResponse("ERROR", "Invalid search request");
+        }
+
+        try {
+            out.accept(String.join("|", "SUCCESS", String.valueOf(matches.size())));
+            for (Email email : matches) {
+                out.accept(String.join("|", email.getId(), email.getSender(), String.join("#", email.getRecipients()),
+                        email.getSubject(), email.getTimestamp().toString()));
+            }
+        } catch (RuntimeException e) {
+            throw new PartialResponseException(e);
+        }
+        return null;
+    }
+
+    /**
+     * Binary counterpart of handleSearch: a single frame with the list of the headers of the matching emails
+     */
+    private ByteBuffer handleSearch(String clientMail, String query, int limit) {
+        List<Email> matches;
+        try {
+            matches = search(clientMail, query, limit);
+        } catch (IllegalArgumentException e) {
+            log.accept("Error handling SEARCH request from client: " + clientMail + " Error: " + e.getMessage());
+            return createFrame(Response.error("Invalid search request"));
+        }
+        FrameWriter frame = new FrameWriter(Protocol.SUCCESS, 64 + 128 * matches.size());
+        frame.writeInt(matches.size());
+        for (Email email : matches) {
+            frame.writeId(email.getId())
+                    .writeString(email.getSender())
+                    .writeStrings(email.getRecipients())
+                    .writeString(email.getSubject())
+                    .writeTimestamp(email.getTimestamp());
+        }
+        return frame.toByteBuffer();
+    }
+
+    /**
+     * Answers "SUCCESS|body" with the body of one email, escaped as in the listings
+     */
+    private String handleFetchBody(String clientMail, String[] requestArray) {
+        if (requestArray.length < 3) {
+            log.accept("Error handling FETCH_BODY request from client: " + clientMail + " Error: missing email id");
+            return createResponse("ERROR", "Invalid fetch request");
+        }
+        Email email = fetchBody(clientMail, requestArray[2]);
+        return email == null ? createResponse("ERROR", "Email not found") : createResponse("SUCCESS", email.getBody());
+    }
+
+    /**
+     * Binary counterpart of handleFetchBody: a message holding the plain body
+     */
+    private ByteBuffer handleFetchBody(String clientMail, String emailId) {
+        Email email = fetchBody(clientMail, emailId);
+        return createFrame(email == null ? Response.error("Email not found")
+                : Response.success(fromStoredText(email.getBody())));
+    }
+
+    /**
+     * @return the email whose body is asked for, null if the mailbox does not hold it
+     */
+    private Email fetchBody(String clientMail, String emailId) {
+        log.accept("Handling FETCH_BODY from: " + clientMail);
+        Email email = serverStorage.getUserEmail(clientMail, emailId);
+        if (email == null) {
+            log.accept("Error fetching body for: " + clientMail + ", email not found: " + emailId);
+        }
+        return email;
+    }
+
+    /**
+     * @return true if the request ends with the optional listing field set to PREVIEW_LISTING
+     */
+    private static boolean readPreviewListing(FrameReader frame) throws ProtocolException {
+        return frame.hasRemaining() && frame.readInt() == Protocol.PREVIEW_LISTING;
+    }
+
+    /**
+     * @throws IllegalArgumentException if the limit is not positive
+     */
+    private List<Email> search(String clientMail, String query, int limit) {
+        log.accept("Handling SEARCH from: " + clientMail);
+        if (limit < 1) {
+            throw new IllegalArgumentException("Invalid search limit: " + limit);
+        }
+        List<Email> matches = serverStorage.searchUserEmails(clientMail, query, Math.min(limit, MAX_SEARCH_LIMIT));
+        log.accept("Sending " + matches.size() + " search results to: " + clientMail);
+        return matches;
+    }
+
+    /**
+     * Compares the version of the mailbox, its sequence number, with the one the client has: when they match the
+     * answer is NOT_MODIFIED, without reading the mailbox or logging the request
+     */
+    private boolean isUnchanged(String clientMail, long since) {
+        return since == serverStorage.getUserSequence(clientMail);
+    }
+
+    private Mailbox.Changes readChanges(String clientMail, long since) {
+        log.accept("Handling SYNC from: " + clientMail);
+        Mailbox.Changes changes = serverStorage.getUserChangesSince(clientMail, since);
+        log.accept("Sending " + (changes.reset() ? "all " + changes.added().size() : changes.added().size() + " new")
+                + " messages and " + changes.removed().size() + " deletions to: " + clientMail);
+        return changes;
+    }
+
+    /**
+     * @throws IllegalArgumentException if the limit is not positive or the cursor is invalid
+     */
+    private Mailbox.Page readPage(String clientMail, String cursor, int limit) {
+        log.accept("Handling GET_MESSAGES_PAGE from: " + clientMail);
+        if (limit < 1) {
+            throw new IllegalArgumentException("Invalid page limit: " + limit);
+        }
+        Mailbox.Page page = serverStorage.getUserEmailPage(clientMail, cursor, Math.min(limit, MAX_PAGE_LIMIT));
+        log.accept("Sending page of " + page.emails().size() + " messages to: " + clientMail);
+        return page;
+    }
+
+    /**
+     * Subscribes the connection to the mailbox of the client. The success message is the heartbeat interval in
+     * milliseconds.
+     *
+     * @param encoder   builds the push of a new email
+     * @param heartbeat builds a heartbeat push
+     */
+    private <T> Response handleSubscribe(String clientMail, Subscriptions.Session<T> session,
+                                         Function<Email, T> encoder, Supplier<T> heartbeat) {
+        log.accept("Handling SUBSCRIBE from: " + clientMail);
+        if (!subscriptions.subscribe(session, clientMail, encoder, heartbeat)) {
+            log.accept("Error in subscribing: " + clientMail + ", the connection is already subscribed");
+            return Response.error("Already subscribed");
+        }
+        log.accept("Pushing new emails to: " + clientMail);
+        return Response.success(String.valueOf(Subscriptions.HEARTBEAT_MILLIS));
+    }
+
+    private String handleSendEmail(String clientMail, String[] requestArray) {
+        try {
+            List<String> recipients = Arrays.asList(requestArray[2].split("#"));
+            String subject = requestArray[3];
+            String body = requestArray[4];
+            LocalDateTime date = LocalDateTime.parse(requestArray[5]);
+            return createResponse(handleSendEmail(clientMail, recipients, subject, body, date));
+        } catch (Exception e) {
+            log.accept("Error sending email: " + e.getMessage());
+            return createResponse("ERROR", "Failed to send email");
+        }
+    }
+
+    /**
+     * @param body the body in the escaped form kept by the storage
+     */
+    private Response handleSendEmail(String clientMail, List<String> recipients, String subject, String body,
+                                     LocalDateTime date) {
+        try {
+            log.accept("Handling SEND_EMAIL from: " + clientMail + " to: " + String.join("#", recipients));
+
+            boolean success = !recipients.isEmpty();
+            for (String recipient : recipients) success &= serverStorage.userExists(recipient);
+
+            if (success) {
+                // a single Email is shared by all the recipients' mailboxes
+                serverStorage.addEmailToMailboxes(new Email(clientMail, recipients, subject, body, date),
+                        new LinkedHashSet<>(recipients));
+                log.accept("Email from: " + clientMail);
+                return Response.success("Email sent");
+            } else {
+                log.accept("Error in sending email from: " + clientMail + ", one or more recipients are not in the users list");
+                return Response.error("Email not sent, One ore more recipients are not in the users list");
+            }
+        } catch (Exception e) {
+            log.accept("Error sending email: " + e.getMessage());
+            return Response.error("Failed to send email");
+        }
+    }
+
+    private Response handleDeleteEmail(String clientMail, String emailId) {
+        try {
+            log.accept("Handling DELETE_EMAIL from: " + clientMail);
+            boolean removed = serverStorage.removeEmailFromMailbox(clientMail, emailId);
+
+            if (removed) {
+                log.accept("Successfully deleted email from: " + clientMail);
+                return Response.success("Email deleted successfully");
+            } else {
+                throw new Exception("Email Id not found!");
+            }
+        } catch (IllegalArgumentException exception) {
+            log.accept("Error deleting email from client with mail" + clientMail + ", Wrong emailId: " + emailId + ", " + exception.getMessage());
+            return Response.error("Invalid emailId");
+        } catch (Exception exception) {
+            log.accept("Error deleting email: " + exception.getMessage());
+            return Response.error("Failed to delete email: " + exception.getMessage());
+        }
+    }
+
+    private boolean isAuthorized(String clientMail) {
+        return serverStorage.userExists(clientMail);
+    }
+
+    private static <T> CompletableFuture<T> answer(T response) {
+        return CompletableFuture.completedFuture(response);
+    }
+
+    private String createResponse(String status, String message) {
+        return String.join("|", status, message);
+    }
+
+    private String createResponse(Response response) {
+        return createResponse(response.success() ? "SUCCESS" : "ERROR", response.message());
+    }
+
+    private ByteBuffer createFrame(Response response) {
+        return new FrameWriter(response.success() ? Protocol.SUCCESS : Protocol.ERROR)
+                .writeString(response.message())
+                .toByteBuffer();
+    }
+
+    /**
+     * @param emails a view of the mailbox, copied first because it can change while the frame is written
+     */
+    private ByteBuffer createEmailsFrame(String clientMail, Collection<Email> emails) {
+        List<Email> snapshot = new ArrayList<>(emails);
+        log.accept("Sending " + snapshot.size() + " messages to: " + clientMail);
+
+        FrameWriter frame = new FrameWriter(Protocol.SUCCESS, 64 + 256 * snapshot.size());
+        frame.writeInt(snapshot.size());
+        for (Email email : snapshot) {
+            writeEmail(frame, email);
+        }
+        return frame.toByteBuffer();
+    }
+
+    private static FrameWriter writeEmail(FrameWriter frame, Email email) {
+        return writeEmail(frame, email, false);
+    }
+
+    /**
+     * @param preview true to write a listed email, with the preview in place of the body
+     */
+    private static FrameWriter writeEmail(FrameWriter frame, Email email, boolean preview) {
+        return frame.writeId(email.getId())
+                .writeString(email.getSender())
+                .writeStrings(email.getRecipients())
+                .writeString(email.getSubject())
+                .writeString(fromStoredText(preview ? email.getPreview() : email.getBody()))
+                .writeTimestamp(email.getTimestamp());
+    }
+
+    /**
+     * @return false if the text would break a record of the line protocol or of the storage
+     */
+    private static boolean isSingleLineField(String text) {
+        return text.indexOf('|') < 0 && text.indexOf('\n') < 0 && text.indexOf('\r') < 0;
+    }
+
+    /**
+     * @return the text escaped as the line protocol client does before sending it
+     */
+    private static String toStoredText(String text) {
+        if (text.isBlank()) {
+            return " ";
+        }
+        return Protocol.escape(text.replace("\r\n", "\n").replace('\r', '\n'));
+    }
+
+    /**
+     * @return the stored text without the escaping of the line protocol
+     */
+    private static String fromStoredText(String text) {
+        return Protocol.unescape(text);
+    }
+}
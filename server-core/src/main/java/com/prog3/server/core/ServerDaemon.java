@@ -0,0 +1,42 @@
+package com.prog3.server.core;
+
+import java.time.LocalDateTime;
+import java.time.format.DateTimeFormatter;
+import java.util.Locale;
+import java.util.concurrent.CountDownLatch;
+
+/**
+ * Headless entry point: loads the storage and starts the server without the JavaFX toolkit, logging to standard
+ * output. The server runs until the process is terminated.
+ * <p>
+ * Usage: {@code ServerDaemon <dataDirectory> [thread_pool|virtual_threads|nio]}
+ */
+public class ServerDaemon {
+    private static final DateTimeFormatter TIMESTAMP_FORMAT = DateTimeFormatter.ofPattern("yyyy-MM-dd HH:mm:ss");
+
+    public static void main(String[] args) throws Exception {
+        if (args.length < 1 || args.length > 2) {
+            System.err.println("Usage: ServerDaemon <dataDirectory> [thread_pool|virtual_threads|nio]");
+            System.exit(2);
+        }
+        ServerMode mode = args.length > 1 ? ServerMode.valueOf(args[1].toUpperCase(Locale.ROOT)) : ServerMode.THREAD_POOL;
+
+        MailServer server = new MailServer(args[0], ServerDaemon::log);
+        server.start(mode);
+
+        CountDownLatch stopped = new CountDownLatch(1);
+        Runtime.getRuntime().addShutdownHook(new Thread(() -> {
+            try {
+                server.close();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            stopped.countDown();
+        }, "server-shutdown"));
+        stopped.await();
+    }
+
+    private static void log(String message) {
+        System.out.printf("[%s] %s%n", LocalDateTime.now().format(TIMESTAMP_FORMAT), message);
+    }
+}
@@ -0,0 +1,21 @@
+package com.prog3.server.core;
+
+/**
+ * Strategies the server can use to handle client connections
+ */
+public enum ServerMode {
+    THREAD_POOL("Thread pool"),     // blocking accept loop, one pooled platform thread per connection
+    VIRTUAL_THREADS("Virtual threads"), // blocking accept loop, one virtual thread per connection
+    NIO("NIO event loop");          // selector based, few I/O threads for all connections
+
+    private final String label;
+
+    ServerMode(String label) {
+        this.label = label;
+    }
+
+    @Override
+    public String toString() {
+        return label;
+    }
+}
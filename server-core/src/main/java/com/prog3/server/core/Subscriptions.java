@@ -0,0 +1,141 @@
+package com.prog3.server.core;
+
+import com.prog3.server.model.Email;
+import com.prog3.server.model.MailboxListener;
+import com.prog3.server.model.ServerStorage;
+import com.prog3.server.model.User;
+
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+import java.util.function.Function;
+import java.util.function.Supplier;
+
+/**
+ * Push subscriptions started by the SUBSCRIBE request. A subscribed connection gets every email added to the mailbox
+ * of its user as soon as it is delivered, instead of polling for it, and a heartbeat every HEARTBEAT_MILLIS so that the
+ * client can tell a quiet connection from a lost one and go back to polling.
+ * <p>
+ * Pushes are handed to the sink of the connection's Session from the thread that delivered the email, while it holds
+ * the mailbox lock, or from the heartbeat thread: the sink must only queue them.
+ */
+class Subscriptions {
+    // can be overridden with -Dmailfx.push.heartbeatMillis
+    static final int HEARTBEAT_MILLIS = Integer.getInteger("mailfx.push.heartbeatMillis", 30_000);
+
+    private final ServerStorage serverStorage;
+    private final Consumer<String> log;
+    private final ScheduledExecutorService heartbeats = Executors.newSingleThreadScheduledExecutor(runnable -> {
+        Thread thread = new Thread(runnable, "push-heartbeat");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    /**
+     * Push state of one connection, created by the connection with the sink its pushes are queued to
+     */
+    static final class Session<T> {
+        private final Consumer<T> push;
+        private Subscription<T> subscription;
+        private boolean closed;
+
+        /**
+         * @param push queues a push for the connection, it must be thread-safe and must not block
+         */
+        Session(Consumer<T> push) {
+            this.push = push;
+        }
+
+        synchronized boolean isSubscribed() {
+            return subscription != null;
+        }
+
+        /**
+         * Ends the subscription, if any; called when the connection is closed
+         */
+        synchronized void close() {
+            closed = true;
+            if (subscription != null) {
+                subscription.cancel();
+            }
+        }
+    }
+
+    /**
+     * Constructor for the Subscriptions class
+     *
+     * @param serverStorage the main Model class
+     * @param log           receives the server log messages
+     */
+    Subscriptions(ServerStorage serverStorage, Consumer<String> log) {
+        this.serverStorage = serverStorage;
+        this.log = log;
+    }
+
+    /**
+     * Subscribes the session to the mailbox of the client
+     *
+     * @param encoder   builds the push of an email
+     * @param heartbeat builds a heartbeat push
+     * @return false if the session is already subscribed or its connection is closed
+     */
+    <T> boolean subscribe(Session<T> session, String clientMail, Function<Email, T> encoder, Supplier<T> heartbeat) {
+        synchronized (session) {
+            if (session.closed || session.subscription != null) {
+                return false;
+            }
+            User user = serverStorage.getUsers().get(clientMail.toLowerCase());
+            session.subscription = new Subscription<>(user, session.push, encoder, heartbeat);
+            return true;
+        }
+    }
+
+    /**
+     * Stops the heartbeats, called when the server stops
+     */
+    void shutdown() {
+        heartbeats.shutdownNow();
+    }
+
+    private class Subscription<T> implements MailboxListener {
+        private final User user;
+        private final Consumer<T> push;
+        private final Function<Email, T> encoder;
+        private final ScheduledFuture<?> heartbeatTask;
+
+        Subscription(User user, Consumer<T> push, Function<Email, T> encoder, Supplier<T> heartbeat) {
+            this.user = user;
+            this.push = push;
+            this.encoder = encoder;
+            user.addMailboxListener(this);
+            heartbeatTask = heartbeats.scheduleAtFixedRate(() -> send(heartbeat), HEARTBEAT_MILLIS, HEARTBEAT_MILLIS,
+                    TimeUnit.MILLISECONDS);
+        }
+
+        @Override
+        public void emailAdded(Email email) {
+            send(() -> encoder.apply(email));
+        }
+
+        @Override
+        public void emailRemoved(Email email) {
+            // the client removes its own emails, nothing to push
+        }
+
+        // a failing push must neither break the delivery of the email nor stop the heartbeats
+        private void send(Supplier<T> message) {
+            try {
+                push.accept(message.get());
+            } catch (RuntimeException e) {
+                log.accept("Error pushing to: " + user.getEmail() + ", " + e.getMessage());
+            }
+        }
+
+        void cancel() {
+            user.removeMailboxListener(this);
+            heartbeatTask.cancel(false);
+        }
+    }
+}
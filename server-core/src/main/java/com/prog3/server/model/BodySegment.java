@@ -0,0 +1,128 @@
+package com.prog3.server.model;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Base64;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * A piece of an email body, kept as text or, when it is long enough, deflated.
+ * A deflated segment stays compressed on the heap and in the log; it is inflated on every call to text(), which
+ * happens when the body is serialized for a response, and never cached.
+ * The deflated bytes start with the length of the UTF-8 text, so that it is inflated straight into an array of the
+ * right size.
+ */
+final class BodySegment {
+    static final String PLAIN = "plain";
+    static final String DEFLATE = "deflate";
+
+    private static final int LENGTH_PREFIX = Integer.BYTES;
+    // zlib streams are expensive to set up, every thread keeps and resets its own
+    private static final ThreadLocal<Deflater> DEFLATER = ThreadLocal.withInitial(() -> new Deflater(Deflater.BEST_SPEED));
+    private static final ThreadLocal<Inflater> INFLATER = ThreadLocal.withInitial(Inflater::new);
+
+    private final String text;          // null when deflated
+    private final byte[] deflated;
+
+    private BodySegment(String text, byte[] deflated) {
+        this.text = text;
+        this.deflated = deflated;
+    }
+
+    /**
+     * @param text          the segment text
+     * @param compressAbove texts of at least this many characters are deflated, 0 never deflates
+     * @return the segment, deflated only if that makes it smaller
+     */
+    static BodySegment of(String text, int compressAbove) {
+        if (compressAbove <= 0 || text.length() < compressAbove) {
+            return new BodySegment(text, null);
+        }
+        byte[] raw = text.getBytes(StandardCharsets.UTF_8);
+        byte[] compressed = deflate(raw);
+        return compressed.length < raw.length ? new BodySegment(null, compressed) : new BodySegment(text, null);
+    }
+
+    /**
+     * Reads a segment as written in the log by encoding() and encoded()
+     */
+    static BodySegment decode(String encoding, String data) {
+        return switch (encoding) {
+            case PLAIN -> new BodySegment(data, null);
+            case DEFLATE -> new BodySegment(null, Base64.getDecoder().decode(data));
+            default -> throw new IllegalArgumentException("Unknown body encoding: " + encoding);
+        };
+    }
+
+    String text() {
+        return text != null ? text : new String(inflate(deflated), StandardCharsets.UTF_8);
+    }
+
+    String encoding() {
+        return text != null ? PLAIN : DEFLATE;
+    }
+
+    /**
+     * @return the segment as written in the log, base64 when deflated so it never contains separators
+     */
+    String encoded() {
+        return text != null ? text : Base64.getEncoder().encodeToString(deflated);
+    }
+
+    /**
+     * @return approximate heap bytes of the content: the deflated bytes, or the text at one byte per Latin-1
+     * character and two otherwise
+     */
+    int storedSize() {
+        if (text == null) {
+            return deflated.length;
+        }
+        for (int i = 0; i < text.length(); i++) {
+            if (text.charAt(i) > 0xFF) {
+                return text.length() * 2;
+            }
+        }
+        return text.length();
+    }
+
+    private static byte[] deflate(byte[] raw) {
+        Deflater deflater = DEFLATER.get();
+        try {
+            deflater.setInput(raw);
+            deflater.finish();
+            ByteArrayOutputStream out = new ByteArrayOutputStream(raw.length / 2 + 16);
+            out.writeBytes(ByteBuffer.allocate(LENGTH_PREFIX).putInt(raw.length).array());
+            byte[] buffer = new byte[4096];
+            while (!deflater.finished()) {
+                out.write(buffer, 0, deflater.deflate(buffer));
+            }
+            return out.toByteArray();
+        } finally {
+            deflater.reset();
+        }
+    }
+
+    private static byte[] inflate(byte[] compressed) {
+        Inflater inflater = INFLATER.get();
+        try {
+            byte[] raw = new byte[ByteBuffer.wrap(compressed).getInt()];
+            inflater.setInput(compressed, LENGTH_PREFIX, compressed.length - LENGTH_PREFIX);
+            int inflated = 0;
+            while (inflated < raw.length) {
+                int read = inflater.inflate(raw, inflated, raw.length - inflated);
+                if (read == 0 && (inflater.needsInput() || inflater.needsDictionary())) {
+                    throw new IllegalStateException("Truncated compressed body");
+                }
+                inflated += read;
+            }
+            return raw;
+        } catch (DataFormatException e) {
+            throw new IllegalStateException("Corrupted compressed body: " + e.getMessage(), e);
+        } finally {
+            inflater.reset();
+        }
+    }
+}
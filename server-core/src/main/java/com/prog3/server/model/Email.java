@@ -0,0 +1,114 @@
+package com.prog3.server.model;
+
+import com.prog3.protocol.Protocol;
+
+import java.time.LocalDateTime;
+import java.util.*;
+
+public class Email {
+    private final String id;
+    private final String sender;
+    private final List<String> recipients;
+    private final String subject;
+    private final String body;
+    private final BodySegment[] bodySegments;   // shared with other emails of the thread, set instead of body
+    private final LocalDateTime timestamp;
+
+    public Email(String id, String sender, List<String> recipients, String subject, String body, LocalDateTime timestamp) {
+        this.id = id;
+        this.sender = sender;
+        this.recipients = recipients;
+        this.subject = subject;
+        this.body = body;
+        this.bodySegments = null;
+        this.timestamp = timestamp;
+    }
+
+    /**
+     * Email of the MessageStore, whose body is split where it quotes the previous messages
+     *
+     * @param bodySegments the parts of the body between the quote markers
+     */
+    Email(String id, String sender, List<String> recipients, String subject, BodySegment[] bodySegments,
+          LocalDateTime timestamp) {
+        this.id = id;
+        this.sender = sender;
+        this.recipients = recipients;
+        this.subject = subject;
+        this.body = null;
+        this.bodySegments = bodySegments;
+        this.timestamp = timestamp;
+    }
+
+    public Email(String sender, List<String> recipients, String subject, String body, LocalDateTime timestamp) {
+        this.id = UUID.randomUUID().toString();
+        this.sender = sender;
+        this.recipients = recipients;
+        this.subject = subject;
+        this.body = body;
+        this.bodySegments = null;
+        this.timestamp = timestamp;
+    }
+
+    // Getters
+    public String getId() {
+        return id;
+    }
+
+    public String getSender() {
+        return sender;
+    }
+
+    public List<String> getRecipients() {
+        return recipients;
+    }
+
+    public String getSubject() {
+        return subject;
+    }
+
+    /**
+     * @return the body, rebuilt from its segments (and inflated, if they are compressed) for emails of the MessageStore
+     */
+    public String getBody() {
+        if (body != null) {
+            return body;
+        }
+        StringBuilder rebuilt = new StringBuilder(bodySegments[0].text());
+        for (int i = 1; i < bodySegments.length; i++) {
+            rebuilt.append(MessageStore.QUOTE_MARKER).append(bodySegments[i].text());
+        }
+        return rebuilt.toString();
+    }
+
+    /**
+     * @return the start of the body shown in listings, see Protocol.preview, in the escaped form of the storage. For
+     * emails of the MessageStore only the first segment is read, the quoted messages are not even inflated.
+     */
+    public String getPreview() {
+        String text = body != null ? body : bodySegments[0].text();
+        return Protocol.escape(Protocol.preview(Protocol.unescape(text)));
+    }
+
+    public LocalDateTime getTimestamp() {
+        return timestamp;
+    }
+
+    public String getEmailForResponse() {
+        return String.join("|",
+                id,
+                sender,
+                String.join("#", recipients), // Concatena i destinatari con #
+                subject,
+                getBody(),
+                timestamp.toString() // Usa il formato predefinito di LocalDateTime
+        );
+    }
+
+    /**
+     * @return the email as in getEmailForResponse, with the preview in place of the body
+     */
+    public String getListedEmailForResponse() {
+        return String.join("|", id, sender, String.join("#", recipients), subject, getPreview(), timestamp.toString());
+    }
+}
\ No newline at end of file
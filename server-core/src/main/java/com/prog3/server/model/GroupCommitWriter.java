@@ -0,0 +1,305 @@
+package com.prog3.server.model;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.*;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+/**
+ * Single writer thread for the storage log files.
+ * Request threads only encode their record and enqueue it; the writer drains everything queued so far as one batch,
+ * writes it through long-lived FileChannels and then completes the futures of the whole batch. Concurrent senders
+ * therefore share writes and fsyncs instead of opening and closing the file once per record.
+ */
+class GroupCommitWriter {
+    private static final int MAX_BATCH_SIZE = 4096;
+    // there is one log file per mailbox: channels beyond this are closed, least recently written first
+    private static final int MAX_OPEN_FILES = Integer.getInteger("mailfx.storage.maxOpenFiles", 256);
+
+    /**
+     * When the writer forces written data to the disk before acknowledging it
+     */
+    enum FsyncPolicy {
+        NONE,           // data is handed to the OS, a crash of the machine may lose the last writes
+        BATCH,          // one fsync per file per batch
+        EVERY_WRITE;    // one fsync per record
+
+        /**
+         * @param value "none", "batch" or "every-write"
+         */
+        static FsyncPolicy parse(String value) {
+            return FsyncPolicy.valueOf(value.trim().toUpperCase().replace('-', '_'));
+        }
+    }
+
+    private final FsyncPolicy fsyncPolicy;
+    private final BlockingQueue<Pending> queue = new LinkedBlockingQueue<>();
+    private final LinkedHashMap<LogFile, Boolean> openFiles = new LinkedHashMap<>(16, 0.75f, true);  // writer thread only
+    // enqueue holds the read lock and close the write lock, so nothing is queued after the stop command
+    private final ReentrantReadWriteLock closeLock = new ReentrantReadWriteLock();
+    private CompletableFuture<Void> stopped;    // set by close
+
+    /**
+     * Starts the writer thread
+     *
+     * @param name         name of the writer thread
+     * @param fsyncPolicy  durability policy
+     */
+    GroupCommitWriter(String name, FsyncPolicy fsyncPolicy) {
+        this.fsyncPolicy = fsyncPolicy;
+        Thread writerThread = new Thread(this::run, name);
+        writerThread.setDaemon(true);
+        writerThread.start();
+    }
+
+    /**
+     * @param path the file records will be appended to, created if missing
+     * @return a handle to append to the file through this writer
+     */
+    LogFile open(Path path) {
+        return new LogFile(path);
+    }
+
+    /**
+     * Queues a record for the file
+     *
+     * @param file   target file
+     * @param record encoded record, including its line terminator
+     * @return completes once the batch holding the record is written (and forced, depending on the policy)
+     */
+    CompletableFuture<Void> append(LogFile file, byte[] record) {
+        return enqueue(new Pending(file, record, null));
+    }
+
+    /**
+     * Makes the file handle write to a new path from now on. Records queued earlier still go to the old path.
+     *
+     * @return completes once the old file has been written and closed
+     */
+    CompletableFuture<Void> roll(LogFile file, Path newPath) {
+        return enqueue(new Pending(file, null, newPath));
+    }
+
+    /**
+     * @return completes once every record queued before this call is written
+     */
+    CompletableFuture<Void> flush() {
+        return enqueue(new Pending(null, null, null));
+    }
+
+    /**
+     * Writes the records queued so far, closes the files and stops the writer thread. Records queued afterwards fail.
+     *
+     * @return completes once the writer thread has stopped
+     */
+    CompletableFuture<Void> close() {
+        closeLock.writeLock().lock();
+        try {
+            if (stopped == null) {
+                Pending stop = new Pending(null, null, null, true, new CompletableFuture<>());
+                queue.add(stop);
+                stopped = stop.committed;
+            }
+            return stopped;
+        } finally {
+            closeLock.writeLock().unlock();
+        }
+    }
+
+    private CompletableFuture<Void> enqueue(Pending pending) {
+        closeLock.readLock().lock();
+        try {
+            if (stopped != null) {
+                return CompletableFuture.failedFuture(new IllegalStateException("Storage writer closed"));
+            }
+            queue.add(pending);
+            return pending.committed;
+        } finally {
+            closeLock.readLock().unlock();
+        }
+    }
+
+    private void run() {
+        List<Pending> batch = new ArrayList<>(MAX_BATCH_SIZE);
+        Map<LogFile, List<Pending>> writes = new LinkedHashMap<>();
+        while (true) {
+            try {
+                batch.add(queue.take());
+            } catch (InterruptedException e) {
+                return;
+            }
+            queue.drainTo(batch, MAX_BATCH_SIZE - 1);
+
+            for (int i = 0; i < batch.size(); i++) {
+                Pending pending = batch.get(i);
+                if (pending.stop) {
+                    commit(writes);
+                    stop(pending);     // always the last command queued
+                    return;
+                }
+                if (pending.record != null) {
+                    writes.computeIfAbsent(pending.file, k -> new ArrayList<>()).add(pending);
+                    continue;
+                }
+                // roll and flush commands see every record queued before them on disk
+                commit(writes);
+                if (pending.rollTo != null) {
+                    try {
+                        openFiles.remove(pending.file);
+                        pending.file.truncateDamage();
+                        pending.file.close();
+                        pending.file.path = pending.rollTo;
+                        pending.committed.complete(null);
+                    } catch (IOException e) {
+                        pending.committed.completeExceptionally(e);
+                    }
+                } else {
+                    pending.committed.complete(null);
+                }
+            }
+            commit(writes);
+            batch.clear();
+        }
+    }
+
+    /**
+     * Closes the open files
+     */
+    private void stop(Pending stop) {
+        for (LogFile file : openFiles.keySet()) {
+            try {
+                file.close();
+            } catch (IOException e) {
+                // nothing left to write to it
+            }
+        }
+        openFiles.clear();
+        stop.committed.complete(null);
+    }
+
+    private void commit(Map<LogFile, List<Pending>> writes) {
+        for (Map.Entry<LogFile, List<Pending>> entry : writes.entrySet()) {
+            LogFile file = entry.getKey();
+            List<Pending> records = entry.getValue();
+            int committed = 0;
+            try {
+                FileChannel channel = channel(file);
+                file.truncateDamage();
+                if (fsyncPolicy == FsyncPolicy.EVERY_WRITE) {
+                    for (; committed < records.size(); committed++) {
+                        Pending pending = records.get(committed);
+                        write(file, channel, ByteBuffer.wrap(pending.record));
+                        channel.force(false);
+                        pending.committed.complete(null);
+                    }
+                } else {
+                    int size = 0;
+                    for (Pending pending : records) size += pending.record.length;
+                    ByteBuffer buffer = ByteBuffer.allocate(size);
+                    for (Pending pending : records) buffer.put(pending.record);
+                    write(file, channel, buffer.flip());
+                    if (fsyncPolicy == FsyncPolicy.BATCH) {
+                        channel.force(false);
+                    }
+                    records.forEach(pending -> pending.committed.complete(null));
+                }
+            } catch (IOException e) {
+                records.subList(committed, records.size()).forEach(pending -> pending.committed.completeExceptionally(e));
+            }
+        }
+        writes.clear();
+    }
+
+    /**
+     * Appends the buffer to the file. A write failing halfway would leave part of a record that the next batch merges
+     * with into a line no loader can parse, so the file is cut back to where the write started; if even that fails,
+     * the channel is closed and the cut is retried before anything else is written to the file.
+     */
+    private void write(LogFile file, FileChannel channel, ByteBuffer buffer) throws IOException {
+        long end = channel.size();
+        try {
+            writeFully(channel, buffer);
+        } catch (IOException e) {
+            file.validSize = end;
+            try {
+                file.truncateDamage();
+            } catch (IOException truncateError) {
+                e.addSuppressed(truncateError);
+                openFiles.remove(file);
+                try {
+                    file.close();
+                } catch (IOException closeError) {
+                    // reopened, and cut, by the next write
+                }
+            }
+            throw e;
+        }
+    }
+
+    private FileChannel channel(LogFile file) throws IOException {
+        if (openFiles.put(file, Boolean.TRUE) == null && openFiles.size() > MAX_OPEN_FILES) {
+            Iterator<LogFile> eldest = openFiles.keySet().iterator();
+            LogFile idle = eldest.next();
+            eldest.remove();
+            idle.close();
+        }
+        return file.channel();
+    }
+
+    private static void writeFully(FileChannel channel, ByteBuffer buffer) throws IOException {
+        while (buffer.hasRemaining()) {
+            channel.write(buffer);
+        }
+    }
+
+    /**
+     * A file appended to by the writer thread. Its channel is opened on first use and stays open until the file is
+     * rolled or it becomes one of the least recently written files.
+     */
+    static final class LogFile {
+        private Path path;
+        private FileChannel channel;
+        private long validSize = -1;    // end of the last whole record, while a failed write is left after it
+
+        private LogFile(Path path) {
+            this.path = path;
+        }
+
+        private FileChannel channel() throws IOException {
+            if (channel == null) {
+                channel = FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                        StandardOpenOption.APPEND);
+            }
+            return channel;
+        }
+
+        /**
+         * Drops what a failed write left at the end of the file
+         */
+        private void truncateDamage() throws IOException {
+            if (validSize >= 0) {
+                channel().truncate(validSize);
+                validSize = -1;
+            }
+        }
+
+        private void close() throws IOException {
+            if (channel != null) {
+                channel.close();
+                channel = null;
+            }
+        }
+    }
+
+    private record Pending(LogFile file, byte[] record, Path rollTo, boolean stop, CompletableFuture<Void> committed) {
+        Pending(LogFile file, byte[] record, Path rollTo) {
+            this(file, record, rollTo, false, new CompletableFuture<>());
+        }
+    }
+}
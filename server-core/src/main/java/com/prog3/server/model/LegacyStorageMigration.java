@@ -0,0 +1,96 @@
+package com.prog3.server.model;
+
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.util.*;
+import java.util.concurrent.Executor;
+import java.util.function.Consumer;
+
+/**
+ * One-time conversion of the single shared "storage.csv" log into one log file per mailbox.
+ * The new files are written in a temporary directory that is renamed into place only when complete, and the old
+ * files are kept with a ".migrated" suffix, so an interrupted migration simply runs again on the next start.
+ */
+class LegacyStorageMigration {
+    static final String MIGRATED_SUFFIX = ".migrated";
+
+    private LegacyStorageMigration() {
+    }
+
+    /**
+     * Migrates the legacy CSV log, if there is one and the mailboxes directory does not exist yet
+     *
+     * @param legacyCsv          path of the old "storage.csv" (its numbered segments are migrated too)
+     * @param mailboxesDirectory directory of the per-mailbox log files
+     * @param writer             writer used to replay the legacy log
+     * @param compactor          compaction executor of the storage, the legacy log is only read
+     * @param logger             receives the storage events
+     * @return true if a migration was performed
+     */
+    static boolean migrateIfNeeded(Path legacyCsv, Path mailboxesDirectory, GroupCommitWriter writer, Executor compactor,
+                                   Consumer<String> logger) throws Exception {
+        if (!Files.exists(legacyCsv) || Files.exists(mailboxesDirectory)) {
+            return false;
+        }
+
+        // user -> live records, in log order
+        Map<String, LinkedHashMap<String, String>> mailboxes = new TreeMap<>();
+        Set<String> deleted = new HashSet<>();
+        new StorageLog(legacyCsv, writer, compactor, logger).replay(parts -> {
+            if (parts.length != 7) {
+                throw new Exception("Invalid CSV file format");
+            }
+            String userEmail = parts[0].toLowerCase();
+            LinkedHashMap<String, String> records = mailboxes.computeIfAbsent(userEmail, k -> new LinkedHashMap<>());
+            if (parts[1].equals(" ")) {
+                return;     // user row, the mailbox file is created even if it stays empty
+            }
+            String key = userEmail + "|" + parts[1];
+            if (parts[2].equals(StorageLog.TOMBSTONE_MARKER)) {
+                records.remove(parts[1]);
+                deleted.add(key);
+            } else if (!deleted.contains(key)) {
+                records.putIfAbsent(parts[1], String.join("|", parts));
+            }
+        });
+
+        Path tempDirectory = mailboxesDirectory.resolveSibling(mailboxesDirectory.getFileName() + ".tmp");
+        deleteRecursively(tempDirectory);
+        Files.createDirectories(tempDirectory);
+        for (Map.Entry<String, LinkedHashMap<String, String>> mailbox : mailboxes.entrySet()) {
+            Path file = tempDirectory.resolve(mailbox.getKey() + ServerStorage.MAILBOX_FILE_EXTENSION);
+            try (BufferedWriter out = Files.newBufferedWriter(file, StandardCharsets.UTF_8)) {
+                out.write(StorageLog.HEADER);
+                out.newLine();
+                for (String record : mailbox.getValue().values()) {
+                    out.write(record);
+                    out.newLine();
+                }
+            }
+        }
+        Files.move(tempDirectory, mailboxesDirectory, StandardCopyOption.ATOMIC_MOVE);
+
+        String prefix = legacyCsv.getFileName().toString();
+        File[] legacyFiles = legacyCsv.toAbsolutePath().getParent().toFile().listFiles(
+                (dir, name) -> name.equals(prefix) || name.matches(java.util.regex.Pattern.quote(prefix) + "\\.\\d+"));
+        for (File legacyFile : legacyFiles != null ? legacyFiles : new File[0]) {
+            Files.move(legacyFile.toPath(), legacyFile.toPath().resolveSibling(legacyFile.getName() + MIGRATED_SUFFIX),
+                    StandardCopyOption.REPLACE_EXISTING);
+        }
+        return true;
+    }
+
+    private static void deleteRecursively(Path directory) throws IOException {
+        if (!Files.exists(directory)) {
+            return;
+        }
+        try (var paths = Files.walk(directory)) {
+            for (Path path : paths.sorted(Comparator.reverseOrder()).toList()) {
+                Files.delete(path);
+            }
+        }
+    }
+}
@@ -0,0 +1,367 @@
+package com.prog3.server.model;
+
+import java.nio.charset.StandardCharsets;
+import java.time.LocalDateTime;
+import java.time.format.DateTimeParseException;
+import java.util.*;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ThreadLocalRandom;
+
+public class Mailbox {
+    // tombstones kept for SYNC, a client further behind gets the whole mailbox again
+    private static final int MAX_TOMBSTONES = Integer.getInteger("mailfx.sync.maxTombstones", 10_000);
+    // low bits of a sequence number, counting the mutations of one epoch
+    private static final int COUNTER_BITS = 36;
+
+    // emails by id: add, duplicate check and delete are constant time
+    private final ConcurrentHashMap<String, Email> inbox = new ConcurrentHashMap<>();
+    // the same emails ordered by timestamp, so "emails after T" is a range query instead of a scan
+    private final ConcurrentSkipListMap<TimelineKey, Email> timeline = new ConcurrentSkipListMap<>();
+    private final List<MailboxListener> listeners = new CopyOnWriteArrayList<>();
+    // long polls waiting for the next email, each one removes itself once completed
+    private final Set<CompletableFuture<Void>> arrivalWaiters = ConcurrentHashMap.newKeySet();
+
+    // every mutation gets the next sequence number: a random epoch in the high bits, picked when the mailbox is created
+    // or its content replaced, and a counter in the low bits. Nothing is stored: a sequence of a previous run or from
+    // before a reload belongs to another epoch, so it falls outside [historyStart, published] and gets a reset.
+    private final Object sequenceLock = new Object();
+    // by sequence number: the add of every email in the mailbox and the most recent removals
+    private final ConcurrentSkipListMap<Long, Change> changes = new ConcurrentSkipListMap<>();
+    private final Map<String, Long> sequenceById = new HashMap<>();     // guarded by sequenceLock
+    private final ArrayDeque<Long> tombstones = new ArrayDeque<>();     // guarded by sequenceLock
+    private long sequence = newEpoch();                                 // guarded by sequenceLock
+    // changes after this sequence are all in the map
+    private volatile long historyStart = sequence;
+    // the last sequence whose change is in the map
+    private volatile long published = sequence;
+
+    public Mailbox() {
+    }
+
+    /**
+     * Creates a mailbox holding the given emails; emails with an id already seen are ignored
+     */
+    public Mailbox(Collection<Email> emails) {
+        for (Email email : emails) {
+            if (inbox.putIfAbsent(email.getId(), email) == null) {
+                timeline.put(TimelineKey.of(email), email);
+                recordAdded(email);
+            }
+        }
+    }
+
+    /**
+     * @return a read-only view of the emails, oldest first
+     */
+    public Collection<Email> getInbox() {
+        return Collections.unmodifiableCollection(timeline.values());
+    }
+
+    /**
+     * @return the email with the given id, null if the mailbox does not hold it
+     */
+    public Email getEmail(String emailId) {
+        return inbox.get(emailId);
+    }
+
+    public int size() {
+        return inbox.size();
+    }
+
+    /**
+     * Registers a listener notified after every email added or removed
+     */
+    public void addListener(MailboxListener listener) {
+        listeners.add(listener);
+    }
+
+    public void removeListener(MailboxListener listener) {
+        listeners.remove(listener);
+    }
+
+    /**
+     * @return a future completed when the next email is added. It is completed by the thread adding the email, so
+     * dependent work should run asynchronously; completing it early, e.g. on a timeout, stops the wait.
+     */
+    public CompletableFuture<Void> awaitNewEmail() {
+        CompletableFuture<Void> arrival = new CompletableFuture<>();
+        arrivalWaiters.add(arrival);
+        arrival.whenComplete((ignored, error) -> arrivalWaiters.remove(arrival));
+        return arrival;
+    }
+
+    /**
+     * Adds the email unless an email with the same id is already in the mailbox, so that a message delivered twice
+     * is stored once.
+     *
+     * @return true if the email was added
+     */
+    public boolean addEmail(Email email) {
+        // mutations are numbered in the order they are applied
+        synchronized (sequenceLock) {
+            if (inbox.putIfAbsent(email.getId(), email) != null) {
+                return false;
+            }
+            timeline.put(TimelineKey.of(email), email);
+            recordAdded(email);
+        }
+        listeners.forEach(listener -> listener.emailAdded(email));
+        arrivalWaiters.forEach(arrival -> arrival.complete(null));
+        return true;
+    }
+
+    public boolean removeEmail(String emailId) {
+        Email removed;
+        synchronized (sequenceLock) {
+            removed = inbox.remove(emailId);
+            if (removed == null) {
+                return false;
+            }
+            timeline.remove(TimelineKey.of(removed));
+            recordRemoved(emailId);
+        }
+        listeners.forEach(listener -> listener.emailRemoved(removed));
+        return true;
+    }
+
+    /**
+     * Replaces the emails with those of another mailbox, e.g. the same mailbox just loaded again from the storage.
+     * Listeners and pending long polls stay registered: the long polls are woken up so that they read the new content,
+     * and every sequence from before the swap gets a reset.
+     */
+    public void replaceContent(Mailbox loaded) {
+        synchronized (sequenceLock) {
+            sequence = newEpoch();
+            historyStart = sequence;        // before clearing the history, so that a reader that missed it notices
+            inbox.clear();
+            timeline.clear();
+            changes.clear();
+            sequenceById.clear();
+            tombstones.clear();
+            for (Email email : loaded.timeline.values()) {
+                inbox.put(email.getId(), email);
+                timeline.put(TimelineKey.of(email), email);
+                recordAdded(email);
+            }
+            published = sequence;
+        }
+        arrivalWaiters.forEach(arrival -> arrival.complete(null));
+    }
+
+    public String getMailboxForResponse () {
+        if (timeline.isEmpty()) {
+            return "";
+        }
+
+        StringBuilder response = new StringBuilder();
+        for (Email email : timeline.values()) {
+            response.append(email.getEmailForResponse());
+            response.append("±");
+        }
+        return response.toString();
+    }
+
+    /**
+     * Serializes the emails newer than the given date, oldest first.
+     * It only visits the matching emails: when there is nothing new it just compares the date with the newest email.
+     *
+     * @param fromDate ISO local date-time, exclusive lower bound
+     */
+    public String getNewMailboxForResponse (String fromDate) {
+        Collection<Email> newEmails = getEmailsAfter(LocalDateTime.parse(fromDate));
+        if (newEmails.isEmpty()) {
+            return "";
+        }
+
+        StringBuilder response = new StringBuilder();
+        for (Email email : newEmails) {
+            response.append(email.getEmailForResponse());
+            response.append("±");
+        }
+        return response.toString();
+    }
+
+    /**
+     * @param fromDate exclusive lower bound
+     * @return a read-only view of the emails newer than the given date, oldest first
+     */
+    public Collection<Email> getEmailsAfter(LocalDateTime fromDate) {
+        Map.Entry<TimelineKey, Email> newest = timeline.lastEntry();
+        if (newest == null || !newest.getKey().timestamp().isAfter(fromDate)) {
+            return List.of();
+        }
+        return Collections.unmodifiableCollection(timeline.tailMap(TimelineKey.after(fromDate), false).values());
+    }
+
+    /**
+     * @return the sequence number of the last change of the mailbox
+     */
+    public long getSequence() {
+        return published;
+    }
+
+    /**
+     * What changed in the mailbox after a sequence number
+     *
+     * @param sequence the sequence number of the last change included, to ask for the next changes
+     * @param reset    true if the changes could not be computed, e.g. for a sequence of a previous run: added then
+     *                 holds the whole mailbox, oldest first, and the client should drop what it has
+     * @param added    the emails added, in the order they arrived
+     * @param removed  the ids of the emails removed
+     */
+    public record Changes(long sequence, boolean reset, List<Email> added, List<String> removed) {
+    }
+
+    /**
+     * Reads the changes after the given sequence number: an email added and then removed in between shows up as a
+     * removal only.
+     *
+     * @param since the sequence of the previous Changes, 0 to get the whole mailbox, or a negative number to get only
+     *              the current sequence, to start from after reading the mailbox some other way
+     */
+    public Changes getChangesSince(long since) {
+        long upTo = published;
+        if (since < 0) {
+            return new Changes(upTo, false, List.of(), List.of());
+        }
+        if (since >= historyStart && since <= upTo) {
+            List<Email> added = new ArrayList<>();
+            List<String> removed = new ArrayList<>();
+            for (Change change : changes.subMap(since, false, upTo, true).values()) {
+                if (change.added() != null) {
+                    added.add(change.added());
+                } else {
+                    removed.add(change.removedId());
+                }
+            }
+            // tombstones dropped, or the content replaced, while reading: the list may be incomplete
+            long start = historyStart;
+            if (since >= start && sameEpoch(since, start)) {
+                return new Changes(upTo, false, added, removed);
+            }
+        }
+        synchronized (sequenceLock) {
+            return new Changes(sequence, true, new ArrayList<>(timeline.values()), List.of());
+        }
+    }
+
+    /**
+     * @return the first sequence number of a new epoch, always positive
+     */
+    private static long newEpoch() {
+        return ThreadLocalRandom.current().nextLong(1, 1L << (Long.SIZE - 1 - COUNTER_BITS)) << COUNTER_BITS;
+    }
+
+    private static boolean sameEpoch(long sequence, long other) {
+        return sequence >>> COUNTER_BITS == other >>> COUNTER_BITS;
+    }
+
+    // the caller holds sequenceLock
+    private void recordAdded(Email email) {
+        long added = ++sequence;
+        changes.put(added, new Change(email, null));
+        sequenceById.put(email.getId(), added);
+        published = added;
+    }
+
+    // the caller holds sequenceLock
+    private void recordRemoved(String emailId) {
+        Long added = sequenceById.remove(emailId);
+        if (added != null) {
+            changes.remove(added);
+        }
+        long removed = ++sequence;
+        changes.put(removed, new Change(null, emailId));
+        tombstones.addLast(removed);
+        while (tombstones.size() > MAX_TOMBSTONES) {
+            long oldest = tombstones.removeFirst();
+            historyStart = oldest;      // before dropping it, so that a reader that missed it notices
+            changes.remove(oldest);
+        }
+        published = removed;
+    }
+
+    /**
+     * An entry of the change history: the email added, or the id of the email removed
+     */
+    private record Change(Email added, String removedId) {
+    }
+
+    /**
+     * One page of the mailbox, newest first
+     *
+     * @param emails     the emails of the page
+     * @param nextCursor the cursor of the following page, null if this is the last one
+     */
+    public record Page(List<Email> emails, String nextCursor) {
+    }
+
+    /**
+     * Reads the mailbox one page at a time, newest first. The cursor is the position of the last email of the previous
+     * page, so emails added or removed meanwhile never shift the following pages.
+     *
+     * @param cursor the nextCursor of the previous page, null for the first page
+     * @param limit  maximum number of emails of the page
+     * @throws IllegalArgumentException if the cursor was not returned by this method
+     */
+    public Page getPage(String cursor, int limit) {
+        NavigableMap<TimelineKey, Email> older = cursor == null
+                ? timeline.descendingMap()
+                : timeline.headMap(TimelineKey.decode(cursor), false).descendingMap();
+
+        List<Email> emails = new ArrayList<>(Math.min(limit, 256));
+        TimelineKey last = null;
+        Iterator<Map.Entry<TimelineKey, Email>> entries = older.entrySet().iterator();
+        while (emails.size() < limit && entries.hasNext()) {
+            Map.Entry<TimelineKey, Email> entry = entries.next();
+            emails.add(entry.getValue());
+            last = entry.getKey();
+        }
+        return new Page(emails, entries.hasNext() && last != null ? last.encode() : null);
+    }
+
+    /**
+     * Position of an email in the timeline. The id breaks ties between emails sent at the same instant.
+     */
+    private record TimelineKey(LocalDateTime timestamp, String id) implements Comparable<TimelineKey> {
+        private static final String MAX_ID = "\uffff";
+
+        static TimelineKey of(Email email) {
+            return new TimelineKey(email.getTimestamp(), email.getId());
+        }
+
+        /**
+         * @return a key greater than every key with the given timestamp and smaller than any later one
+         */
+        static TimelineKey after(LocalDateTime timestamp) {
+            return new TimelineKey(timestamp, MAX_ID);
+        }
+
+        /**
+         * @return the key as an opaque page cursor
+         */
+        String encode() {
+            return Base64.getUrlEncoder().withoutPadding()
+                    .encodeToString((timestamp + "/" + id).getBytes(StandardCharsets.UTF_8));
+        }
+
+        static TimelineKey decode(String cursor) {
+            try {
+                String key = new String(Base64.getUrlDecoder().decode(cursor), StandardCharsets.UTF_8);
+                int separator = key.indexOf('/');
+                return new TimelineKey(LocalDateTime.parse(key.substring(0, separator)), key.substring(separator + 1));
+            } catch (IllegalArgumentException | IndexOutOfBoundsException | DateTimeParseException e) {
+                throw new IllegalArgumentException("Invalid page cursor: " + cursor);
+            }
+        }
+
+        @Override
+        public int compareTo(TimelineKey other) {
+            int byTime = timestamp.compareTo(other.timestamp);
+            return byTime != 0 ? byTime : id.compareTo(other.id);
+        }
+    }
+}
@@ -0,0 +1,11 @@
+package com.prog3.server.model;
+
+/**
+ * Observer of the changes of a Mailbox. Methods are called on the thread that changed the mailbox, so they must be
+ * quick and must not block.
+ */
+public interface MailboxListener {
+    void emailAdded(Email email);
+
+    void emailRemoved(Email email);
+}
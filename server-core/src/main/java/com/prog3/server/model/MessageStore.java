@@ -0,0 +1,315 @@
+package com.prog3.server.model;
+
+import com.prog3.protocol.Protocol;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.time.LocalDateTime;
+import java.util.*;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executor;
+import java.util.function.Consumer;
+import java.util.regex.Pattern;
+
+/**
+ * Content of the emails sent through the server, stored once however many recipients they have.
+ * Sender, recipients, subject, body and timestamp are written to a single shared log, and every mailbox holding the
+ * email only appends a small reference record (SHARED_MARKER in the sender column); in memory all the mailboxes point
+ * to the same Email instance.
+ * Bodies are split where a reply or forward quotes the previous message (QUOTE_MARKER), and each segment is stored
+ * once by content hash: a long thread repeats the quoted history in every message, but only the new text of each
+ * reply takes space. Segments of at least -Dmailfx.storage.compressAbove characters (0, the default, disables it)
+ * are deflated, on disk and in memory, see BodySegment.
+ * Emails count the mailboxes referencing them and segments count the emails using them; the content record of an
+ * email gets a tombstone when the last mailbox deletes it, a segment when the last email using it is deleted, and
+ * the next compaction of the shared log drops them.
+ * <p>
+ * Records of the shared log, all owned by "*":
+ * <ul>
+ *     <li>{@code *|segmentId|#SEGMENT|data|encoding|hash}: a body segment, encoding is "plain" or "deflate" (base64
+ *     data) and hash is the SHA-256 of the text; older records are just {@code *|segmentId|#SEGMENT|text}</li>
+ *     <li>{@code *|emailId|sender|receivers|subject| |timestamp|segmentId,segmentId,...}: an email, the body is the
+ *     listed segments joined by QUOTE_MARKER</li>
+ *     <li>{@code *|emailId|sender|receivers|subject|body|timestamp}: an email with the whole body</li>
+ *     <li>tombstones, as in the mailbox logs</li>
+ * </ul>
+ * A segment record is always queued before the emails using it, and the writer keeps the order of the records of a
+ * file, so an email is never persisted without its segments.
+ */
+class MessageStore {
+    static final String SHARED_MARKER = "#SHARED";      // sender column of a mailbox record pointing to this store
+    static final String QUOTE_MARKER = Protocol.QUOTE_MARKER;     // added by the client to replies and forwards
+    private static final String SEGMENT_MARKER = "#SEGMENT";
+    private static final String OWNER = "*";            // user column of the content records
+    private static final Pattern QUOTE_SPLITTER = Pattern.compile(Pattern.quote(QUOTE_MARKER));
+    private static final int COMPRESS_ABOVE = Integer.getInteger("mailfx.storage.compressAbove", 0);
+
+    private final StorageLog log;
+    private final Map<String, StoredMessage> messages = new ConcurrentHashMap<>();     // by email id
+    private final Map<String, Segment> segments = new ConcurrentHashMap<>();           // by content hash
+
+    /**
+     * @param path      path of the shared log, created if missing
+     * @param writer    writer thread shared by the storage files
+     * @param compactor runs the compactions of the shared log
+     * @param logger    receives the compaction failures
+     */
+    MessageStore(Path path, GroupCommitWriter writer, Executor compactor, Consumer<String> logger) throws IOException {
+        if (!Files.exists(path)) {
+            Files.createDirectories(path.toAbsolutePath().getParent());
+            Files.writeString(path, StorageLog.HEADER + System.lineSeparator(), StandardCharsets.UTF_8);
+        }
+        this.log = new StorageLog(path, writer, compactor, logger);
+    }
+
+    /**
+     * Replaces the stored emails with the ones of the shared log, with no references yet
+     *
+     * @param logger receives the load timings
+     */
+    void load(Consumer<String> logger) throws Exception {
+        ParallelLogLoader.load("Message store", Map.of(OWNER, log), MessageStore::parseRecord,
+                (owner, storeLog, records) -> {
+                    merge(records);
+                    return records.size();
+                }, logger);
+    }
+
+    /**
+     * Stores the content of a new email. The store holds one reference for the caller, which must release it once the
+     * email has been added to the recipients' mailboxes.
+     *
+     * @param email   the email to store
+     * @param commits receives the futures of the queued records
+     * @return the stored email, to be added to the mailboxes in place of the given one
+     */
+    Email add(Email email, List<CompletableFuture<Void>> commits) {
+        String[] texts = QUOTE_SPLITTER.split(email.getBody(), -1);
+        BodySegment[] bodySegments = new BodySegment[texts.length];
+        String[] segmentIds = new String[texts.length];
+        Set<String> hashes = new LinkedHashSet<>();
+        for (int i = 0; i < texts.length; i++) {
+            String text = texts[i];
+            String hash = hash(text);
+            // one reference per email, even if the same text appears twice in its body
+            boolean retain = hashes.add(hash);
+            Segment segment = segments.compute(hash, (key, stored) -> {
+                if (stored != null) {
+                    return retain ? new Segment(stored.id, stored.body, stored.references + 1) : stored;
+                }
+                Segment created = new Segment(UUID.randomUUID().toString(), BodySegment.of(text, COMPRESS_ABOVE), 1);
+                commits.add(log.append(String.join("|", OWNER, created.id, SEGMENT_MARKER,
+                        created.body.encoded(), created.body.encoding(), hash)));
+                return created;
+            });
+            bodySegments[i] = segment.body;
+            segmentIds[i] = segment.id;
+        }
+
+        Email stored = new Email(email.getId(), email.getSender(), email.getRecipients(), email.getSubject(),
+                bodySegments, email.getTimestamp());
+        messages.put(stored.getId(), new StoredMessage(stored, 1, List.copyOf(hashes)));
+        commits.add(log.append(String.join("|",
+                OWNER,
+                stored.getId(),
+                stored.getSender(),
+                String.join("#", stored.getRecipients()),
+                stored.getSubject(),
+                " ",
+                stored.getTimestamp().toString(),
+                String.join(",", segmentIds)
+        )));
+        return stored;
+    }
+
+    /**
+     * Adds a reference to a stored email
+     *
+     * @return the stored email, or null if it is not in the store
+     */
+    Email retain(String emailId) {
+        StoredMessage message = messages.computeIfPresent(emailId,
+                (id, stored) -> new StoredMessage(stored.email, stored.references + 1, stored.segmentHashes));
+        return message != null ? message.email : null;
+    }
+
+    /**
+     * Drops a reference to a stored email, the content is deleted with the last one.
+     * Emails that are not in the store (written in full by older versions) are ignored.
+     */
+    void release(String emailId) {
+        StoredMessage[] deleted = new StoredMessage[1];
+        messages.computeIfPresent(emailId, (id, stored) -> {
+            if (stored.references > 1) {
+                return new StoredMessage(stored.email, stored.references - 1, stored.segmentHashes);
+            }
+            deleted[0] = stored;
+            return null;
+        });
+        if (deleted[0] != null) {
+            delete(deleted[0]);
+        }
+    }
+
+    /**
+     * Deletes the stored emails that no mailbox references, such as the content of a send interrupted by a crash
+     *
+     * @return the number of deleted emails
+     */
+    int releaseUnreferenced() {
+        List<StoredMessage> unreferenced = messages.values().stream()
+                .filter(stored -> stored.references == 0)
+                .toList();
+        for (StoredMessage stored : unreferenced) {
+            messages.remove(stored.email.getId());
+            delete(stored);
+        }
+        return unreferenced.size();
+    }
+
+    private void delete(StoredMessage stored) {
+        log.appendTombstone(OWNER, stored.email.getId(), LocalDateTime.now().toString());
+        for (String hash : stored.segmentHashes) {
+            releaseSegment(hash);
+        }
+    }
+
+    private void releaseSegment(String hash) {
+        segments.computeIfPresent(hash, (key, segment) -> {
+            if (segment.references > 1) {
+                return new Segment(segment.id, segment.body, segment.references - 1);
+            }
+            // queued while the entry is locked, so it cannot pass the record of a segment with the same text added
+            // right after; that one has a new id anyway, tombstones never hit a later copy of the content
+            log.appendTombstone(OWNER, segment.id, LocalDateTime.now().toString());
+            return null;
+        });
+    }
+
+    /**
+     * Rebuilds the stored emails and segments from the records of the shared log, in log order
+     */
+    private void merge(List<LoadedRecord> records) {
+        LinkedHashMap<String, LoadedRecord> live = new LinkedHashMap<>();
+        Set<String> deleted = new HashSet<>();
+        for (LoadedRecord record : records) {
+            if (record.isTombstone()) {
+                live.remove(record.key);
+                deleted.add(record.key);
+            } else if (!deleted.contains(record.key)) {     // else left behind by an interrupted compaction
+                live.putIfAbsent(record.key, record);
+            }
+        }
+
+        Map<String, Segment> segmentsById = new HashMap<>();
+        Map<String, String> hashesById = new HashMap<>();
+        for (LoadedRecord record : live.values()) {
+            if (record.segment != null) {
+                segmentsById.put(record.key, new Segment(record.key, record.segment, 0));
+                hashesById.put(record.key, record.segmentHash);
+            }
+        }
+
+        messages.clear();
+        segments.clear();
+        Set<String> usedSegmentIds = new HashSet<>();
+        for (LoadedRecord record : live.values()) {
+            if (record.email == null) {
+                continue;
+            }
+            if (record.segmentIds == null) {
+                messages.put(record.key, new StoredMessage(record.email, 0, List.of()));
+                continue;
+            }
+            if (!segmentsById.keySet().containsAll(Arrays.asList(record.segmentIds))) {
+                continue;       // damaged record, the email is dropped
+            }
+
+            BodySegment[] bodySegments = new BodySegment[record.segmentIds.length];
+            Set<String> hashes = new LinkedHashSet<>();
+            for (int i = 0; i < record.segmentIds.length; i++) {
+                Segment segment = segmentsById.get(record.segmentIds[i]);
+                bodySegments[i] = segment.body;
+                usedSegmentIds.add(segment.id);
+                String hash = hashesById.get(segment.id);
+                if (hashes.add(hash)) {
+                    segments.merge(hash, new Segment(segment.id, segment.body, 1),
+                            (indexed, added) -> new Segment(indexed.id, indexed.body, indexed.references + 1));
+                }
+            }
+            Email email = record.email;
+            messages.put(record.key, new StoredMessage(new Email(email.getId(), email.getSender(), email.getRecipients(),
+                    email.getSubject(), bodySegments, email.getTimestamp()), 0, List.copyOf(hashes)));
+        }
+
+        // segments no email uses any more are garbage
+        for (String segmentId : segmentsById.keySet()) {
+            if (!usedSegmentIds.contains(segmentId)) {
+                log.appendTombstone(OWNER, segmentId, LocalDateTime.now().toString());
+            }
+        }
+        log.setRecordCounts(records.size(), messages.size() + usedSegmentIds.size());
+    }
+
+    private static LoadedRecord parseRecord(String[] parts) throws Exception {
+        if (parts.length < 3) {
+            throw new Exception("Invalid CSV file format");
+        }
+
+        String key = parts[1];
+        if (parts[2].equals(StorageLog.TOMBSTONE_MARKER)) {
+            return new LoadedRecord(key, null, null, null, null);
+        }
+        if (parts[2].equals(SEGMENT_MARKER)) {
+            if (parts.length == 6) {
+                return new LoadedRecord(key, BodySegment.decode(parts[4], parts[3]), parts[5], null, null);
+            }
+            // older record with the plain text only, a trailing empty text is dropped by split
+            String text = parts.length > 3 ? parts[3] : "";
+            return new LoadedRecord(key, BodySegment.decode(BodySegment.PLAIN, text), hash(text), null, null);
+        }
+        if (parts.length != 7 && parts.length != 8) {
+            throw new Exception("Invalid CSV file format");
+        }
+
+        Email email = new Email(key, parts[2], Arrays.asList(parts[3].split("#")), parts[4], parts[5],
+                LocalDateTime.parse(parts[6]));
+        return new LoadedRecord(key, null, null, email, parts.length == 8 ? parts[7].split(",") : null);
+    }
+
+    /**
+     * @return the SHA-256 of the text, hex encoded
+     */
+    private static String hash(String text) {
+        try {
+            MessageDigest digest = MessageDigest.getInstance("SHA-256");
+            return HexFormat.of().formatHex(digest.digest(text.getBytes(StandardCharsets.UTF_8)));
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);     // every JVM has SHA-256
+        }
+    }
+
+    private record StoredMessage(Email email, int references, List<String> segmentHashes) {
+    }
+
+    /**
+     * A body segment. The id names it in the log and changes if the same text is stored again after being deleted.
+     */
+    private record Segment(String id, BodySegment body, int references) {
+    }
+
+    /**
+     * A parsed record: a segment when segment is set, an email when email is set (with the ids of its body
+     * segments, or null if the record holds the whole body), otherwise a tombstone
+     */
+    private record LoadedRecord(String key, BodySegment segment, String segmentHash, Email email, String[] segmentIds) {
+        boolean isTombstone() {
+            return segment == null && email == null;
+        }
+    }
+}
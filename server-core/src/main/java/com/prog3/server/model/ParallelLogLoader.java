@@ -0,0 +1,185 @@
+package com.prog3.server.model;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.CharsetDecoder;
+import java.nio.charset.CodingErrorAction;
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.function.Consumer;
+
+/**
+ * Loads the mailbox logs at startup using every core.
+ * Each segment file is split into newline-aligned chunks that are memory-mapped and parsed in parallel on a
+ * fork-join pool; the parsed records of each mailbox are then merged, in log order, also in parallel.
+ * Timings of the three phases (split, parse, merge) are reported to the log consumer.
+ */
+class ParallelLogLoader {
+    // chunks are parsed independently, so a big mailbox is loaded by many threads
+    private static final long CHUNK_SIZE = Long.getLong("mailfx.loader.chunkSize", 4L * 1024 * 1024);
+    private static final int PARALLELISM = Integer.getInteger("mailfx.loader.parallelism",
+            Runtime.getRuntime().availableProcessors());
+    private static final int SCAN_WINDOW = 64 * 1024;
+
+    private ParallelLogLoader() {
+    }
+
+    /**
+     * Turns the columns of one record into a parsed record, runs on the pool threads
+     */
+    @FunctionalInterface
+    interface RecordParser<T> {
+        T parse(String[] parts) throws Exception;
+    }
+
+    /**
+     * Builds the in-memory state of one mailbox from its records in log order, runs on the pool threads
+     */
+    @FunctionalInterface
+    interface Merger<T, R> {
+        R merge(String userEmail, StorageLog log, List<T> records) throws Exception;
+    }
+
+    /**
+     * @param name   what is being loaded, for the log
+     * @param logs   mailbox logs by user email
+     * @param parser parses a single record
+     * @param merger builds the state of a mailbox from its parsed records
+     * @param log    receives the phase timings
+     * @return merged state by user email
+     */
+    static <T, R> Map<String, R> load(String name, Map<String, StorageLog> logs, RecordParser<T> parser,
+                                      Merger<T, R> merger, Consumer<String> log) throws Exception {
+        long start = System.nanoTime();
+        ForkJoinPool pool = new ForkJoinPool(PARALLELISM);
+        List<FileChannel> channels = new ArrayList<>();
+        try {
+            // Phase 1: open every segment and cut it into newline-aligned chunks
+            List<Chunk> chunks = new ArrayList<>();
+            long bytes = 0;
+            for (Map.Entry<String, StorageLog> entry : logs.entrySet()) {
+                for (FileChannel channel : entry.getValue().openSegments()) {
+                    channels.add(channel);
+                    bytes += channel.size();
+                    split(entry.getKey(), channel, chunks);
+                }
+            }
+            long splitDone = System.nanoTime();
+
+            // Phase 2: map and parse the chunks in parallel, the ordered stream keeps records in log order
+            List<ParsedChunk<T>> parsedChunks = pool.submit(() -> chunks.parallelStream()
+                    .map(chunk -> parse(chunk, parser))
+                    .toList()).get();
+            long parseDone = System.nanoTime();
+
+            Map<String, List<T>> recordsByUser = new LinkedHashMap<>();
+            logs.keySet().forEach(user -> recordsByUser.put(user, new ArrayList<>()));
+            long records = 0;
+            for (ParsedChunk<T> parsedChunk : parsedChunks) {
+                recordsByUser.get(parsedChunk.userEmail).addAll(parsedChunk.records);
+                records += parsedChunk.records.size();
+            }
+
+            // Phase 3: merge every mailbox in parallel
+            Map<String, R> merged = pool.submit(() -> recordsByUser.entrySet().parallelStream()
+                    .collect(HashMap<String, R>::new, (map, entry) -> {
+                        try {
+                            map.put(entry.getKey(), merger.merge(entry.getKey(), logs.get(entry.getKey()), entry.getValue()));
+                        } catch (Exception e) {
+                            throw new IllegalStateException("Error in loading mailbox of " + entry.getKey() + ": " + e.getMessage(), e);
+                        }
+                    }, HashMap::putAll)).get();
+            long mergeDone = System.nanoTime();
+
+            log.accept(String.format("%s loaded: %d logs, %d records, %d KB in %d ms "
+                            + "(split %d ms, parse %d ms on %d threads, merge %d ms)",
+                    name, logs.size(), records, bytes / 1024, millis(start, mergeDone), millis(start, splitDone),
+                    millis(splitDone, parseDone), PARALLELISM, millis(parseDone, mergeDone)));
+            return merged;
+        } catch (ExecutionException e) {
+            throw new Exception(e.getCause().getMessage(), e.getCause());
+        } finally {
+            pool.shutdown();
+            for (FileChannel channel : channels) {
+                channel.close();
+            }
+        }
+    }
+
+    /**
+     * Cuts the file at the first newline after every CHUNK_SIZE bytes
+     */
+    private static void split(String userEmail, FileChannel channel, List<Chunk> chunks) throws IOException {
+        long size = channel.size();
+        long chunkStart = 0;
+        boolean first = true;
+        while (chunkStart < size) {
+            long chunkEnd = chunkStart + CHUNK_SIZE >= size ? size : nextLineStart(channel, chunkStart + CHUNK_SIZE, size);
+            chunks.add(new Chunk(userEmail, channel, chunkStart, chunkEnd, first));
+            chunkStart = chunkEnd;
+            first = false;
+        }
+    }
+
+    private static long nextLineStart(FileChannel channel, long position, long size) throws IOException {
+        ByteBuffer window = ByteBuffer.allocate(SCAN_WINDOW);
+        while (position < size) {
+            window.clear();
+            int read = channel.read(window, position);
+            for (int i = 0; i < read; i++) {
+                if (window.get(i) == '\n') {
+                    return position + i + 1;
+                }
+            }
+            position += read;
+        }
+        return size;
+    }
+
+    private static <T> ParsedChunk<T> parse(Chunk chunk, RecordParser<T> parser) {
+        try {
+            MappedByteBuffer mapped = chunk.channel.map(FileChannel.MapMode.READ_ONLY, chunk.start, chunk.end - chunk.start);
+            // each line is decoded straight from the mapping, the chunk is never copied to the heap
+            CharsetDecoder decoder = StandardCharsets.UTF_8.newDecoder()
+                    .onMalformedInput(CodingErrorAction.REPLACE)
+                    .onUnmappableCharacter(CodingErrorAction.REPLACE);
+            int length = mapped.limit();
+
+            List<T> records = new ArrayList<>();
+            int lineStart = 0;
+            boolean skipHeader = chunk.containsHeader;
+            for (int i = 0; i <= length; i++) {
+                if (i < length && mapped.get(i) != '\n') {
+                    continue;
+                }
+                int lineEnd = i > lineStart && mapped.get(i - 1) == '\r' ? i - 1 : i;
+                if (lineEnd > lineStart) {
+                    if (skipHeader) {
+                        skipHeader = false;
+                    } else {
+                        String line = decoder.decode(mapped.slice(lineStart, lineEnd - lineStart)).toString();
+                        records.add(parser.parse(StorageLog.splitRecord(line)));
+                    }
+                }
+                lineStart = i + 1;
+            }
+            return new ParsedChunk<>(chunk.userEmail, records);
+        } catch (Exception e) {
+            throw new IllegalStateException("Invalid CSV file format in mailbox of " + chunk.userEmail + ": " + e.getMessage(), e);
+        }
+    }
+
+    private static long millis(long from, long to) {
+        return (to - from) / 1_000_000;
+    }
+
+    private record Chunk(String userEmail, FileChannel channel, long start, long end, boolean containsHeader) {
+    }
+
+    private record ParsedChunk<T>(String userEmail, List<T> records) {
+    }
+}
@@ -0,0 +1,458 @@
+package com.prog3.server.model;
+
+import com.prog3.protocol.Protocol;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.*;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+/**
+ * Inverted index of one mailbox over sender, recipients, subject and body, for SEARCH.
+ * Every email is a document with an ordinal; each term maps to the ordinals of the documents holding it, in increasing
+ * order, with the weight of the term in each of them (a subject word counts more than a body word). A search
+ * intersects the postings of the query terms, starting from the shortest, and ranks the documents by the sum of
+ * weight times inverse document frequency. Removed documents are skipped until enough of them pile up, then the
+ * postings are rebuilt.
+ * <p>
+ * The index is persisted next to the mailbox as an append-only log of "A|id|term:weight,..." and "R|id" records, so
+ * the terms of the stored emails are read back at startup instead of being extracted again from every body. The log is
+ * derived data: records are queued to the writer without waiting for them, and at startup the log is reconciled
+ * with the mailbox, indexing the emails it misses and dropping the ones that are gone.
+ */
+class SearchIndex {
+    static final String FILE_EXTENSION = ".idx";
+    private static final String HEADER = "op|id|terms(term:weight,)";
+    private static final String ADD = "A";
+    private static final String REMOVE = "R";
+
+    private static final int SUBJECT_WEIGHT = 3;
+    private static final int SENDER_WEIGHT = 2;
+    private static final int RECIPIENT_WEIGHT = 1;
+    private static final int BODY_WEIGHT = 1;
+    private static final int MIN_TERM_LENGTH = 2;
+    private static final int MAX_TERM_LENGTH = 40;
+
+    private final Map<String, Postings> postings = new HashMap<>();
+    // the same terms sorted, so that the last query term can be matched as a prefix
+    private final TreeSet<String> sortedTerms = new TreeSet<>();
+    private final List<Document> documents = new ArrayList<>();     // by ordinal, null once removed
+    private final Map<String, Integer> ordinals = new HashMap<>();  // by email id
+    private final ReentrantReadWriteLock lock = new ReentrantReadWriteLock();
+    private final GroupCommitWriter writer;
+    private final GroupCommitWriter.LogFile file;
+
+    /**
+     * The terms of an email with their weights, extracted once and shared by the indexes of all its recipients
+     */
+    record Terms(String[] terms, int[] weights) {
+    }
+
+    private record Document(Email email, Terms terms) {
+    }
+
+    /**
+     * Growable parallel arrays of ordinals, in increasing order, and weights
+     */
+    private static final class Postings {
+        private int[] ordinals = new int[4];
+        private int[] weights = new int[4];
+        private int size;
+
+        void add(int ordinal, int weight) {
+            if (size == ordinals.length) {
+                ordinals = Arrays.copyOf(ordinals, size * 2);
+                weights = Arrays.copyOf(weights, size * 2);
+            }
+            ordinals[size] = ordinal;
+            weights[size] = weight;
+            size++;
+        }
+    }
+
+    private SearchIndex(GroupCommitWriter writer, Path path) {
+        this.writer = writer;
+        this.file = writer.open(path);
+    }
+
+    /**
+     * Loads the index of a mailbox from its log, or builds it if the log is missing, and brings it in line with the
+     * mailbox. The log is rewritten when most of its records are stale.
+     *
+     * @param path   the index log of the mailbox, created if missing
+     * @param emails the emails of the mailbox
+     */
+    static SearchIndex open(Path path, Collection<Email> emails, GroupCommitWriter writer) throws IOException {
+        Map<String, Terms> stored = new HashMap<>();
+        int records = read(path, stored);
+
+        List<Document> documents = new ArrayList<>(emails.size());
+        List<Document> extracted = new ArrayList<>();
+        for (Email email : emails) {
+            Terms terms = stored.remove(email.getId());
+            Document document = new Document(email, terms != null ? terms : terms(email));
+            documents.add(document);
+            if (terms == null) {
+                extracted.add(document);
+            }
+        }
+
+        boolean rewrite = records > 2 * documents.size() + 64;
+        if (rewrite) {
+            write(path, documents);
+        }
+        SearchIndex index = new SearchIndex(writer, path);
+        for (Document document : documents) {
+            index.insert(document);
+        }
+        if (!rewrite) {
+            if (records == 0) {
+                index.append(HEADER);
+            }
+            extracted.forEach(document -> index.append(addRecord(document)));
+            stored.keySet().forEach(emailId -> index.append(String.join("|", REMOVE, emailId)));
+        }
+        return index;
+    }
+
+    /**
+     * Splits the searchable fields of an email into lower case words, summing the weight of the field of every
+     * occurrence
+     */
+    static Terms terms(Email email) {
+        Map<String, Integer> weights = new HashMap<>();
+        addTerms(weights, email.getSubject(), SUBJECT_WEIGHT);
+        addTerms(weights, email.getSender(), SENDER_WEIGHT);
+        for (String recipient : email.getRecipients()) {
+            addTerms(weights, recipient, RECIPIENT_WEIGHT);
+        }
+        // the stored body keeps the escaping of the line protocol
+        addTerms(weights, Protocol.unescape(email.getBody()), BODY_WEIGHT);
+
+        String[] terms = new String[weights.size()];
+        int[] termWeights = new int[weights.size()];
+        int i = 0;
+        for (Map.Entry<String, Integer> entry : weights.entrySet()) {
+            terms[i] = entry.getKey();
+            termWeights[i++] = entry.getValue();
+        }
+        return new Terms(terms, termWeights);
+    }
+
+    /**
+     * Indexes an email added to the mailbox, called while the mailbox is locked
+     */
+    void add(Email email, Terms terms) {
+        Document document = new Document(email, terms);
+        lock.writeLock().lock();
+        try {
+            if (ordinals.containsKey(email.getId())) {
+                return;
+            }
+            insert(document);
+        } finally {
+            lock.writeLock().unlock();
+        }
+        append(addRecord(document));
+    }
+
+    /**
+     * Drops an email removed from the mailbox, called while the mailbox is locked
+     */
+    void remove(String emailId) {
+        lock.writeLock().lock();
+        try {
+            Integer ordinal = ordinals.remove(emailId);
+            if (ordinal == null) {
+                return;
+            }
+            documents.set(ordinal, null);
+            // removed documents only cost memory and skipped postings until they outnumber the others
+            if (documents.size() > 1024 && documents.size() > 2 * ordinals.size()) {
+                rebuild();
+            }
+        } finally {
+            lock.writeLock().unlock();
+        }
+        append(String.join("|", REMOVE, emailId));
+    }
+
+    /**
+     * Finds the emails holding every word of the query; the last word also matches the longer words it starts, so a
+     * query can be run while it is typed.
+     *
+     * @return up to limit emails, best match first and, between equal matches, newest first
+     */
+    List<Email> search(String query, int limit) {
+        List<String> words = new ArrayList<>(new LinkedHashSet<>(words(query)));
+        if (words.isEmpty() || limit < 1) {
+            return List.of();
+        }
+
+        lock.readLock().lock();
+        try {
+            List<Postings> matches = new ArrayList<>(words.size());
+            for (int i = 0; i < words.size(); i++) {
+                Postings match = i == words.size() - 1 ? prefixPostings(words.get(i)) : postings.get(words.get(i));
+                if (match == null || match.size == 0) {
+                    return List.of();
+                }
+                matches.add(match);
+            }
+            matches.sort(Comparator.comparingInt(match -> match.size));
+
+            double documentCount = ordinals.size();
+            double[] idf = new double[matches.size()];
+            for (int i = 0; i < idf.length; i++) {
+                idf[i] = Math.log(1 + documentCount / matches.get(i).size);
+            }
+
+            // the worst of the best matches found so far is at the head
+            PriorityQueue<Hit> best = new PriorityQueue<>(limit + 1, Hit.BETTER.reversed());
+            int[] positions = new int[matches.size()];
+            Postings shortest = matches.getFirst();
+            candidates:
+            for (int p = 0; p < shortest.size; p++) {
+                int ordinal = shortest.ordinals[p];
+                Document document = documents.get(ordinal);
+                if (document == null) {
+                    continue;
+                }
+                double score = shortest.weights[p] * idf[0];
+                for (int i = 1; i < matches.size(); i++) {
+                    Postings other = matches.get(i);
+                    int position = advance(other, positions[i], ordinal);
+                    positions[i] = position;
+                    if (position == other.size) {
+                        break candidates;
+                    }
+                    if (other.ordinals[position] != ordinal) {
+                        continue candidates;
+                    }
+                    score += other.weights[position] * idf[i];
+                }
+                best.add(new Hit(document.email(), score));
+                if (best.size() > limit) {
+                    best.poll();
+                }
+            }
+
+            List<Hit> hits = new ArrayList<>(best);
+            hits.sort(Hit.BETTER);
+            List<Email> emails = new ArrayList<>(hits.size());
+            for (Hit hit : hits) {
+                emails.add(hit.email());
+            }
+            return emails;
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    private record Hit(Email email, double score) {
+        static final Comparator<Hit> BETTER = Comparator.comparingDouble(Hit::score).reversed()
+                .thenComparing(hit -> hit.email().getTimestamp(), Comparator.reverseOrder());
+    }
+
+    /**
+     * @return the first position from the given one whose ordinal is not below the target, found by galloping
+     */
+    private static int advance(Postings postings, int from, int target) {
+        int step = 1;
+        int low = from;
+        int high = from;
+        while (high < postings.size && postings.ordinals[high] < target) {
+            low = high + 1;
+            high += step;
+            step *= 2;
+        }
+        high = Math.min(high, postings.size);
+        while (low < high) {
+            int middle = (low + high) >>> 1;
+            if (postings.ordinals[middle] < target) {
+                low = middle + 1;
+            } else {
+                high = middle;
+            }
+        }
+        return low;
+    }
+
+    /**
+     * @return the postings of every term starting with the prefix, merged; the term itself when nothing else matches
+     */
+    private Postings prefixPostings(String prefix) {
+        SortedSet<String> terms = sortedTerms.subSet(prefix, prefix + Character.MAX_VALUE);
+        if (terms.size() <= 1) {
+            return terms.isEmpty() ? null : postings.get(terms.first());
+        }
+        // summed by ordinal, then read back in order
+        int[] weights = new int[documents.size()];
+        for (String term : terms) {
+            Postings termPostings = postings.get(term);
+            for (int i = 0; i < termPostings.size; i++) {
+                weights[termPostings.ordinals[i]] += termPostings.weights[i];
+            }
+        }
+        Postings merged = new Postings();
+        for (int ordinal = 0; ordinal < weights.length; ordinal++) {
+            if (weights[ordinal] > 0) {
+                merged.add(ordinal, weights[ordinal]);
+            }
+        }
+        return merged;
+    }
+
+    // the caller holds the write lock, or is building the index
+    private void insert(Document document) {
+        int ordinal = documents.size();
+        documents.add(document);
+        ordinals.put(document.email().getId(), ordinal);
+        Terms terms = document.terms();
+        for (int i = 0; i < terms.terms().length; i++) {
+            Postings termPostings = postings.get(terms.terms()[i]);
+            if (termPostings == null) {
+                termPostings = new Postings();
+                postings.put(terms.terms()[i], termPostings);
+                sortedTerms.add(terms.terms()[i]);
+            }
+            termPostings.add(ordinal, terms.weights()[i]);
+        }
+    }
+
+    // the caller holds the write lock
+    private void rebuild() {
+        List<Document> live = new ArrayList<>(ordinals.size());
+        for (Document document : documents) {
+            if (document != null) {
+                live.add(document);
+            }
+        }
+        postings.clear();
+        sortedTerms.clear();
+        documents.clear();
+        ordinals.clear();
+        live.forEach(this::insert);
+    }
+
+    private void append(String record) {
+        writer.append(file, (record + System.lineSeparator()).getBytes(StandardCharsets.UTF_8));
+    }
+
+    private static String addRecord(Document document) {
+        Terms terms = document.terms();
+        StringBuilder record = new StringBuilder(ADD).append('|').append(document.email().getId()).append('|');
+        for (int i = 0; i < terms.terms().length; i++) {
+            if (i > 0) {
+                record.append(',');
+            }
+            record.append(terms.terms()[i]).append(':').append(terms.weights()[i]);
+        }
+        return record.toString();
+    }
+
+    /**
+     * Replays the log into the terms of the emails it holds. A damaged record, e.g. cut by a crash, is skipped: its
+     * email is indexed again.
+     *
+     * @return the number of records read
+     */
+    private static int read(Path path, Map<String, Terms> stored) throws IOException {
+        if (!Files.exists(path)) {
+            return 0;
+        }
+        int records = 0;
+        try (BufferedReader reader = Files.newBufferedReader(path, StandardCharsets.UTF_8)) {
+            String line = reader.readLine();
+            while ((line = reader.readLine()) != null) {
+                records++;
+                int idEnd = line.indexOf('|', 2);
+                if (line.startsWith(REMOVE + "|") && idEnd < 0) {
+                    stored.remove(line.substring(2));
+                } else if (line.startsWith(ADD + "|") && idEnd > 0) {
+                    Terms terms = parseTerms(line, idEnd + 1);
+                    if (terms != null) {
+                        stored.put(line.substring(2, idEnd), terms);
+                    }
+                }
+            }
+        }
+        return Math.max(records, 1);    // the header alone still counts as a log to append to
+    }
+
+    /**
+     * @param start the index of the terms column in the record
+     * @return null if the column is damaged
+     */
+    private static Terms parseTerms(String record, int start) {
+        int count = 0;
+        for (int i = start; i < record.length(); i++) {
+            if (record.charAt(i) == ':') {
+                count++;
+            }
+        }
+        String[] terms = new String[count];
+        int[] weights = new int[count];
+        int position = start;
+        try {
+            for (int i = 0; i < count; i++) {
+                int separator = record.indexOf(':', position);
+                int end = record.indexOf(',', separator);
+                end = end < 0 ? record.length() : end;
+                terms[i] = record.substring(position, separator);
+                weights[i] = Integer.parseInt(record, separator + 1, end, 10);
+                position = end + 1;
+            }
+        } catch (IndexOutOfBoundsException | NumberFormatException e) {
+            return null;
+        }
+        return new Terms(terms, weights);
+    }
+
+    /**
+     * Writes a log holding only the given documents, through a temporary file
+     */
+    private static void write(Path path, List<Document> documents) throws IOException {
+        Path temporary = path.resolveSibling(path.getFileName() + ".tmp");
+        try (BufferedWriter out = Files.newBufferedWriter(temporary, StandardCharsets.UTF_8)) {
+            out.write(HEADER);
+            out.newLine();
+            for (Document document : documents) {
+                out.write(addRecord(document));
+                out.newLine();
+            }
+        }
+        Files.move(temporary, path, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    private static void addTerms(Map<String, Integer> weights, String text, int weight) {
+        for (String word : words(text)) {
+            weights.merge(word, weight, Integer::sum);
+        }
+    }
+
+    /**
+     * @return the lower case runs of letters and digits of the text, of a searchable length
+     */
+    static List<String> words(String text) {
+        List<String> words = new ArrayList<>();
+        int start = -1;
+        for (int i = 0; i <= text.length(); i++) {
+            boolean wordChar = i < text.length() && Character.isLetterOrDigit(text.charAt(i));
+            if (wordChar && start < 0) {
+                start = i;
+            } else if (!wordChar && start >= 0) {
+                if (i - start >= MIN_TERM_LENGTH && i - start <= MAX_TERM_LENGTH) {
+                    words.add(text.substring(start, i).toLowerCase(Locale.ROOT));
+                }
+                start = -1;
+            }
+        }
+        return words;
+    }
+}
@@ -0,0 +1,430 @@
+package com.prog3.server.model;
+
+import java.io.*;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.*;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.function.Consumer;
+import java.time.LocalDateTime;
+
+public class ServerStorage {
+    static final String MAILBOX_FILE_EXTENSION = ".csv";
+    private static final String MAILBOXES_DIRECTORY = "mailboxes";
+    private static final String LEGACY_CSV_FILE = "storage.csv";
+    private static final String MESSAGES_FILE = "messages/messages.csv";
+
+    private final Path mailboxesDirectory;      // One append-only log per user, named after the user's email
+    private final GroupCommitWriter writer;     // Writer thread shared by all the mailbox logs
+    private final ThreadPoolExecutor compactor; // Compaction thread shared by all the logs, started when needed
+    private final ConcurrentHashMap<String, StorageLog> mailboxLogs = new ConcurrentHashMap<>();
+    private final MessageStore messageStore;    // Content of the emails, shared by their recipients' mailboxes
+    private final Consumer<String> logger;      // Receives storage events worth showing in the server log
+    // Adds and removes hold the read lock, a reload the write lock: it rebuilds the reference counts, the mailboxes
+    // and the search indexes from the files, and must not miss a change made halfway through
+    private final ReentrantReadWriteLock reloadLock = new ReentrantReadWriteLock();
+    private volatile ConcurrentHashMap<String, User> users;    // In-memory storage
+    private volatile Map<String, SearchIndex> searchIndexes;    // One per mailbox, kept next to its log
+
+    /**
+     * Constructor that initializes the storage.
+     * Every user has its own log file in the "mailboxes" subdirectory, so writes to different mailboxes never wait
+     * for each other. A legacy "storage.csv" found in the data directory is split into per-user files first.
+     * The content of the emails is stored once in "messages/messages.csv", the mailboxes only reference it.
+     * Next to each mailbox log, "user1@mail.com.idx" persists the search index of the mailbox.
+     * @param dataDirectory Path to the data directory.
+     * @param logger Receives storage events, such as load timings.
+     */
+    public ServerStorage(String dataDirectory, Consumer<String> logger) throws Exception {
+        this.logger = logger;
+        Path dataPath = Path.of(dataDirectory);
+        if (!Files.isDirectory(dataPath)) {
+            throw new FileNotFoundException("Directory not found with path: " + dataDirectory);
+        }
+        this.mailboxesDirectory = dataPath.resolve(MAILBOXES_DIRECTORY);
+        this.writer = new GroupCommitWriter("storage-writer",
+                GroupCommitWriter.FsyncPolicy.parse(System.getProperty("mailfx.storage.fsync", "batch")));
+        this.compactor = newCompactor();
+
+        if (LegacyStorageMigration.migrateIfNeeded(dataPath.resolve(LEGACY_CSV_FILE), mailboxesDirectory, writer,
+                compactor, logger)) {
+            logger.accept("Migrated " + LEGACY_CSV_FILE + " to per-user files in: " + mailboxesDirectory);
+        }
+        Files.createDirectories(mailboxesDirectory);
+        this.messageStore = new MessageStore(dataPath.resolve(MESSAGES_FILE), writer, compactor, logger);
+        users = loadFromFile();
+    }
+
+    /**
+     * One thread for the compactions of every log, stopped after a minute without work
+     */
+    private static ThreadPoolExecutor newCompactor() {
+        ThreadPoolExecutor compactor = new ThreadPoolExecutor(1, 1, 1, TimeUnit.MINUTES,
+                new LinkedBlockingQueue<>(), runnable -> {
+            Thread thread = new Thread(runnable, "storage-compactor");
+            thread.setDaemon(true);
+            return thread;
+        });
+        compactor.allowCoreThreadTimeOut(true);
+        return compactor;
+    }
+
+    /**
+     * Stops the storage: waits for the running compaction, drops the queued ones and writes the records still queued.
+     * The storage can no longer be changed afterwards.
+     */
+    public void close() throws InterruptedException {
+        compactor.shutdown();
+        compactor.getQueue().clear();       // not interrupted: a compaction stopped halfway would only be redone
+        compactor.awaitTermination(1, TimeUnit.MINUTES);
+        writer.close().join();
+    }
+
+    /**
+     * Checks if a user exists in the storage.
+     * @param userMail The email address of the user.
+     * @return True if the user exists, false otherwise.
+     */
+    public boolean userExists(String userMail) {
+        return users.containsKey(userMail.toLowerCase());
+    }
+
+    /**
+     * Lists all users in the storage.
+     * @return A list of user email addresses.
+     */
+    public String listUsers() {
+        return String.join(", ", users.keySet());
+    }
+
+    /**
+     * Provides a read-only view of the users map.
+     * @return An unmodifiable map containing all users.
+     */
+    public Map<String, User> getUsers() {
+        return Collections.unmodifiableMap(users);
+    }
+
+    /**
+     * Adds an email to a user's mailbox.
+     *
+     * @param userMail The email address of the recipient.
+     * @param newEmail The email to add.
+     */
+    public void addEmailToMailbox(String userMail, Email newEmail) throws Exception {
+        addEmailToMailboxes(newEmail, List.of(userMail));
+    }
+
+    /**
+     * Adds an email to several mailboxes and waits for all of them to be persisted.
+     * The content is stored once in the message store and every mailbox gets a reference to it; the records are
+     * queued together, so they usually end up in the same write batch.
+     *
+     * @param email      The email to add.
+     * @param recipients The email addresses of the recipients.
+     */
+    public void addEmailToMailboxes(Email email, Collection<String> recipients) throws Exception {
+        List<CompletableFuture<Void>> commits = new ArrayList<>();
+        SearchIndex.Terms terms = SearchIndex.terms(email);     // extracted once, outside the mailbox locks
+        reloadLock.readLock().lock();
+        try {
+            addToMailboxes(email, recipients, terms, commits);
+        } finally {
+            reloadLock.readLock().unlock();
+        }
+        awaitCommit(CompletableFuture.allOf(commits.toArray(new CompletableFuture[0])));
+    }
+
+    private void addToMailboxes(Email email, Collection<String> recipients, SearchIndex.Terms terms,
+                                List<CompletableFuture<Void>> commits) {
+        Email stored = messageStore.add(email, commits);
+        try {
+            for (String recipient : recipients) {
+                String userMail = recipient.toLowerCase();
+                StorageLog log = mailboxLogs.get(userMail);
+                log.mailboxLock.lock();
+                try {
+                    if (users.get(userMail).addEmail(stored)) {
+                        searchIndexes.get(userMail).add(stored, terms);
+                        messageStore.retain(stored.getId());
+                        commits.add(appendReferenceToCSV(log, userMail, stored));
+                    }
+                } finally {
+                    log.mailboxLock.unlock();
+                }
+            }
+        } finally {
+            messageStore.release(stored.getId());   // the reference taken by add
+        }
+    }
+
+    public boolean removeEmailFromMailbox(String userEmail, String emailId) throws Exception {
+        String userMail = userEmail.toLowerCase();
+        StorageLog log = mailboxLogs.get(userMail);
+        CompletableFuture<Void> commit;
+        reloadLock.readLock().lock();
+        try {
+            log.mailboxLock.lock();
+            try {
+                if (!users.get(userMail).removeEmail(emailId)) {
+                    return false;
+                }
+                searchIndexes.get(userMail).remove(emailId);
+                commit = removeFromCSV(log, userMail, emailId); // Rimuovi solo la mail specifica dal file
+            } finally {
+                log.mailboxLock.unlock();
+            }
+            messageStore.release(emailId);
+        } finally {
+            reloadLock.readLock().unlock();
+        }
+        awaitCommit(commit);
+        return true;
+    }
+
+    public String getAllUserEmails(String clientMail) {
+        return users.get(clientMail.toLowerCase()).getAllUserMailboxForResponse();
+    }
+
+    public String getNewUserEmails(String clientMail, String fromDate) {
+        return users.get(clientMail.toLowerCase()).getNewUserMailboxForResponse(fromDate);
+    }
+
+    /**
+     * @return a read-only view of the user's emails, oldest first
+     */
+    public Collection<Email> getUserEmailList(String clientMail) {
+        return users.get(clientMail.toLowerCase()).getMailbox().getInbox();
+    }
+
+    /**
+     * @param cursor the nextCursor of the previous page, null for the first page
+     * @return up to limit emails of the user, newest first
+     */
+    public Mailbox.Page getUserEmailPage(String clientMail, String cursor, int limit) {
+        return users.get(clientMail.toLowerCase()).getMailbox().getPage(cursor, limit);
+    }
+
+    /**
+     * @return the email of the user's mailbox with the given id, null if there is none
+     */
+    public Email getUserEmail(String clientMail, String emailId) {
+        return users.get(clientMail.toLowerCase()).getMailbox().getEmail(emailId);
+    }
+
+    /**
+     * @return a read-only view of the user's emails newer than the given date, oldest first
+     */
+    public Collection<Email> getNewUserEmailList(String clientMail, LocalDateTime fromDate) {
+        return users.get(clientMail.toLowerCase()).getMailbox().getEmailsAfter(fromDate);
+    }
+
+    /**
+     * @return the sequence number of the last change of the user's mailbox, which changes only when the mailbox does
+     */
+    public long getUserSequence(String clientMail) {
+        return users.get(clientMail.toLowerCase()).getMailbox().getSequence();
+    }
+
+    /**
+     * @param since the sequence number of the previous sync, see Mailbox.getChangesSince
+     */
+    public Mailbox.Changes getUserChangesSince(String clientMail, long since) {
+        return users.get(clientMail.toLowerCase()).getMailbox().getChangesSince(since);
+    }
+
+    /**
+     * @param query words to look for in sender, recipients, subject and body; the last one can be the start of a word
+     * @return up to limit emails of the user holding every word of the query, best match first
+     */
+    public List<Email> searchUserEmails(String clientMail, String query, int limit) {
+        return searchIndexes.get(clientMail.toLowerCase()).search(query, limit);
+    }
+
+    /**
+     * @return a future completed when the next email reaches the user's mailbox, see Mailbox.awaitNewEmail
+     */
+    public CompletableFuture<Void> awaitNewEmail(String clientMail) {
+        return users.get(clientMail.toLowerCase()).getMailbox().awaitNewEmail();
+    }
+
+    /**
+     * Loads the message store and every mailbox log into the ConcurrentHashMap, parsing the files in parallel.
+     * Records are replayed in order: a tombstone cancels the email record with the same id.
+     * Stored emails that no mailbox references any more are deleted.
+     * The search indexes are loaded at the same time, each brought in line with its mailbox.
+     * On a reload the users already known keep their User and Mailbox objects, whose content is replaced, so that
+     * push subscriptions and long polls waiting on them keep working.
+     * @return A ConcurrentHashMap with the user data.
+     */
+    private ConcurrentHashMap<String, User> loadFromFile() throws Exception {
+        File[] mailboxFiles = mailboxesDirectory.toFile().listFiles((dir, name) -> name.endsWith(MAILBOX_FILE_EXTENSION));
+        if (mailboxFiles == null) {
+            throw new FileNotFoundException("Error in reading mailboxes directory: " + mailboxesDirectory);
+        }
+
+        Map<String, StorageLog> logs = new HashMap<>();
+        for (File mailboxFile : mailboxFiles) {
+            String fileName = mailboxFile.getName();
+            String userEmail = fileName.substring(0, fileName.length() - MAILBOX_FILE_EXTENSION.length()).toLowerCase();
+            logs.put(userEmail, mailboxLogs.computeIfAbsent(userEmail, k -> openLog(mailboxFile.toPath())));
+        }
+
+        try {
+            messageStore.load(logger);
+            writer.flush().join();      // index records still queued by a previous load
+            Map<String, SearchIndex> indexes = new ConcurrentHashMap<>();
+            Map<String, User> loaded = ParallelLogLoader.load("Storage", logs, ServerStorage::parseRecord,
+                    (userEmail, log, records) -> {
+                        Mailbox mailbox = mergeMailbox(log, records);
+                        indexes.put(userEmail, SearchIndex.open(mailboxesDirectory.resolve(userEmail
+                                + SearchIndex.FILE_EXTENSION), mailbox.getInbox(), writer));
+                        User existing = users != null ? users.get(userEmail) : null;
+                        if (existing == null) {
+                            return new User(userEmail, mailbox);
+                        }
+                        log.mailboxLock.lock();
+                        try {
+                            existing.getMailbox().replaceContent(mailbox);
+                        } finally {
+                            log.mailboxLock.unlock();
+                        }
+                        return existing;
+                    }, logger);
+            searchIndexes = indexes;
+            int unreferenced = messageStore.releaseUnreferenced();
+            if (unreferenced > 0) {
+                logger.accept("Deleted " + unreferenced + " stored emails not referenced by any mailbox");
+            }
+            return new ConcurrentHashMap<>(loaded);
+        } catch (Exception e) {
+            throw new FileNotFoundException("Error in reading mailbox files in: " + mailboxesDirectory + ", " + e.getMessage());
+        }
+    }
+
+    private StorageLog openLog(Path path) {
+        try {
+            return new StorageLog(path, writer, compactor, logger);
+        } catch (FileNotFoundException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    private static LoadedRecord parseRecord(String[] parts) throws Exception {
+        if (parts.length != 7) {
+            throw new Exception("Invalid CSV file format");
+        }
+
+        String emailId = parts[1];
+        if (parts[2].equals(StorageLog.TOMBSTONE_MARKER)) {
+            return new LoadedRecord(emailId, null, false);
+        }
+        if (parts[2].equals(MessageStore.SHARED_MARKER)) {
+            return new LoadedRecord(emailId, null, true);
+        }
+
+        String sender = parts[2];
+        List<String> receivers = Arrays.asList(parts[3].split("#"));
+        String subject = parts[4];
+        String body = parts[5];
+        LocalDateTime timestamp = LocalDateTime.parse(parts[6]);
+
+        return new LoadedRecord(emailId, new Email(emailId, sender, receivers, subject, body, timestamp), false);
+    }
+
+    /**
+     * @return the records left after applying the tombstones, by email id in log order
+     */
+    private static LinkedHashMap<String, LoadedRecord> liveRecords(List<LoadedRecord> records) {
+        LinkedHashMap<String, LoadedRecord> live = new LinkedHashMap<>();
+        Set<String> deleted = new HashSet<>();
+        for (LoadedRecord record : records) {
+            if (record.isTombstone()) {
+                live.remove(record.emailId);
+                deleted.add(record.emailId);
+            } else if (!deleted.contains(record.emailId)) {     // else left behind by an interrupted compaction
+                live.putIfAbsent(record.emailId, record);
+            }
+        }
+        return live;
+    }
+
+    /**
+     * Builds a mailbox, taking a message store reference for every shared email it holds.
+     * A reference whose content is missing (lost in a crash before being written) is skipped.
+     */
+    private Mailbox mergeMailbox(StorageLog log, List<LoadedRecord> records) {
+        LinkedHashMap<String, LoadedRecord> live = liveRecords(records);
+        List<Email> emails = new ArrayList<>(live.size());
+        for (LoadedRecord record : live.values()) {
+            Email email = record.shared ? messageStore.retain(record.emailId) : record.email;
+            if (email != null) {
+                emails.add(email);
+            }
+        }
+        log.setRecordCounts(records.size(), emails.size());
+        return new Mailbox(emails);
+    }
+
+    /**
+     * Adds to the user's file a reference to an email of the message store, the columns of the content are left blank
+     */
+    private CompletableFuture<Void> appendReferenceToCSV(StorageLog log, String userEmail, Email email) {
+        return log.append(String.join("|",
+                userEmail,
+                email.getId(),
+                MessageStore.SHARED_MARKER,
+                " ",
+                " ",
+                " ",
+                email.getTimestamp().toString()
+        ));
+    }
+
+    /**
+     * Marks the email as deleted by appending a tombstone, the record itself is dropped by the next compaction
+     */
+    private CompletableFuture<Void> removeFromCSV(StorageLog log, String userEmail, String emailId) {
+        return log.appendTombstone(userEmail, emailId, LocalDateTime.now().toString());
+    }
+
+    /**
+     * Waits for queued records to be committed by the writer thread
+     */
+    private void awaitCommit(CompletableFuture<Void> commit) throws Exception {
+        try {
+            commit.get();
+        } catch (ExecutionException e) {
+            throw new Exception("Error writing data to mailbox files in: " + mailboxesDirectory + ", " + e.getCause().getMessage());
+        }
+    }
+
+    /**
+     * Loads the files again, see loadFromFile. Adds and removes wait for the reload to finish.
+     */
+    public void reloadFromFile() throws Exception {
+        reloadLock.writeLock().lock();
+        try {
+            users = loadFromFile();
+        } catch (Exception e) {
+            throw new Exception("Error in reloading CSV File");
+        } finally {
+            reloadLock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * A parsed record: an email, a reference to an email of the message store, or the tombstone of one
+     */
+    private record LoadedRecord(String emailId, Email email, boolean shared) {
+        boolean isTombstone() {
+            return email == null && !shared;
+        }
+    }
+}
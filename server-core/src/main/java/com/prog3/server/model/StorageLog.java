@@ -0,0 +1,327 @@
+package com.prog3.server.model;
+
+import java.io.*;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.util.*;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.Consumer;
+
+/**
+ * Append-only record log backing one mailbox of the server storage.
+ * The log is a sequence of segments: the base file (e.g. "user1@mail.com.csv") holds the last compacted state, and
+ * "user1@mail.com.csv.1", "user1@mail.com.csv.2", ... hold the records appended after it; only the highest segment
+ * is written.
+ * Deleting an email never rewrites a file, it appends a tombstone record. Once enough garbage (deleted records plus
+ * their tombstones) has piled up, a background thread seals the active segment and merges the sealed segments into a
+ * new base file, while requests keep appending to a fresh segment.
+ * Records are written by a GroupCommitWriter, appends return the future of their commit. Compactions run on an
+ * executor shared by all the logs of the storage.
+ */
+class StorageLog {
+    static final String HEADER = "userEmail|id|sender|receivers(#)|subject|body|timestamp";
+    static final String TOMBSTONE_MARKER = "#DELETED";      // sender column of a tombstone, never a valid address
+
+    // compaction starts when both thresholds are reached, can be overridden with -Dmailfx.compaction.*
+    private static final long MIN_GARBAGE_RECORDS = Long.getLong("mailfx.compaction.minGarbageRecords", 1000);
+    private static final int GARBAGE_PERCENT = Integer.getInteger("mailfx.compaction.garbagePercent", 50);
+
+    private final Path basePath;
+    private final GroupCommitWriter writer;
+    private final Executor compactor;
+    private final Consumer<String> logger;
+    private final GroupCommitWriter.LogFile activeFile;
+    // guards the segment list against concurrent replay and compaction, not synchronized: holders do file I/O
+    private final ReentrantLock segmentLock = new ReentrantLock();
+    // held by ServerStorage while it changes the mailbox of this log and queues the matching record, so that records
+    // reach the log in the same order as the in-memory changes
+    final ReentrantLock mailboxLock = new ReentrantLock();
+    private final AtomicLong totalRecords = new AtomicLong();
+    private final AtomicLong garbageRecords = new AtomicLong();
+    private final AtomicBoolean compacting = new AtomicBoolean();
+
+    private int activeSegment;      // 0 is the base file
+
+    /**
+     * @param basePath  path of the base segment, it must exist
+     * @param writer    writer thread shared by the storage files
+     * @param compactor runs the compactions of the log
+     * @param logger    receives the compaction failures
+     */
+    StorageLog(Path basePath, GroupCommitWriter writer, Executor compactor, Consumer<String> logger)
+            throws FileNotFoundException {
+        if (!Files.exists(basePath)) {
+            throw new FileNotFoundException("File not found with path: " + basePath);
+        }
+        this.basePath = basePath;
+        this.writer = writer;
+        this.compactor = compactor;
+        this.logger = logger;
+        this.activeSegment = segmentNumbers().stream().max(Integer::compare).orElse(0);
+        this.activeFile = writer.open(segmentPath(activeSegment));
+    }
+
+    /**
+     * Reads every record of every segment, oldest first, and passes its columns to the consumer.
+     * Header lines are skipped.
+     *
+     * @param recordConsumer receives the "|" separated columns of each record
+     */
+    void replay(RecordConsumer recordConsumer) throws Exception {
+        segmentLock.lock();
+        try {
+            writer.flush().join();
+            for (Path segment : segmentPaths(activeSegment)) {
+                try (BufferedReader reader = Files.newBufferedReader(segment, StandardCharsets.UTF_8)) {
+                    String line = reader.readLine();
+                    while ((line = reader.readLine()) != null) {
+                        recordConsumer.accept(splitRecord(line));
+                    }
+                }
+            }
+        } finally {
+            segmentLock.unlock();
+        }
+    }
+
+    /**
+     * Splits a record into its "|" separated columns like String.split, except that an escaped "\\|" inside a body
+     * is not a separator. A "|" is escaped when an odd number of backslashes precede it: in "\\\\|" the backslash
+     * is escaped instead, and ends the column.
+     */
+    static String[] splitRecord(String line) {
+        int separator = line.indexOf('|');
+        if (separator < 0) {
+            return new String[]{line};
+        }
+        List<String> columns = new ArrayList<>(8);
+        int start = 0;
+        for (; separator >= 0; separator = line.indexOf('|', separator + 1)) {
+            int backslashes = 0;
+            while (separator > backslashes && line.charAt(separator - backslashes - 1) == '\\') {
+                backslashes++;
+            }
+            if (backslashes % 2 == 1) {
+                continue;
+            }
+            columns.add(line.substring(start, separator));
+            start = separator + 1;
+        }
+        columns.add(line.substring(start));
+
+        int size = columns.size();
+        while (size > 0 && columns.get(size - 1).isEmpty()) {
+            size--;         // String.split drops trailing empty columns
+        }
+        return columns.subList(0, size).toArray(new String[0]);
+    }
+
+    /**
+     * Opens every segment for reading, oldest first, once all queued records are written.
+     * The channels stay valid even if a compaction replaces the files afterwards.
+     *
+     * @return open channels, the caller closes them
+     */
+    List<FileChannel> openSegments() throws IOException {
+        segmentLock.lock();
+        try {
+            writer.flush().join();
+            List<FileChannel> channels = new ArrayList<>();
+            for (Path segment : segmentPaths(activeSegment)) {
+                channels.add(FileChannel.open(segment, StandardOpenOption.READ));
+            }
+            return channels;
+        } finally {
+            segmentLock.unlock();
+        }
+    }
+
+    /**
+     * Tells the log how many records it holds and how many of them are still live, so that garbage left by earlier
+     * runs counts towards the compaction threshold.
+     */
+    void setRecordCounts(long records, long liveRecords) {
+        totalRecords.set(records);
+        garbageRecords.set(Math.max(0, records - liveRecords));
+        compactIfNeeded();
+    }
+
+    /**
+     * Queues a record for the active segment
+     *
+     * @param record the formatted record, without line terminator
+     * @return completes when the record is committed
+     */
+    CompletableFuture<Void> append(String record) {
+        totalRecords.incrementAndGet();
+        return writer.append(activeFile, (record + System.lineSeparator()).getBytes(StandardCharsets.UTF_8));
+    }
+
+    /**
+     * Queues a tombstone for a previously appended email record. Both records become garbage.
+     *
+     * @return completes when the tombstone is committed
+     */
+    CompletableFuture<Void> appendTombstone(String userEmail, String emailId, String timestamp) {
+        CompletableFuture<Void> committed = append(String.join("|", userEmail, emailId, TOMBSTONE_MARKER, " ", " ", " ", timestamp));
+        garbageRecords.addAndGet(2);
+        compactIfNeeded();
+        return committed;
+    }
+
+    private void compactIfNeeded() {
+        long garbage = garbageRecords.get();
+        if (garbage < MIN_GARBAGE_RECORDS || garbage * 100 < totalRecords.get() * GARBAGE_PERCENT) {
+            return;
+        }
+        if (compacting.compareAndSet(false, true)) {
+            try {
+                compactor.execute(() -> {
+                    try {
+                        compact();
+                    } catch (IOException e) {
+                        logger.accept("Storage compaction failed for: " + basePath + ", " + e.getMessage());
+                    } finally {
+                        compacting.set(false);
+                    }
+                });
+            } catch (RejectedExecutionException e) {
+                compacting.set(false);      // the storage is closing, the garbage stays until the next run
+            }
+        }
+    }
+
+    /**
+     * Merges all sealed segments into a new base file. Only sealing the active segment and swapping the files happen
+     * under the append lock; reading and rewriting run concurrently with new appends.
+     */
+    private void compact() throws IOException {
+        int lastSealed;
+        segmentLock.lock();
+        try {
+            lastSealed = activeSegment;
+            activeSegment++;
+            writeHeader(segmentPath(activeSegment));
+            writer.roll(activeFile, segmentPath(activeSegment)).join();
+        } finally {
+            segmentLock.unlock();
+        }
+
+        List<Path> sealed = segmentPaths(lastSealed);
+        Set<String> deleted = new HashSet<>();
+        for (Path segment : sealed) {
+            try (BufferedReader reader = Files.newBufferedReader(segment, StandardCharsets.UTF_8)) {
+                String line = reader.readLine();
+                while ((line = reader.readLine()) != null) {
+                    String[] parts = line.split("\\|", 4);
+                    if (parts.length > 2 && parts[2].equals(TOMBSTONE_MARKER)) {
+                        deleted.add(parts[0] + "|" + parts[1]);
+                    }
+                }
+            }
+        }
+
+        Path tempPath = basePath.resolveSibling(basePath.getFileName() + ".tmp");
+        long dropped = 0;
+        Set<String> seen = new HashSet<>();
+        try (BufferedWriter writer = Files.newBufferedWriter(tempPath, StandardCharsets.UTF_8)) {
+            writer.write(HEADER);
+            writer.newLine();
+            for (Path segment : sealed) {
+                try (BufferedReader reader = Files.newBufferedReader(segment, StandardCharsets.UTF_8)) {
+                    String line = reader.readLine();
+                    while ((line = reader.readLine()) != null) {
+                        String[] parts = line.split("\\|", 4);
+                        if (parts.length < 2) {
+                            dropped++;
+                            continue;
+                        }
+                        String key = parts[0] + "|" + parts[1];
+                        boolean isUser = parts.length > 1 && parts[1].equals(" ");
+                        boolean tombstone = parts.length > 2 && parts[2].equals(TOMBSTONE_MARKER);
+                        boolean live = isUser ? seen.add(key) : !tombstone && !deleted.contains(key) && seen.add(key);
+                        if (live) {
+                            writer.write(line);
+                            writer.newLine();
+                        } else {
+                            dropped++;
+                        }
+                    }
+                }
+            }
+        }
+
+        segmentLock.lock();
+        try {
+            Files.move(tempPath, basePath, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            for (Path segment : sealed) {
+                if (!segment.equals(basePath)) {
+                    Files.delete(segment);
+                }
+            }
+            // the remaining segments keep their numbers, the log is still replayed in order
+            totalRecords.addAndGet(-dropped);
+            garbageRecords.addAndGet(-dropped);
+        } finally {
+            segmentLock.unlock();
+        }
+    }
+
+    @Override
+    public String toString() {
+        return basePath.toString();
+    }
+
+    private void writeHeader(Path segment) throws IOException {
+        Files.writeString(segment, HEADER + System.lineSeparator(), StandardCharsets.UTF_8,
+                StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING);
+    }
+
+    private Path segmentPath(int number) {
+        return number == 0 ? basePath : basePath.resolveSibling(basePath.getFileName() + "." + number);
+    }
+
+    /**
+     * @return the base file followed by the existing segments up to the given number, in order
+     */
+    private List<Path> segmentPaths(int upTo) {
+        List<Path> paths = new ArrayList<>();
+        paths.add(basePath);
+        for (int number : segmentNumbers()) {
+            if (number <= upTo) {
+                paths.add(segmentPath(number));
+            }
+        }
+        return paths;
+    }
+
+    private List<Integer> segmentNumbers() {
+        String prefix = basePath.getFileName() + ".";
+        File[] files = basePath.toAbsolutePath().getParent().toFile().listFiles();
+        List<Integer> numbers = new ArrayList<>();
+        if (files != null) {
+            for (File file : files) {
+                String name = file.getName();
+                if (name.startsWith(prefix) && name.substring(prefix.length()).matches("\\d+")) {
+                    numbers.add(Integer.parseInt(name.substring(prefix.length())));
+                }
+            }
+        }
+        numbers.sort(Integer::compare);
+        return numbers;
+    }
+
+    /**
+     * Receives the columns of a replayed record
+     */
+    @FunctionalInterface
+    interface RecordConsumer {
+        void accept(String[] parts) throws Exception;
+    }
+}
@@ -1,7 +1,5 @@
 package com.prog3.server.model;
 
-import javafx.collections.ObservableList;
-
 public class User {
     private final String userEmail;
     private final Mailbox mailbox;
@@ -21,8 +19,12 @@ public class User {
         return mailbox;
     }
 
-    public ObservableList<Email> getUserMailboxObservableList() {
-        return mailbox.getInbox();
+    public void addMailboxListener(MailboxListener listener) {
+        mailbox.addListener(listener);
+    }
+
+    public void removeMailboxListener(MailboxListener listener) {
+        mailbox.removeListener(listener);
     }
 
     public String getAllUserMailboxForResponse() {
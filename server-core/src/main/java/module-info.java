@@ -0,0 +1,6 @@
+module com.prog3.server.core {
+    requires com.prog3.protocol;
+
+    exports com.prog3.server.core;
+    exports com.prog3.server.model;
+}
@@ -0,0 +1,104 @@
+package com.prog3.server.core;
+
+import com.prog3.server.model.Email;
+import com.prog3.server.model.ServerStorage;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.BufferedReader;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.LocalDateTime;
+import java.util.List;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class BlockingServerTest {
+    private static final String USER = "user1@mail.com";
+
+    @TempDir
+    Path data;
+
+    private ServerStorage storage;
+    private RequestHandler requestHandler;
+    private Semaphore permits;
+    private BlockingServer server;
+    private int port;
+
+    @BeforeEach
+    void setUp() throws Exception {
+        Path mailboxes = Files.createDirectories(data.resolve("mailboxes"));
+        Files.writeString(mailboxes.resolve(USER + ".csv"), "userEmail|id|sender|receivers(#)|subject|body|timestamp"
+                + System.lineSeparator(), StandardCharsets.UTF_8);
+        storage = new ServerStorage(data.toString(), message -> {
+        });
+        requestHandler = new RequestHandler(storage, message -> {
+        });
+        try (ServerSocket free = new ServerSocket(0)) {
+            port = free.getLocalPort();
+        }
+        permits = new Semaphore(1);
+        server = new BlockingServer(port, requestHandler, Executors.newCachedThreadPool(), permits, message -> {
+        });
+        server.start();
+    }
+
+    @AfterEach
+    void tearDown() throws Exception {
+        server.stop();
+        requestHandler.close();
+        storage.close();
+    }
+
+    @Test
+    void clientNotReadingALargePageDoesNotHoldThePermit() throws Exception {
+        int emails = 200;
+        String body = "x".repeat(64 * 1024);
+        for (int i = 0; i < emails; i++) {
+            storage.addEmailToMailbox(USER, email(body, i));
+        }
+
+        try (Socket slow = new Socket("localhost", port); Socket other = new Socket("localhost", port)) {
+            // the page is far larger than the socket buffers, so its writes block until the client reads it
+            write(slow, "GET_MESSAGES_PAGE|" + USER + "|" + emails + "|");
+            Thread.sleep(500);
+
+            other.setSoTimeout((int) TimeUnit.SECONDS.toMillis(5));
+            write(other, "LOGIN|" + USER);
+            BufferedReader otherIn = reader(other);
+            assertTrue(otherIn.readLine().startsWith("SUCCESS"));
+
+            BufferedReader slowIn = reader(slow);
+            assertEquals("SUCCESS|" + emails + "|", slowIn.readLine());
+            for (int i = 0; i < emails; i++) {
+                assertTrue(slowIn.readLine().contains(body));
+            }
+        }
+        assertEquals(1, permits.availablePermits());
+    }
+
+    private static void write(Socket socket, String request) throws Exception {
+        OutputStream out = socket.getOutputStream();
+        out.write((request + "\n").getBytes(StandardCharsets.UTF_8));
+        out.flush();
+    }
+
+    private static BufferedReader reader(Socket socket) throws Exception {
+        return new BufferedReader(new InputStreamReader(socket.getInputStream(), StandardCharsets.UTF_8));
+    }
+
+    private static Email email(String body, int seconds) {
+        return new Email("user2@mail.com", List.of(USER), "subject", body,
+                LocalDateTime.of(2024, 1, 1, 9, 0).plusSeconds(seconds));
+    }
+}
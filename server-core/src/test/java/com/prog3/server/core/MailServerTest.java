@@ -0,0 +1,85 @@
+package com.prog3.server.core;
+
+import com.prog3.server.model.Email;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.LocalDateTime;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class MailServerTest {
+    @TempDir
+    Path data;
+
+    private final List<String> logged = new CopyOnWriteArrayList<>();
+    private MailServer server;
+
+    @BeforeEach
+    void setUp() throws Exception {
+        createMailbox("user1@mail.com");
+        server = new MailServer(data.toString(), logged::add);
+    }
+
+    @AfterEach
+    void tearDown() throws Exception {
+        server.close();
+    }
+
+    @Test
+    void mailboxChangesAreLoggedOnceAfterReloads() throws Exception {
+        server.logMailboxChanges();
+        server.reloadStorage();
+        server.reloadStorage();
+
+        Email email = email();
+        server.getStorage().addEmailToMailbox("user1@mail.com", email);
+        server.getStorage().removeEmailFromMailbox("user1@mail.com", email.getId());
+
+        assertEquals(1, count("Email added to user1@mail.com's inbox"));
+        assertEquals(1, count("Email removed from user1@mail.com's inbox"));
+    }
+
+    @Test
+    void mailboxFoundByAReloadIsLogged() throws Exception {
+        server.logMailboxChanges();
+        createMailbox("user2@mail.com");
+        server.reloadStorage();
+        server.reloadStorage();
+
+        server.getStorage().addEmailToMailbox("user2@mail.com", email());
+
+        assertEquals(1, count("Email added to user2@mail.com's inbox"));
+    }
+
+    @Test
+    void mailboxChangesAreNotLoggedUnlessAsked() throws Exception {
+        server.reloadStorage();
+
+        server.getStorage().addEmailToMailbox("user1@mail.com", email());
+
+        assertEquals(0, count("Email added to"));
+    }
+
+    private void createMailbox(String user) throws Exception {
+        Path mailboxes = Files.createDirectories(data.resolve("mailboxes"));
+        Files.writeString(mailboxes.resolve(user + ".csv"), "userEmail|id|sender|receivers(#)|subject|body|timestamp"
+                + System.lineSeparator(), StandardCharsets.UTF_8);
+    }
+
+    private static Email email() {
+        return new Email("user3@mail.com", List.of("user1@mail.com", "user2@mail.com"), "subject", "body",
+                LocalDateTime.of(2024, 1, 1, 9, 0));
+    }
+
+    private long count(String prefix) {
+        return logged.stream().filter(message -> message.startsWith(prefix)).count();
+    }
+}
@@ -0,0 +1,127 @@
+package com.prog3.server.core;
+
+import com.prog3.server.model.Email;
+import com.prog3.server.model.ServerStorage;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.SocketException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.LocalDateTime;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class NioServerTest {
+    private static final String USER = "user1@mail.com";
+
+    @TempDir
+    Path data;
+
+    private ServerStorage storage;
+    private RequestHandler requestHandler;
+    private NioServer server;
+    private int port;
+
+    @BeforeEach
+    void setUp() throws Exception {
+        Path mailboxes = Files.createDirectories(data.resolve("mailboxes"));
+        Files.writeString(mailboxes.resolve(USER + ".csv"), "userEmail|id|sender|receivers(#)|subject|body|timestamp"
+                + System.lineSeparator(), StandardCharsets.UTF_8);
+        storage = new ServerStorage(data.toString(), message -> {
+        });
+        requestHandler = new RequestHandler(storage, message -> {
+        });
+        try (ServerSocket free = new ServerSocket(0)) {
+            port = free.getLocalPort();
+        }
+        server = new NioServer(port, 1, 4, requestHandler, message -> {
+        });
+        server.start();
+    }
+
+    @AfterEach
+    void tearDown() throws Exception {
+        server.stop();
+        requestHandler.close();
+        storage.close();
+    }
+
+    @Test
+    void clientNotReadingItsResponsesIsNotReadEither() throws Exception {
+        for (int i = 0; i < 4; i++) {
+            storage.addEmailToMailbox(USER, email("x".repeat(16 * 1024), i));
+        }
+        int requests = 2000;
+        // the padding is ignored by the server, it makes the requests fill the socket buffers once they are not read
+        byte[] request = ("GET_ALL_MESSAGES|" + USER + "|" + "x".repeat(32 * 1024) + "\n").getBytes(StandardCharsets.UTF_8);
+        try (Socket socket = new Socket("localhost", port)) {
+            Thread sender = new Thread(() -> {
+                try {
+                    OutputStream out = socket.getOutputStream();
+                    for (int i = 0; i < requests; i++) {
+                        out.write(request);
+                    }
+                    out.flush();
+                } catch (IOException e) {
+                    throw new RuntimeException(e);
+                }
+            });
+            sender.start();
+
+            // the server stops reading once 4 MB of responses pile up, so the sender blocks on a full socket
+            sender.join(TimeUnit.SECONDS.toMillis(2));
+            assertTrue(sender.isAlive());
+
+            BufferedReader in = new BufferedReader(new InputStreamReader(socket.getInputStream(), StandardCharsets.UTF_8));
+            for (int i = 0; i < requests; i++) {
+                assertTrue(in.readLine().startsWith("SUCCESS"));
+            }
+            sender.join();
+        }
+    }
+
+    @Test
+    void subscriberNotReadingItsPushesIsDisconnected() throws Exception {
+        try (Socket socket = new Socket("localhost", port)) {
+            socket.getOutputStream().write(("SUBSCRIBE|" + USER + "\n").getBytes(StandardCharsets.UTF_8));
+            BufferedReader in = new BufferedReader(new InputStreamReader(socket.getInputStream(), StandardCharsets.UTF_8));
+            assertTrue(in.readLine().startsWith("SUCCESS"));
+
+            String body = "x".repeat(64 * 1024);
+            for (int i = 0; i < 500; i++) {
+                storage.addEmailToMailbox(USER, email(body, i));
+            }
+
+            socket.setSoTimeout((int) TimeUnit.SECONDS.toMillis(10));
+            InputStream stream = socket.getInputStream();
+            byte[] buffer = new byte[64 * 1024];
+            long received = 0;
+            try {
+                for (int read; (read = stream.read(buffer)) >= 0; ) {
+                    received += read;
+                }
+            } catch (SocketException e) {
+                // reset by the server; a timeout fails the test
+            }
+            assertTrue(received < 500L * body.length());
+        }
+    }
+
+    private static Email email(String body, int seconds) {
+        return new Email("user2@mail.com", List.of(USER), "subject", body,
+                LocalDateTime.of(2024, 1, 1, 9, 0).plusSeconds(seconds));
+    }
+}
@@ -0,0 +1,91 @@
+package com.prog3.server.model;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class GroupCommitWriterTest {
+    @TempDir
+    Path directory;
+
+    @Test
+    void queuedRecordsAreWrittenInOrder() throws Exception {
+        GroupCommitWriter writer = new GroupCommitWriter("test-writer", GroupCommitWriter.FsyncPolicy.BATCH);
+        GroupCommitWriter.LogFile file = writer.open(directory.resolve("log"));
+
+        writer.append(file, line("a"));
+        writer.append(file, line("b")).join();
+        writer.close().join();
+
+        assertEquals(List.of("a", "b"), Files.readAllLines(directory.resolve("log")));
+    }
+
+    @Test
+    void appendsRacingCloseAreEitherWrittenOrFailed() throws Exception {
+        for (int round = 0; round < 20; round++) {
+            GroupCommitWriter writer = new GroupCommitWriter("test-writer", GroupCommitWriter.FsyncPolicy.NONE);
+            GroupCommitWriter.LogFile file = writer.open(directory.resolve("log" + round));
+            ConcurrentLinkedQueue<CompletableFuture<Void>> commits = new ConcurrentLinkedQueue<>();
+            CountDownLatch start = new CountDownLatch(1);
+            Thread[] appenders = new Thread[4];
+            for (int i = 0; i < appenders.length; i++) {
+                appenders[i] = new Thread(() -> {
+                    try {
+                        start.await();
+                    } catch (InterruptedException e) {
+                        return;
+                    }
+                    for (int j = 0; j < 500; j++) {
+                        commits.add(writer.append(file, line("record")));
+                    }
+                });
+                appenders[i].start();
+            }
+
+            start.countDown();
+            CompletableFuture<Void> closed = writer.close();
+            for (Thread appender : appenders) {
+                appender.join();
+            }
+
+            closed.get(10, TimeUnit.SECONDS);
+            long written = 0;
+            for (CompletableFuture<Void> commit : commits) {
+                try {
+                    commit.get(10, TimeUnit.SECONDS);
+                    written++;
+                } catch (ExecutionException e) {
+                    assertInstanceOf(IllegalStateException.class, e.getCause());
+                }
+            }
+            Path log = directory.resolve("log" + round);
+            assertEquals(written, Files.exists(log) ? Files.readAllLines(log).size() : 0);
+        }
+    }
+
+    @Test
+    void closingTwiceWaitsForTheSameStop() {
+        GroupCommitWriter writer = new GroupCommitWriter("test-writer", GroupCommitWriter.FsyncPolicy.NONE);
+
+        CompletableFuture<Void> closed = writer.close();
+
+        assertSame(closed, writer.close());
+        closed.join();
+        assertTrue(writer.flush().isCompletedExceptionally());
+    }
+
+    private static byte[] line(String text) {
+        return (text + System.lineSeparator()).getBytes(StandardCharsets.UTF_8);
+    }
+}
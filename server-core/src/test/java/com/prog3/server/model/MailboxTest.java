@@ -0,0 +1,167 @@
+package com.prog3.server.model;
+
+import org.junit.jupiter.api.Test;
+
+import java.time.LocalDateTime;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class MailboxTest {
+    private static final LocalDateTime START = LocalDateTime.of(2024, 1, 1, 9, 0);
+
+    @Test
+    void firstSyncGetsTheWholeMailbox() {
+        Mailbox mailbox = new Mailbox(List.of(email("a", 0), email("b", 1)));
+
+        Mailbox.Changes changes = mailbox.getChangesSince(0);
+
+        assertTrue(changes.reset());
+        assertEquals(List.of("a", "b"), ids(changes.added()));
+        assertEquals(mailbox.getSequence(), changes.sequence());
+    }
+
+    @Test
+    void negativeSequenceOnlyGetsTheCurrentOne() {
+        Mailbox mailbox = new Mailbox(List.of(email("a", 0)));
+
+        Mailbox.Changes changes = mailbox.getChangesSince(-1);
+
+        assertFalse(changes.reset());
+        assertTrue(changes.added().isEmpty());
+        assertEquals(mailbox.getSequence(), changes.sequence());
+    }
+
+    @Test
+    void currentSequenceGetsAnEmptyDelta() {
+        Mailbox mailbox = new Mailbox(List.of(email("a", 0)));
+        long sequence = mailbox.getSequence();
+
+        Mailbox.Changes changes = mailbox.getChangesSince(sequence);
+
+        assertFalse(changes.reset());
+        assertTrue(changes.added().isEmpty());
+        assertTrue(changes.removed().isEmpty());
+        assertEquals(sequence, changes.sequence());
+    }
+
+    @Test
+    void deltaHoldsTheChangesAfterTheSequenceInArrivalOrder() {
+        Mailbox mailbox = new Mailbox(List.of(email("a", 0), email("b", 1)));
+        long since = mailbox.getSequence();
+        mailbox.addEmail(email("c", 5));
+        mailbox.addEmail(email("d", -5));       // older date, arrived later
+        mailbox.removeEmail("a");
+
+        Mailbox.Changes changes = mailbox.getChangesSince(since);
+
+        assertFalse(changes.reset());
+        assertEquals(List.of("c", "d"), ids(changes.added()));
+        assertEquals(List.of("a"), changes.removed());
+        assertEquals(mailbox.getSequence(), changes.sequence());
+        assertEquals(since + 3, changes.sequence());
+    }
+
+    @Test
+    void emailAddedAndRemovedBetweenSyncsIsOnlyARemoval() {
+        Mailbox mailbox = new Mailbox();
+        long since = mailbox.getSequence();
+        mailbox.addEmail(email("a", 0));
+        mailbox.removeEmail("a");
+
+        Mailbox.Changes changes = mailbox.getChangesSince(since);
+
+        assertFalse(changes.reset());
+        assertTrue(changes.added().isEmpty());
+        assertEquals(List.of("a"), changes.removed());
+    }
+
+    @Test
+    void duplicateAndMissingEmailsDoNotChangeTheSequence() {
+        Mailbox mailbox = new Mailbox(List.of(email("a", 0)));
+        long sequence = mailbox.getSequence();
+
+        assertFalse(mailbox.addEmail(email("a", 0)));
+        assertFalse(mailbox.removeEmail("missing"));
+
+        assertEquals(sequence, mailbox.getSequence());
+    }
+
+    @Test
+    void sequenceOfAnotherMailboxInstanceGetsAReset() {
+        // the same mailbox loaded by a previous run, or before a reload
+        Mailbox previous = new Mailbox(List.of(email("a", 0)));
+        previous.addEmail(email("b", 1));
+        Mailbox mailbox = new Mailbox(List.of(email("a", 0), email("b", 1)));
+
+        Mailbox.Changes changes = mailbox.getChangesSince(previous.getSequence());
+
+        assertTrue(changes.reset());
+        assertEquals(List.of("a", "b"), ids(changes.added()));
+    }
+
+    @Test
+    void sequenceAheadOfTheMailboxGetsAReset() {
+        Mailbox mailbox = new Mailbox(List.of(email("a", 0)));
+
+        assertTrue(mailbox.getChangesSince(mailbox.getSequence() + 1).reset());
+    }
+
+    @Test
+    void syncOlderThanTheKeptTombstonesGetsAReset() {
+        int removals = Integer.getInteger("mailfx.sync.maxTombstones", 10_000) + 1;
+        List<Email> emails = new ArrayList<>();
+        for (int i = 0; i < removals; i++) {
+            emails.add(email("e" + i, i));
+        }
+        Mailbox mailbox = new Mailbox(emails);
+        long since = mailbox.getSequence();
+        for (int i = 0; i < removals - 1; i++) {
+            mailbox.removeEmail("e" + i);
+        }
+        assertFalse(mailbox.getChangesSince(since).reset());
+
+        mailbox.removeEmail("e" + (removals - 1));
+
+        assertTrue(mailbox.getChangesSince(since).reset());
+    }
+
+    @Test
+    void replacedContentResetsOldSequencesAndKeepsWaiters() {
+        Mailbox mailbox = new Mailbox(List.of(email("a", 0)));
+        long before = mailbox.getSequence();
+        List<String> added = new ArrayList<>();
+        mailbox.addListener(new MailboxListener() {
+            @Override
+            public void emailAdded(Email email) {
+                added.add(email.getId());
+            }
+
+            @Override
+            public void emailRemoved(Email email) {
+            }
+        });
+        CompletableFuture<Void> arrival = mailbox.awaitNewEmail();
+
+        mailbox.replaceContent(new Mailbox(List.of(email("b", 1))));
+
+        assertTrue(arrival.isDone());
+        Mailbox.Changes changes = mailbox.getChangesSince(before);
+        assertTrue(changes.reset());
+        assertEquals(List.of("b"), ids(changes.added()));
+        assertFalse(mailbox.getChangesSince(mailbox.getSequence()).reset());
+
+        mailbox.addEmail(email("c", 2));
+        assertEquals(List.of("c"), added);
+    }
+
+    private static Email email(String id, int minutes) {
+        return new Email(id, "user2@mail.com", List.of("user1@mail.com"), "subject", "body", START.plusMinutes(minutes));
+    }
+
+    private static List<String> ids(List<Email> emails) {
+        return emails.stream().map(Email::getId).toList();
+    }
+}
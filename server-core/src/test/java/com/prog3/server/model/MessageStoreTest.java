@@ -0,0 +1,162 @@
+package com.prog3.server.model;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.time.LocalDateTime;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class MessageStoreTest {
+    private static final String QUOTED = MessageStore.QUOTE_MARKER + "hello from user2";
+
+    @TempDir
+    Path directory;
+
+    private Path path;
+    private GroupCommitWriter writer;
+    private MessageStore store;
+    private final List<String> logged = new ArrayList<>();
+
+    @BeforeEach
+    void setUp() throws Exception {
+        path = directory.resolve("messages.csv");
+        writer = new GroupCommitWriter("test-writer", GroupCommitWriter.FsyncPolicy.NONE);
+        reopen();
+    }
+
+    @AfterEach
+    void tearDown() {
+        writer.close().join();
+    }
+
+    @Test
+    void fannedOutEmailIsDeletedWithItsLastReference() throws Exception {
+        List<String> recipients = List.of("user1@mail.com", "user3@mail.com", "user4@mail.com");
+        Email stored = add(email(recipients, "hello everyone"));
+        for (int i = 0; i < recipients.size(); i++) {
+            assertSame(stored, store.retain(stored.getId()));   // one reference per mailbox
+        }
+        store.release(stored.getId());      // the reference taken by add
+
+        store.release(stored.getId());
+        store.release(stored.getId());
+        assertEquals(List.of(), tombstonedKeys());
+
+        store.release(stored.getId());
+        assertEquals(List.of(stored.getId(), segmentId("hello everyone")), tombstonedKeys());
+        assertNull(store.retain(stored.getId()));
+
+        store.release(stored.getId());      // no reference left, nothing more to delete
+        assertEquals(2, tombstonedKeys().size());
+    }
+
+    @Test
+    void quotedSegmentSharedByRepliesIsDeletedWithTheLastReply() throws Exception {
+        Email first = add(email(List.of("user1@mail.com"), "first reply" + QUOTED));
+        Email second = add(email(List.of("user1@mail.com"), "second reply" + QUOTED));
+        Email third = add(email(List.of("user1@mail.com"), "third reply" + QUOTED));
+        assertEquals(4, segmentRecords().size());   // the quoted text is stored once
+        assertEquals("second reply" + QUOTED, second.getBody());
+
+        store.release(first.getId());
+        store.release(second.getId());
+        assertEquals(List.of(first.getId(), segmentId("first reply"), second.getId(), segmentId("second reply")),
+                tombstonedKeys());
+
+        store.release(third.getId());
+        assertEquals(List.of(first.getId(), segmentId("first reply"), second.getId(), segmentId("second reply"),
+                third.getId(), segmentId("third reply"), segmentId("hello from user2")), tombstonedKeys());
+    }
+
+    @Test
+    void reloadDropsWhatNoMailboxReferences() throws Exception {
+        Email kept = add(email(List.of("user1@mail.com"), "kept" + QUOTED));
+        Email lost = add(email(List.of("user1@mail.com"), "lost" + QUOTED));      // never added to a mailbox
+
+        reopen();
+        assertNotNull(store.retain(kept.getId()));      // as the mailbox load does
+        assertEquals(1, store.releaseUnreferenced());
+        assertEquals(List.of(lost.getId(), segmentId("lost")), tombstonedKeys());
+
+        reopen();
+        assertNull(store.retain(lost.getId()));
+        assertEquals("kept" + QUOTED, store.retain(kept.getId()).getBody());
+        assertEquals(0, store.releaseUnreferenced());
+    }
+
+    @Test
+    void reloadDeletesSegmentsNoEmailUses() throws Exception {
+        Email email = add(email(List.of("user1@mail.com"), "reply" + QUOTED));
+        // the email tombstone of a delete interrupted before its segment tombstones were written
+        writer.flush().join();
+        Files.writeString(path, String.join("|", "*", email.getId(), StorageLog.TOMBSTONE_MARKER, "2024-01-01T10:00")
+                + System.lineSeparator(), StandardCharsets.UTF_8, StandardOpenOption.APPEND);
+
+        reopen();
+        assertNull(store.retain(email.getId()));
+        assertEquals(Set.of(email.getId(), segmentId("reply"), segmentId("hello from user2")),
+                Set.copyOf(tombstonedKeys()));
+
+        reopen();
+        assertEquals(3, tombstonedKeys().size());   // nothing left to delete
+        assertTrue(logged.isEmpty());
+    }
+
+    private void reopen() throws Exception {
+        writer.flush().join();
+        store = new MessageStore(path, writer, Runnable::run, logged::add);
+        store.load(message -> {
+        });
+    }
+
+    private Email add(Email email) {
+        List<CompletableFuture<Void>> commits = new ArrayList<>();
+        Email stored = store.add(email, commits);
+        commits.forEach(CompletableFuture::join);
+        return stored;
+    }
+
+    private List<String[]> records() throws Exception {
+        writer.flush().join();
+        return Files.readAllLines(path, StandardCharsets.UTF_8).stream()
+                .skip(1)
+                .map(StorageLog::splitRecord)
+                .toList();
+    }
+
+    private List<String> tombstonedKeys() throws Exception {
+        return records().stream()
+                .filter(parts -> parts[2].equals(StorageLog.TOMBSTONE_MARKER))
+                .map(parts -> parts[1])
+                .toList();
+    }
+
+    private List<String[]> segmentRecords() throws Exception {
+        return records().stream()
+                .filter(parts -> parts[2].equals("#SEGMENT"))
+                .toList();
+    }
+
+    private String segmentId(String text) throws Exception {
+        return segmentRecords().stream()
+                .filter(parts -> parts[3].equals(text))
+                .map(parts -> parts[1])
+                .findFirst()
+                .orElseThrow();
+    }
+
+    private static Email email(List<String> recipients, String body) {
+        return new Email("user2@mail.com", recipients, "subject", body, LocalDateTime.of(2024, 1, 1, 9, 0));
+    }
+}
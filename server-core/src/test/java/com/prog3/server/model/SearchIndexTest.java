@@ -0,0 +1,129 @@
+package com.prog3.server.model;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.time.LocalDateTime;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class SearchIndexTest {
+    private static final LocalDateTime START = LocalDateTime.of(2024, 1, 1, 9, 0);
+
+    @TempDir
+    Path directory;
+
+    private Path path;
+    private GroupCommitWriter writer;
+    private int created;     // every email is newer than the ones created before it
+
+    @BeforeEach
+    void setUp() {
+        path = directory.resolve("user1@mail.com" + SearchIndex.FILE_EXTENSION);
+        writer = new GroupCommitWriter("test-writer", GroupCommitWriter.FsyncPolicy.NONE);
+    }
+
+    @AfterEach
+    void tearDown() {
+        writer.close().join();
+    }
+
+    @Test
+    void searchMatchesEveryWordAndPrefixesOfTheLast() throws Exception {
+        SearchIndex index = SearchIndex.open(path, List.of(
+                email("a", "Riunione budget", "ordine del giorno"),
+                email("b", "Pranzo", "budget della riunione di domani"),
+                email("c", "Budget", "nessuna novità")), writer);
+
+        assertEquals(List.of("a", "b"), ids(index.search("budget riun", 10)));
+        assertEquals(List.of("c"), ids(index.search("budget novi", 10)));
+        assertTrue(index.search("budget assente", 10).isEmpty());
+    }
+
+    @Test
+    void subjectMatchRanksAboveBodyMatch() throws Exception {
+        SearchIndex index = SearchIndex.open(path, List.of(
+                email("a", "Saluti", "progetto in ritardo"),
+                email("b", "Progetto", "saluti")), writer);
+
+        assertEquals(List.of("b", "a"), ids(index.search("progetto", 10)));
+    }
+
+    @Test
+    void reopenedIndexReadsTheStoredTermsBack() throws Exception {
+        Email stored = email("a", "Fattura", "pagamento ricevuto");
+        SearchIndex index = SearchIndex.open(path, List.of(), writer);
+        index.add(stored, SearchIndex.terms(stored));
+        writer.flush().join();
+
+        // same id, different content: the terms come from the log, not from the email
+        SearchIndex reopened = SearchIndex.open(path, List.of(email("a", "Altro", "altro")), writer);
+
+        assertEquals(List.of("a"), ids(reopened.search("pagamento", 10)));
+        assertTrue(reopened.search("altro", 10).isEmpty());
+    }
+
+    @Test
+    void reopenedIndexFollowsTheMailbox() throws Exception {
+        Email kept = email("a", "Fattura", "pagamento");
+        Email removed = email("b", "Fattura", "sollecito");
+        Email deleted = email("c", "Fattura", "annullata");
+        SearchIndex index = SearchIndex.open(path, List.of(kept, removed, deleted), writer);
+        index.remove("b");
+        writer.flush().join();
+
+        // c was deleted from the mailbox and d added to it while the index log was not written
+        Email added = email("d", "Fattura", "anticipo");
+        SearchIndex reopened = SearchIndex.open(path, List.of(kept, added), writer);
+
+        assertEquals(List.of("d", "a"), ids(reopened.search("fattura", 10)));
+        writer.flush().join();
+        SearchIndex again = SearchIndex.open(path, List.of(kept, added), writer);
+        assertEquals(List.of("d", "a"), ids(again.search("fattura", 10)));
+        assertTrue(Files.readAllLines(path).contains("R|c"));
+    }
+
+    @Test
+    void damagedRecordIsIndexedAgain() throws Exception {
+        Email email = email("a", "Fattura", "pagamento");
+        SearchIndex.open(path, List.of(), writer);
+        writer.flush().join();
+        Files.writeString(path, "A|a|fattura:" + System.lineSeparator(), StandardCharsets.UTF_8,
+                StandardOpenOption.APPEND);
+
+        SearchIndex index = SearchIndex.open(path, List.of(email), writer);
+
+        assertEquals(List.of("a"), ids(index.search("pagamento", 10)));
+    }
+
+    @Test
+    void staleLogIsRewritten() throws Exception {
+        List<Email> emails = new ArrayList<>();
+        for (int i = 0; i < 100; i++) {
+            emails.add(email("e" + i, "Fattura", "numero " + i));
+        }
+        SearchIndex.open(path, emails, writer);
+        writer.flush().join();
+
+        SearchIndex index = SearchIndex.open(path, List.of(emails.getFirst()), writer);
+
+        assertEquals(2, Files.readAllLines(path).size());       // header and the one email left
+        assertEquals(List.of("e0"), ids(index.search("fattura", 10)));
+    }
+
+    private Email email(String id, String subject, String body) {
+        return new Email(id, "user2@mail.com", List.of("user1@mail.com"), subject, body, START.plusMinutes(created++));
+    }
+
+    private static List<String> ids(List<Email> emails) {
+        return emails.stream().map(Email::getId).toList();
+    }
+}
@@ -0,0 +1,149 @@
+package com.prog3.server.model;
+
+import com.prog3.protocol.Protocol;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.LocalDateTime;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class ServerStorageTest {
+    private static final String USER = "user1@mail.com";
+    private static final String A = "00000000-0000-0000-0000-00000000000a";
+    private static final String B = "00000000-0000-0000-0000-00000000000b";
+    private static final String C = "00000000-0000-0000-0000-00000000000c";
+
+    @TempDir
+    Path data;
+
+    private ServerStorage storage;
+
+    @AfterEach
+    void tearDown() throws Exception {
+        if (storage != null) {
+            storage.close();
+        }
+    }
+
+    @Test
+    void tombstoneCancelsTheEarlierRecord() throws Exception {
+        writeMailbox("", record(A, "09:00"), record(B, "09:01"), tombstone(A));
+
+        storage = open();
+
+        assertEquals(List.of(B), ids(storage.getUserEmailList(USER)));
+    }
+
+    @Test
+    void recordReplayedAfterItsTombstoneStaysDeleted() throws Exception {
+        // a compaction interrupted before deleting the sealed segments leaves copies of records after their tombstone
+        writeMailbox("", record(A, "09:00"), record(B, "09:01"), tombstone(A));
+        writeMailbox(".1", record(A, "09:00"), record(B, "09:01"), record(C, "09:02"));
+
+        storage = open();
+
+        assertEquals(List.of(B, C), ids(storage.getUserEmailList(USER)));
+    }
+
+    @Test
+    void removedEmailIsStillMissingAfterRestart() throws Exception {
+        writeMailbox("", record(A, "09:00"), record(B, "09:01"));
+        storage = open();
+        assertTrue(storage.removeEmailFromMailbox(USER, A));
+        storage.close();
+
+        storage = open();
+
+        assertEquals(List.of(B), ids(storage.getUserEmailList(USER)));
+    }
+
+    @Test
+    void bodyWithBackslashesIsStillTheSameAfterRestart() throws Exception {
+        writeMailbox("");
+        String body = Protocol.escape("C:\\new a\\|b\n" + Protocol.QUOTE_MARKER + "\nends with \\");
+        Email email = new Email("user2@mail.com", List.of(USER), "subject", body, LocalDateTime.of(2024, 1, 1, 9, 0));
+        storage = open();
+        storage.addEmailToMailbox(USER, email);
+        storage.close();
+
+        storage = open();
+
+        assertEquals(body, storage.getUserEmail(USER, email.getId()).getBody());
+        assertEquals("C:\\new a\\|b", Protocol.unescape(storage.getUserEmail(USER, email.getId()).getPreview()));
+    }
+
+    @Test
+    void changesMadeDuringReloadsAreKept() throws Exception {
+        writeMailbox("");
+        writeUserMailbox("user2@mail.com", "");
+        storage = open();
+        List<String> kept = new ArrayList<>();
+        Thread sender = new Thread(() -> {
+            try {
+                for (int i = 0; i < 200; i++) {
+                    Email email = new Email("user3@mail.com", List.of(USER, "user2@mail.com"), "subject", "parola" + i,
+                            LocalDateTime.of(2024, 1, 1, 9, 0).plusSeconds(i));
+                    storage.addEmailToMailboxes(email, List.of(USER, "user2@mail.com"));
+                    if (i % 2 == 0) {
+                        storage.removeEmailFromMailbox(USER, email.getId());
+                        storage.removeEmailFromMailbox("user2@mail.com", email.getId());
+                    } else {
+                        kept.add(email.getId());
+                    }
+                }
+            } catch (Exception e) {
+                throw new RuntimeException(e);
+            }
+        });
+        sender.start();
+        while (sender.isAlive()) {
+            storage.reloadFromFile();
+        }
+        sender.join();
+
+        assertEquals(kept, ids(storage.getUserEmailList(USER)));
+        assertEquals(List.of(kept.get(3)), ids(storage.searchUserEmails(USER, "parola7 subj", 10)));
+        storage.close();
+        storage = open();
+        assertEquals(kept, ids(storage.getUserEmailList(USER)));
+        assertEquals(kept, ids(storage.getUserEmailList("user2@mail.com")));
+    }
+
+    private ServerStorage open() throws Exception {
+        return new ServerStorage(data.toString(), message -> {
+        });
+    }
+
+    private void writeMailbox(String segment, String... records) throws Exception {
+        writeUserMailbox(USER, segment, records);
+    }
+
+    private void writeUserMailbox(String user, String segment, String... records) throws Exception {
+        Path mailboxes = Files.createDirectories(data.resolve("mailboxes"));
+        List<String> lines = new ArrayList<>();
+        lines.add(StorageLog.HEADER);
+        lines.addAll(List.of(records));
+        Files.write(mailboxes.resolve(user + ".csv" + segment), lines, StandardCharsets.UTF_8);
+    }
+
+    private static String record(String id, String time) {
+        return String.join("|", USER, id, "user2@mail.com", USER, "subject", "body", "2024-01-01T" + time);
+    }
+
+    private static String tombstone(String id) {
+        return String.join("|", USER, id, StorageLog.TOMBSTONE_MARKER, " ", " ", " ", "2024-01-01T10:00");
+    }
+
+    private static List<String> ids(Iterable<Email> emails) {
+        List<String> ids = new ArrayList<>();
+        emails.forEach(email -> ids.add(email.getId()));
+        return ids;
+    }
+}
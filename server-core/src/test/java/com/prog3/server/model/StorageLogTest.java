@@ -0,0 +1,128 @@
+package com.prog3.server.model;
+
+import com.prog3.protocol.Protocol;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class StorageLogTest {
+    private static final String USER = "user1@mail.com";
+
+    @TempDir
+    Path directory;
+
+    private Path basePath;
+    private GroupCommitWriter writer;
+    private final List<String> logged = new ArrayList<>();
+
+    @BeforeEach
+    void setUp() throws Exception {
+        basePath = directory.resolve(USER + ".csv");
+        Files.writeString(basePath, StorageLog.HEADER + System.lineSeparator(), StandardCharsets.UTF_8);
+        writer = new GroupCommitWriter("test-writer", GroupCommitWriter.FsyncPolicy.NONE);
+    }
+
+    @AfterEach
+    void tearDown() {
+        writer.close().join();
+    }
+
+    @Test
+    void compactionDropsDeletedRecordsAndTheirTombstones() throws Exception {
+        // compactions run on the calling thread
+        StorageLog log = new StorageLog(basePath, writer, Runnable::run, logged::add);
+        log.append(record("a")).join();
+        log.append(record("b")).join();
+        log.appendTombstone(USER, "a", "2024-01-01T10:00").join();
+
+        log.setRecordCounts(2000, 0);   // enough garbage to compact
+
+        assertEquals(List.of("b"), replayedIds(log));
+        assertEquals(List.of(StorageLog.HEADER, record("b")), Files.readAllLines(basePath));
+        assertTrue(logged.isEmpty());
+    }
+
+    @Test
+    void appendsAfterCompactionGoToTheNewSegment() throws Exception {
+        StorageLog log = new StorageLog(basePath, writer, Runnable::run, logged::add);
+        log.append(record("a")).join();
+        log.appendTombstone(USER, "a", "2024-01-01T10:00").join();
+        log.setRecordCounts(2000, 0);
+
+        log.append(record("c")).join();
+
+        assertEquals(List.of("c"), replayedIds(log));
+        assertEquals(List.of(StorageLog.HEADER, record("c")), Files.readAllLines(segment(1)));
+    }
+
+    @Test
+    void reopenedLogWritesToItsHighestSegment() throws Exception {
+        StorageLog log = new StorageLog(basePath, writer, Runnable::run, logged::add);
+        log.append(record("a")).join();
+        log.appendTombstone(USER, "a", "2024-01-01T10:00").join();
+        log.setRecordCounts(2000, 0);
+
+        StorageLog reopened = new StorageLog(basePath, writer, Runnable::run, logged::add);
+        reopened.append(record("d")).join();
+
+        assertEquals(List.of("d"), replayedIds(reopened));
+        assertFalse(Files.exists(segment(2)));
+    }
+
+    @Test
+    void compactionFailuresReachTheLogger() throws Exception {
+        StorageLog log = new StorageLog(basePath, writer, Runnable::run, logged::add);
+        log.append(record("a")).join();
+        Files.createDirectory(directory.resolve(USER + ".csv.tmp"));     // the new base file cannot be written
+
+        log.setRecordCounts(2000, 0);
+
+        assertEquals(1, logged.size());
+        assertTrue(logged.getFirst().startsWith("Storage compaction failed for: " + basePath));
+    }
+
+    @Test
+    void splitRecordKeepsEscapedSeparatorsInTheBody() {
+        assertArrayEquals(new String[]{USER, "a", "user2@mail.com", USER, "subject", "x\\|y", "2024-01-01T10:00"},
+                StorageLog.splitRecord(String.join("|", USER, "a", "user2@mail.com", USER, "subject", "x\\|y",
+                        "2024-01-01T10:00")));
+    }
+
+    @Test
+    void splitRecordEndsTheColumnAfterAnEscapedBackslash() {
+        String body = Protocol.escape("C:\\new\\");        // "C:\\\\new\\\\"
+
+        assertArrayEquals(new String[]{USER, "a", "user2@mail.com", USER, "subject", body, "2024-01-01T10:00"},
+                StorageLog.splitRecord(String.join("|", USER, "a", "user2@mail.com", USER, "subject", body,
+                        "2024-01-01T10:00")));
+        assertArrayEquals(new String[]{"*", "s", "#SEGMENT", "x\\\\\\|y\\\\", "plain", "hash"},
+                StorageLog.splitRecord("*|s|#SEGMENT|x\\\\\\|y\\\\|plain|hash"));
+    }
+
+    private static String record(String id) {
+        return String.join("|", USER, id, "user2@mail.com", USER, "subject", "body", "2024-01-01T09:00");
+    }
+
+    private Path segment(int number) {
+        return directory.resolve(USER + ".csv." + number);
+    }
+
+    private static List<String> replayedIds(StorageLog log) throws Exception {
+        List<String> ids = new ArrayList<>();
+        log.replay(parts -> {
+            if (!parts[2].equals(StorageLog.TOMBSTONE_MARKER)) {
+                ids.add(parts[1]);
+            }
+        });
+        return ids;
+    }
+}
@@ -1,6 +1,7 @@
 module com.prog3.server {
     requires javafx.controls;
     requires javafx.fxml;
+    requires com.prog3.server.core;
 
     opens com.prog3.server to javafx.fxml;
     exports com.prog3.server;